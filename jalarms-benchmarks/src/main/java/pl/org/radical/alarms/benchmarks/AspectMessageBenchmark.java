@@ -0,0 +1,74 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmSender;
+import pl.org.radical.alarms.aop.AlarmAspect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the alarm that {@link AlarmAspect} builds for an exception, with a wrapped cause and with
+ * different amounts of stack trace. The alarm is the same every time, so the sender suppresses it and
+ * this is mostly the cost of building the message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AspectMessageBenchmark {
+
+	/** Lines of stack trace in the alarm; -1 is the whole stack trace. */
+	@Param({ "0", "5", "-1" })
+	public int stackLines;
+
+	private final AlarmAspect aspect = new AlarmAspect();
+	private AlarmSender sender;
+	private RuntimeException plain;
+	private RuntimeException wrapped;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		final List<AlarmChannel> list = new ArrayList<AlarmChannel>(1);
+		list.add(new NullChannel(Integer.MAX_VALUE));
+		sender = new AlarmSender();
+		sender.setAlarmChannels(list);
+		aspect.setAlarmSender(sender);
+		aspect.setIncludeStackTrace(stackLines);
+		plain = new IllegalStateException("Connection pool exhausted");
+		wrapped = new RuntimeException("Cannot save the order", new IllegalArgumentException("Invalid customer id"));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sender.shutdown();
+	}
+
+	@Benchmark
+	public void plainException() {
+		aspect.sendMethodAlarm(plain, null);
+	}
+
+	@Benchmark
+	public void wrappedException() {
+		aspect.sendMethodAlarm(wrapped, null);
+	}
+
+}
@@ -0,0 +1,28 @@
+package pl.org.radical.alarms.benchmarks;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the GC profiler, which reports the allocation per operation (gc.alloc.rate.norm)
+ * next to the time, so that a change that starts allocating on a hot path shows up in the results.
+ * Takes the same arguments as the JMH runner; if any profiler is given with -prof, the GC profiler is not added.
+ */
+public final class Benchmarks {
+
+	private Benchmarks() {
+	}
+
+	public static void main(final String[] args) throws Exception {
+		if (Arrays.asList(args).contains("-prof")) {
+			Main.main(args);
+		} else {
+			final String[] withGc = Arrays.copyOf(args, args.length + 2);
+			withGc[args.length] = "-prof";
+			withGc[args.length + 1] = "gc";
+			Main.main(withGc);
+		}
+	}
+
+}
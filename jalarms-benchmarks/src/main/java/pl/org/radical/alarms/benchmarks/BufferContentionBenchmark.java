@@ -0,0 +1,92 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmSender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link AlarmSender#sendAlarmAlways(String, String)} with the time buffer on, when many threads
+ * raise the same few alarms and they all update the same buffer entries. The buffer time is long enough
+ * that nothing is flushed during an iteration, so this is the cost of counting a repeated alarm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferContentionBenchmark {
+
+	/** The number of distinct alarms the threads raise. */
+	@Param({ "1", "64" })
+	public int distinct;
+
+	private final String source = "OrderService";
+	private String[] messages;
+	private AlarmSender sender;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		messages = new String[distinct];
+		for (int i = 0; i < distinct; i++) {
+			messages[i] = "Connection refused by the database, node " + i;
+		}
+		final List<AlarmChannel> list = new ArrayList<AlarmChannel>(1);
+		list.add(new NullChannel(Integer.MAX_VALUE));
+		sender = new AlarmSender();
+		sender.setAlarmChannels(list);
+		sender.setAlarmTimeBuffer(600000);
+		sender.init();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sender.shutdown();
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		int next = (int) System.nanoTime();
+	}
+
+	private void raise(final ThreadState ts) {
+		sender.sendAlarmAlways(messages[(ts.next++ & Integer.MAX_VALUE) % distinct], source);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void threads01(final ThreadState ts) {
+		raise(ts);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void threads04(final ThreadState ts) {
+		raise(ts);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void threads16(final ThreadState ts) {
+		raise(ts);
+	}
+
+}
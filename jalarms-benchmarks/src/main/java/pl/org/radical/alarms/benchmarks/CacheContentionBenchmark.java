@@ -0,0 +1,152 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmFingerprint;
+import pl.org.radical.alarms.cache.DefaultAlarmCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link DefaultAlarmCache#tryAcquire(int, AlarmChannel, long)} when many threads raise alarms at
+ * the same time, the way they do during an incident: most calls are for a handful of hot alarms that are
+ * suppressed, and one in every 16 calls is for a new alarm that has to be stored. Each call starts from the
+ * source and message, as the AlarmSender does. Compare <code>cache=baseline</code> (the original cache: a
+ * single map keyed by formatted strings with an MD5 digest, checked and then stored) against the
+ * fingerprint cache with 1 and 64 segments, at 1, 8, 32 and 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheContentionBenchmark {
+
+	private static final int HOT_ALARMS = 8;
+
+	/** "baseline" for the original cache, or the number of segments of the fingerprint cache. */
+	@Param({ "baseline", "1", "64" })
+	public String cache;
+
+	private DefaultAlarmCache fingerprintCache;
+	private BaselineCache baselineCache;
+	private final NullChannel chan = new NullChannel(Integer.MAX_VALUE);
+	private final String[] hot = new String[HOT_ALARMS];
+
+	@Setup(Level.Trial)
+	public void setup() {
+		if ("baseline".equals(cache)) {
+			baselineCache = new BaselineCache();
+		} else {
+			fingerprintCache = new DefaultAlarmCache();
+			fingerprintCache.setSegments(Integer.parseInt(cache));
+			fingerprintCache.setMaxEntries(1000000);
+		}
+		for (int i = 0; i < HOT_ALARMS; i++) {
+			hot[i] = "Hot alarm number " + i;
+			acquire(hot[i]);
+		}
+	}
+
+	/** Per thread state, so each thread generates its own new alarms. */
+	@State(Scope.Thread)
+	public static class ThreadState {
+		long seq = System.nanoTime();
+		int calls;
+	}
+
+	private boolean acquire(final String message) {
+		if (baselineCache != null) {
+			return baselineCache.acquire(chan, "src", message);
+		}
+		return fingerprintCache.tryAcquire(0, chan, AlarmFingerprint.of("src", message));
+	}
+
+	private boolean raise(final ThreadState ts) {
+		if ((++ts.calls & 15) == 0) {
+			return acquire("New alarm number " + ++ts.seq);
+		}
+		return acquire(hot[ts.calls & HOT_ALARMS - 1]);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean threads01(final ThreadState ts) {
+		return raise(ts);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public boolean threads08(final ThreadState ts) {
+		return raise(ts);
+	}
+
+	@Benchmark
+	@Threads(32)
+	public boolean threads32(final ThreadState ts) {
+		return raise(ts);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public boolean threads64(final ThreadState ts) {
+		return raise(ts);
+	}
+
+	/**
+	 * The DefaultAlarmCache as it was before the fingerprints, and the way the AlarmSender used it: the key
+	 * is built in shouldResend and again in store.
+	 */
+	static final class BaselineCache {
+
+		private final Map<String, Long> lastSends = new ConcurrentHashMap<String, Long>();
+
+		boolean acquire(final AlarmChannel channel, final String source, final String message) {
+			if (shouldResend(channel, source, message)) {
+				store(channel, source, message);
+				return true;
+			}
+			return false;
+		}
+
+		private void store(final AlarmChannel channel, final String source, final String message) {
+			if (channel.getMinResendInterval() > 0) {
+				lastSends.put(key(channel, source, message), System.currentTimeMillis());
+			}
+		}
+
+		private boolean shouldResend(final AlarmChannel channel, final String source, final String message) {
+			boolean resend = true;
+			if (channel.getMinResendInterval() > 0) {
+				final Long then = lastSends.get(key(channel, source, message));
+				if (then != null) {
+					resend = System.currentTimeMillis() - then >= channel.getMinResendInterval();
+				}
+			}
+			return resend;
+		}
+
+		private static String key(final AlarmChannel channel, final String source, final String message) {
+			return String.format("chan%s:%s:%s", channel.hashCode(), source == null ? "" : source, DigestUtils.md5Hex(message));
+		}
+
+	}
+
+}
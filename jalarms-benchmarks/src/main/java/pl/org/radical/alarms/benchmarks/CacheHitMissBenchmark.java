@@ -0,0 +1,73 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.cache.DefaultAlarmCache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the string based methods of {@link DefaultAlarmCache}, used by callers that don't have a
+ * fingerprint, with a varying number of distinct alarms in the cache. A hit is an alarm that was stored
+ * and must not be resent yet; a miss is an alarm the cache has never seen.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheHitMissBenchmark {
+
+	/** The number of distinct alarms stored in the cache. */
+	@Param({ "16", "1024", "65536" })
+	public int cardinality;
+
+	private final NullChannel chan = new NullChannel(Integer.MAX_VALUE);
+	private final String source = "OrderService";
+	private DefaultAlarmCache cache;
+	private String[] stored;
+	private String[] unknown;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		cache = new DefaultAlarmCache();
+		cache.setMaxEntries(cardinality * 2);
+		stored = new String[cardinality];
+		unknown = new String[cardinality];
+		for (int i = 0; i < cardinality; i++) {
+			stored[i] = "Timeout calling the payment gateway, order " + i;
+			unknown[i] = "Timeout calling the shipping service, order " + i;
+			cache.store(chan, source, stored[i]);
+		}
+	}
+
+	@Benchmark
+	public boolean shouldResendHit() {
+		return cache.shouldResend(chan, source, stored[next++ & cardinality - 1]);
+	}
+
+	@Benchmark
+	public boolean shouldResendMiss() {
+		return cache.shouldResend(chan, source, unknown[next++ & cardinality - 1]);
+	}
+
+	/** Stores an alarm that is already in the cache, which only updates its time. */
+	@Benchmark
+	public void storeExisting() {
+		cache.store(chan, source, stored[next++ & cardinality - 1]);
+	}
+
+}
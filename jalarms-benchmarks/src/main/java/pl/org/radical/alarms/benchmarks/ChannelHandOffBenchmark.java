@@ -0,0 +1,76 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.AbstractAlarmChannel;
+import pl.org.radical.alarms.Alarm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what {@link AbstractAlarmChannel#send(Alarm)} costs the caller: creating the task and queueing it
+ * to the channel's executor. The tasks do nothing, so the channel's thread keeps up with the queue, and the
+ * waiting tasks are dropped at the end of each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelHandOffBenchmark {
+
+	private final Alarm alarm = new Alarm("Disk /var is 95% full", "Storage");
+	private NoopChannel chan;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		chan = new NoopChannel();
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		chan.shutdown();
+	}
+
+	@Benchmark
+	public void send() {
+		chan.send(alarm);
+	}
+
+	/** A channel whose tasks only count the alarms. */
+	static class NoopChannel extends AbstractAlarmChannel {
+
+		final AtomicLong sent = new AtomicLong();
+		private final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				sent.incrementAndGet();
+			}
+		};
+
+		@Override
+		protected Runnable createSendTask(final String msg, final String source) {
+			return task;
+		}
+
+		@Override
+		protected boolean hasSource(final String alarmSource) {
+			return false;
+		}
+
+	}
+
+}
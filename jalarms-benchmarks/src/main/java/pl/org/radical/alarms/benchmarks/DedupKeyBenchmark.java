@@ -0,0 +1,89 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmFingerprint;
+import pl.org.radical.alarms.AlarmSender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the cost of building the dedup key for one alarm on a 5 channel sender, the way the cache used to
+ * do it (a formatted string with an MD5 digest, twice per channel) against the precomputed fingerprint, and
+ * measures a whole suppressed {@link AlarmSender#sendAlarm(String, String)} call. Run with <code>-prof gc</code>
+ * to see the allocation per call (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DedupKeyBenchmark {
+
+	private static final int CHANNELS = 5;
+
+	private final String source = "OrderService";
+	private final String message = "java.lang.IllegalStateException: Connection pool exhausted after 30000ms waiting for a connection";
+	private final AlarmChannel[] chans = new AlarmChannel[CHANNELS];
+	private AlarmSender sender;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		final List<AlarmChannel> list = new ArrayList<AlarmChannel>(CHANNELS);
+		for (int i = 0; i < CHANNELS; i++) {
+			chans[i] = new NullChannel(Integer.MAX_VALUE);
+			list.add(chans[i]);
+		}
+		sender = new AlarmSender();
+		sender.setAlarmChannels(list);
+		// The first call is sent, every call after that is suppressed by the cache
+		sender.sendAlarm(message, source);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sender.shutdown();
+	}
+
+	/** The keys that the cache used to build for one alarm: one in shouldResend and one in store, per channel. */
+	@Benchmark
+	public void legacyKeys(final Blackhole bh) {
+		for (final AlarmChannel c : chans) {
+			bh.consume(String.format("chan%s:%s:%s", c.hashCode(), source, DigestUtils.md5Hex(message)));
+			bh.consume(String.format("chan%s:%s:%s", c.hashCode(), source, DigestUtils.md5Hex(message)));
+		}
+	}
+
+	/** The keys the cache uses now: one fingerprint per alarm, combined with each channel index. */
+	@Benchmark
+	public void fingerprintKeys(final Blackhole bh) {
+		final long fp = AlarmFingerprint.of(source, message);
+		for (int i = 0; i < CHANNELS; i++) {
+			bh.consume(AlarmFingerprint.withChannel(fp, i));
+		}
+	}
+
+	/** A full call for an alarm that every channel suppresses, which is the common case during an exception storm. */
+	@Benchmark
+	public void sendAlarmSuppressed() {
+		sender.sendAlarm(message, source);
+	}
+
+}
@@ -0,0 +1,114 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmSender;
+import pl.org.radical.alarms.cache.AtomicAlarmCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures what sending an alarm costs the calling thread, with the checks done in that thread
+ * (<code>asyncQueue = 0</code>) and with the alarms put in the asynchronous queue for the dispatcher.
+ * The cache burns some CPU on each check to stand in for a remote cache such as memcached.
+ * {@link #trySendAlarm()} is the pure caller cost in async mode, since it returns right away when the queue
+ * is full; {@link #sendAlarm()} waits for room, so once the queue fills up it runs at the dispatcher's pace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark {
+
+	private static final int CHANNELS = 5;
+
+	@Param({ "0", "4096" })
+	public int asyncQueue;
+
+	/** CPU spent by the cache on each check, in JMH tokens. */
+	@Param({ "0", "2000" })
+	public int cacheCost;
+
+	private final String source = "OrderService";
+	private final String message = "java.lang.IllegalStateException: Connection pool exhausted after 30000ms waiting for a connection";
+	private AlarmSender sender;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		final List<AlarmChannel> list = new ArrayList<AlarmChannel>(CHANNELS);
+		for (int i = 0; i < CHANNELS; i++) {
+			list.add(new NullChannel(Integer.MAX_VALUE));
+		}
+		sender = new AlarmSender();
+		sender.setAlarmChannels(list);
+		sender.setAlarmCache(new SlowCache(cacheCost));
+		sender.setAsyncQueueSize(asyncQueue);
+		sender.init();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sender.shutdown();
+	}
+
+	@Benchmark
+	public void sendAlarm() {
+		sender.sendAlarm(message, source);
+	}
+
+	@Benchmark
+	public boolean trySendAlarm() {
+		return sender.trySendAlarm(message, source);
+	}
+
+	/** A cache that suppresses everything after spending some CPU on each check. */
+	static class SlowCache implements AtomicAlarmCache {
+
+		private final int cost;
+
+		SlowCache(final int cost) {
+			this.cost = cost;
+		}
+
+		@Override
+		public boolean tryAcquire(final AlarmChannel channel, final String source, final String message) {
+			Blackhole.consumeCPU(cost);
+			return false;
+		}
+
+		@Override
+		public void store(final AlarmChannel channel, final String source, final String message) {
+			Blackhole.consumeCPU(cost);
+		}
+
+		@Override
+		public boolean shouldResend(final AlarmChannel channel, final String source, final String message) {
+			Blackhole.consumeCPU(cost);
+			return false;
+		}
+
+		@Override
+		public void shutdown() {
+		}
+
+	}
+
+}
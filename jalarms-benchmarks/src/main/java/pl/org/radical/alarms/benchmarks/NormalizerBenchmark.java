@@ -0,0 +1,65 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.AlarmFingerprint;
+import pl.org.radical.alarms.NormalizingFingerprinter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of fingerprinting an alarm with {@link NormalizingFingerprinter}, compared to the exact
+ * fingerprint and to normalizing the message with a chain of regular expressions, the usual way of doing it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NormalizerBenchmark {
+
+	private static final Pattern UUID = Pattern.compile("\\b[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}\\b");
+	private static final Pattern IP = Pattern.compile("\\b\\d{1,3}(\\.\\d{1,3}){3}(:\\d+)?\\b");
+	private static final Pattern HEX = Pattern.compile("\\b(0[xX][0-9a-fA-F]+|(?=[0-9a-fA-F]*\\d)(?=[0-9a-fA-F]*[a-fA-F])[0-9a-fA-F]{8,})\\b");
+	private static final Pattern NUMBER = Pattern.compile("\\b\\d+(\\.\\d+)?");
+	private static final Pattern QUOTED = Pattern.compile("(?<![\\w])('[^']*'|\"[^\"]*\")");
+
+	private final String source = "OrderService";
+	private final String[] messages = { "Timeout after 3012ms on order 88123",
+	        "Request 123e4567-e89b-12d3-a456-426614174000 from 10.0.0.12:8080 failed: connection reset",
+	        "User 'jsmith' not found in the directory, 0x7ffe12ab", "Disk full on the database server" };
+	private final NormalizingFingerprinter fingerprinter = new NormalizingFingerprinter();
+	private int next;
+
+	@Benchmark
+	public long exact() {
+		return AlarmFingerprint.of(source, messages[next++ & 3]);
+	}
+
+	@Benchmark
+	public long normalized() {
+		return fingerprinter.fingerprint(source, messages[next++ & 3]);
+	}
+
+	@Benchmark
+	public long regex() {
+		String m = messages[next++ & 3];
+		m = UUID.matcher(m).replaceAll("<uuid>");
+		m = IP.matcher(m).replaceAll("<ip>");
+		m = HEX.matcher(m).replaceAll("<hex>");
+		m = NUMBER.matcher(m).replaceAll("<num>");
+		m = QUOTED.matcher(m).replaceAll("'*'");
+		return AlarmFingerprint.of(source, m);
+	}
+
+}
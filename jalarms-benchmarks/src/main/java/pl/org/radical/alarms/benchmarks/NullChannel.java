@@ -0,0 +1,32 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.AlarmChannel;
+
+/**
+ * A channel that does nothing with its alarms except counting them, so that benchmarks measure the
+ * AlarmSender and not the delivery.
+ */
+public class NullChannel implements AlarmChannel {
+
+	private final int resend;
+	public volatile long sent;
+
+	public NullChannel(final int minResendInterval) {
+		resend = minResendInterval;
+	}
+
+	@Override
+	public void send(final String msg, final String source) {
+		sent++;
+	}
+
+	@Override
+	public int getMinResendInterval() {
+		return resend;
+	}
+
+	@Override
+	public void shutdown() {
+	}
+
+}
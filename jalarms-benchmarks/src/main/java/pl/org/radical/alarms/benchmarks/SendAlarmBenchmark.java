@@ -0,0 +1,86 @@
+package pl.org.radical.alarms.benchmarks;
+
+import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmSender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link AlarmSender#sendAlarm(String, String)} as the number of channels grows, for an alarm that
+ * every channel suppresses and for alarms that every channel sends. The sent alarms cycle through 65536
+ * messages, and the channels allow resending after 1 millisecond, so each one is sent again when it comes back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendAlarmBenchmark {
+
+	private static final int MESSAGES = 1 << 16;
+
+	@Param({ "1", "5", "20" })
+	public int channels;
+
+	private final String source = "OrderService";
+	private final String[] messages = new String[MESSAGES];
+	private AlarmSender suppressing;
+	private AlarmSender sending;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		for (int i = 0; i < MESSAGES; i++) {
+			messages[i] = "java.lang.IllegalStateException: Connection pool exhausted, request " + i;
+		}
+		suppressing = createSender(Integer.MAX_VALUE);
+		sending = createSender(1);
+		suppressing.sendAlarm(messages[0], source);
+	}
+
+	private AlarmSender createSender(final int resend) {
+		final List<AlarmChannel> list = new ArrayList<AlarmChannel>(channels);
+		for (int i = 0; i < channels; i++) {
+			list.add(new NullChannel(resend));
+		}
+		final AlarmSender rv = new AlarmSender();
+		rv.setAlarmChannels(list);
+		return rv;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		suppressing.shutdown();
+		sending.shutdown();
+	}
+
+	/** An alarm that was already sent through every channel. */
+	@Benchmark
+	public void suppressed() {
+		suppressing.sendAlarm(messages[0], source);
+	}
+
+	/** An alarm that every channel sends. */
+	@Benchmark
+	public void sent() {
+		sending.sendAlarm(messages[next++ & MESSAGES - 1], source);
+	}
+
+}
@@ -1,8 +1,12 @@
 package pl.org.radical.alarms.channels;
 
-import pl.org.radical.alarms.AbstractAlarmChannel;
+import pl.org.radical.alarms.AbstractBatchingAlarmChannel;
+import pl.org.radical.alarms.Alarm;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Resource;
@@ -23,10 +27,13 @@ import org.springframework.mail.javamail.JavaMailSender;
  * property; simply set a map where the keys are the alarm sources and the values are SimpleMailMessage instances.
  * Each SimpleMailMessage can have a different text and different recipients (even different senders, if your SMTP
  * account allows it). This way, different mails can be sent depending on the alarm source.
+ * Several alarms can be sent in the same mail, one per line, by setting a {@link #setLinger(int) linger time};
+ * the alarms sent together with AlarmSender.sendAlarms() then also go in one mail for each source. Without
+ * a linger time, each alarm is sent in a mail of its own.
  * 
  * @author Enrique Zamudio
  */
-public class MailChannel extends AbstractAlarmChannel {
+public class MailChannel extends AbstractBatchingAlarmChannel {
 
 	private JavaMailSender mailer;
 	private SimpleMailMessage example;
@@ -62,7 +69,42 @@ public class MailChannel extends AbstractAlarmChannel {
 
 	@Override
 	protected Runnable createSendTask(final String msg, final String src) {
-		return new MailTask(msg, src);
+		return new MailTask(msg, src, new Date());
+	}
+
+	/** Creates a task that includes the time the alarm was raised in the mail, rather than the time it's sent. */
+	@Override
+	protected Runnable createSendTask(final Alarm alarm) {
+		return new MailTask(alarm.getMessage(), alarm.getSource(), new Date(alarm.getTimestamp()));
+	}
+
+	/**
+	 * Creates a task for each source in the batch, which sends all the alarms of that source in one mail.
+	 * If there's no linger time, the alarms are sent in a mail each, as if they were sent one by one.
+	 */
+	@Override
+	protected Runnable createBatchSendTask(final List<Alarm> alarms) {
+		if (getLinger() <= 0) {
+			return super.createBatchSendTask(alarms);
+		}
+		final Map<String, StringBuilder> texts = new LinkedHashMap<String, StringBuilder>();
+		final Map<String, Date> times = new LinkedHashMap<String, Date>();
+		for (final Alarm alarm : alarms) {
+			final StringBuilder sb = texts.get(alarm.getSource());
+			if (sb == null) {
+				// The time of the first alarm is added by the task
+				texts.put(alarm.getSource(), new StringBuilder(alarm.getMessage()));
+				times.put(alarm.getSource(), new Date(alarm.getTimestamp()));
+			} else {
+				sb.append(String.format("\n(%TT) %s", new Date(alarm.getTimestamp()), alarm.getMessage()));
+			}
+		}
+		final List<Runnable> tasks = new ArrayList<Runnable>(texts.size());
+		for (final Map.Entry<String, StringBuilder> e : texts.entrySet()) {
+			tasks.add(new MailTask(e.getValue().toString(), e.getKey(), times.get(e.getKey())));
+		}
+		// If some mails fail, only those are sent again
+		return createTaskList(tasks);
 	}
 
 	@Override
@@ -79,10 +121,12 @@ public class MailChannel extends AbstractAlarmChannel {
 	private class MailTask implements Runnable {
 		private final String msg;
 		private final String src;
+		private final Date when;
 
-		private MailTask(final String message, final String src) {
+		private MailTask(final String message, final String src, final Date when) {
 			msg = message;
 			this.src = src;
+			this.when = when;
 		}
 
 		@Override
@@ -97,15 +141,16 @@ public class MailChannel extends AbstractAlarmChannel {
 			final SimpleMailMessage mail = new SimpleMailMessage(original);
 			final int where = mail.getText().indexOf("${msg}");
 			if (where >= 0) {
-				mail.setText(String.format("(%TT) %s%s%s", new Date(), mail.getText().substring(0, where), msg,
+				mail.setText(String.format("(%TT) %s%s%s", when, mail.getText().substring(0, where), msg,
 				        mail.getText().substring(where + 6)));
 			} else {
-				mail.setText(String.format("(%TT) %s", new Date(), msg));
+				mail.setText(String.format("(%TT) %s", when, msg));
 			}
 			try {
 				mailer.send(mail);
 			} catch (final MailException ex) {
 				log.error("MailChannel cannot send alarm '{}'", msg, ex);
+				reportRetryableFailure(ex);
 			}
 		}
 
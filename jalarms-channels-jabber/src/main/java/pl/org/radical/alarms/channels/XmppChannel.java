@@ -159,6 +159,7 @@ public class XmppChannel extends AbstractAlarmChannel {
 				} else {
 					log.error("Error sending message to xmpp host and recipient, connection is closed or"
 					        + "the user is not authenticated ");
+					reportFailure(null);
 				}
 			}
 
@@ -203,6 +204,7 @@ public class XmppChannel extends AbstractAlarmChannel {
 
 			} catch (final XMPPException e) {
 				log.error("Error sending message to xmpp contact " + contact, e);
+				reportFailure(e);
 			}
 		}
 
@@ -127,6 +127,7 @@ public class MsnChannel extends AbstractAlarmChannel {
 							msn.sendText(d.getEmail(), msg);
 						} catch (final IllegalStateException ex) {
 							log.error("MsnChannel sending to {}", d.getEmail());
+							reportFailure(ex);
 						}
 					}
 				}
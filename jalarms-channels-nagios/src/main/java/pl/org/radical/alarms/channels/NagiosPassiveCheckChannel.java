@@ -87,10 +87,13 @@ public class NagiosPassiveCheckChannel extends AbstractAlarmChannel {
 				sender.send(payload);
 			} catch (final UnknownHostException uhe) {
 				log.error("Sending alarm to Nagios", uhe);
+				reportFailure(uhe);
 			} catch (final NagiosException ne) {
 				log.error("Sending alarm to Nagios", ne);
+				reportFailure(ne);
 			} catch (final IOException ioe) {
 				log.error("Sending alarm to Nagios", ioe);
+				reportRetryableFailure(ioe);
 			}
 		}
 	}
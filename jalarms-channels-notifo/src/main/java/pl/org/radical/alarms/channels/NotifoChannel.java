@@ -96,6 +96,7 @@ public class NotifoChannel extends AbstractAlarmChannel {
 					client.sendMessage(nmsg);
 				} catch (NotifoException e) {
 					log.error("Sending Notifo alarm to '{}'", dest);
+					reportFailure(e);
 				}
 			}
 		}
@@ -8,6 +8,7 @@ import ie.omk.smpp.net.TcpLink;
 import ie.omk.smpp.version.SMPPVersion;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -129,12 +130,15 @@ public class SmppChannel extends AbstractAlarmChannel {
 
 	/**
 	 * This task send a SMS to the numbers defined in the phones property of the SmppChannel.
+	 * If it's retried, it only sends the SMS to the numbers it couldn't send it to before.
 	 * 
 	 * @author Enrique Zamudio
 	 */
 	private class SmsTask implements Runnable {
 		private final String msg;
 		private final String asrc;
+		/** The numbers that failed in the last run, or null before the first one. */
+		private List<String> pending;
 
 		private SmsTask(final String m, final String source) {
 			msg = m;
@@ -144,10 +148,12 @@ public class SmppChannel extends AbstractAlarmChannel {
 		@Override
 		public void run() {
 			// Send through SMSC to every phone on the list
-			List<String> dsts = phones;
-			if (asrc != null && sourcePhones.containsKey(asrc)) {
+			List<String> dsts = pending != null ? pending : phones;
+			if (pending == null && asrc != null && sourcePhones.containsKey(asrc)) {
 				dsts = sourcePhones.get(asrc);
 			}
+			final List<String> failed = new ArrayList<String>();
+			IOException cause = null;
 			for (final String p : dsts) {
 				final SubmitSM req = new SubmitSM();
 				req.setSource(src);
@@ -157,8 +163,14 @@ public class SmppChannel extends AbstractAlarmChannel {
 					conn.sendRequest(req);
 				} catch (final IOException ex) {
 					log.error("Sending SMPP alarm to {}", p);
+					failed.add(p);
+					cause = ex;
 				}
 			}
+			pending = failed;
+			if (cause != null) {
+				reportRetryableFailure(cause);
+			}
 		}
 
 	}
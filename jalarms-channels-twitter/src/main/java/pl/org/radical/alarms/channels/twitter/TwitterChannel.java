@@ -1,6 +1,7 @@
 package pl.org.radical.alarms.channels.twitter;
 
 import pl.org.radical.alarms.AbstractAlarmChannel;
+import pl.org.radical.alarms.Alarm;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -124,7 +125,16 @@ public class TwitterChannel extends AbstractAlarmChannel {
 		if (sources != null && !sources.contains(src)) {
 			return null;
 		}
-		return new TwitterTask(msg);
+		return new TwitterTask(msg, new Date());
+	}
+
+	/** Creates a task that posts the time the alarm was raised, rather than the time it's sent. */
+	@Override
+	protected Runnable createSendTask(final Alarm alarm) {
+		if (sources != null && !sources.contains(alarm.getSource())) {
+			return null;
+		}
+		return new TwitterTask(alarm.getMessage(), new Date(alarm.getTimestamp()));
 	}
 
 	/**
@@ -151,13 +161,17 @@ public class TwitterChannel extends AbstractAlarmChannel {
 	 */
 	private final class TwitterTask implements Runnable {
 		private String msg;
-		private final Date ts = new Date();
+		private final Date ts;
+		/** Whether msg already has the time and prefix, from an earlier run that failed. */
+		private boolean formatted;
 
-		private TwitterTask(final String mensaje) {
+		private TwitterTask(final String mensaje, final Date ts) {
 			msg = mensaje;
+			this.ts = ts;
 		}
 
-		private void send(final String m) {
+		/** Posts a status to Twitter, and returns whether it was posted; if not, the failure is reported. */
+		private boolean send(final String m) {
 			try {
 				// Encode the alarm message. For some stupid reason, we have to URL encode
 				// using %20 instead of "+", and then URL encode that AGAIN for the signature.
@@ -200,30 +214,44 @@ public class TwitterChannel extends AbstractAlarmChannel {
 				conn.getOutputStream().flush();
 				conn.getInputStream().read();
 				conn.disconnect();
+				return true;
 			} catch (final UnsupportedEncodingException ex) {
 				log.error("TwitterChannel encoding access token (or alarm message)", ex);
+				reportFailure(ex);
 			} catch (final SocketTimeoutException ex) {
+				// It may have been posted, so it's not tried again
 				log.error("TwitterChannel not sure if alarm was sent (timeout reading response from twitter.com)");
+				reportFailure(ex);
 			} catch (final IOException ex) {
 				if (ex.getMessage() != null && ex.getMessage().startsWith("Server returned HTTP response code: 403 for URL")) {
+					// Twitter refused the status, trying again won't help
 					log.error("Twitter REST API {}", ex.getMessage());
+					reportFailure(ex);
 				} else {
 					log.error("Problems calling the Twitter REST API", ex);
+					reportRetryableFailure(ex);
 				}
 			} catch (final InvalidKeyException ex) {
 				log.error("OAuth problems signing the request for Twitter", ex);
+				reportFailure(ex);
 			}
+			return false;
 		}
 
 		@Override
 		public void run() {
 			int lim = 133;
-			if (prefix == null) {
-				msg = String.format("%1$TH%1$TM%1$TS:%2$s", ts, msg);
-			} else {
-				msg = String.format("%1$TH%1$TM%1$TS[%2$s]%3$s", ts, prefix, msg);
+			if (prefix != null) {
 				lim -= prefix.length() + 1;
 			}
+			if (!formatted) {
+				if (prefix == null) {
+					msg = String.format("%1$TH%1$TM%1$TS:%2$s", ts, msg);
+				} else {
+					msg = String.format("%1$TH%1$TM%1$TS[%2$s]%3$s", ts, prefix, msg);
+				}
+				formatted = true;
+			}
 			while (msg.length() > lim) {
 				// Split the message
 				// Find the first whitespace before limit
@@ -236,6 +264,10 @@ public class TwitterChannel extends AbstractAlarmChannel {
 					pos = lim - 1;
 				}
 				final String sub = String.format("%s-", msg.substring(0, pos));
+				if (!send(sub)) {
+					// A retry starts from this part, the ones before it were posted
+					return;
+				}
 				if (prefix == null) {
 					// sub = String.format("%1$TH%1$TM%1$TS:-%2$s", ts, msg.substring(0, pos));
 					msg = String.format("%1$TH%1$TM%1$TS:-%2$s", ts, msg.substring(pos + 1));
@@ -243,7 +275,6 @@ public class TwitterChannel extends AbstractAlarmChannel {
 					// sub = String.format("%1$TH%1$TM%1$TS[%2$s]-%3$s", ts, prefix, msg.substring(0, pos));
 					msg = String.format("%1$TH%1$TM%1$TS[%2$s]-%3$s", ts, prefix, msg.substring(pos + 1));
 				}
-				send(sub);
 				try {
 					Thread.sleep(1200);
 				} catch (final InterruptedException ex) {
@@ -1,12 +1,15 @@
 package pl.org.radical.alarms;
 
-import pl.org.radical.alarms.cache.AlarmCache;
+import pl.org.radical.alarms.cache.AtomicAlarmCache;
 import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.OperationTimeoutException;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -21,15 +24,18 @@ import de.huxhorn.lilith.slf4j.LoggerFactory;
  * resent. This is useful in environments where you have several applications which can be using similar
  * alarm channels, since the DefaultAlarmCache is internal to the app and events in two or more apps
  * will cause an alarm to be sent from each app.
+ * The AlarmSender uses {@link #tryAcquire(AlarmChannel, String, String)}, which maps to a single memcached
+ * <code>add</code>: only the first app to add the key for an alarm gets to send it.
  * 
  * @author Enrique Zamudio
  */
-public class AlarmMemcachedClient implements AlarmCache {
+public class AlarmMemcachedClient implements AtomicAlarmCache {
 
 	private final Logger log = LoggerFactory.getLogger(getClass());
 	private MemcachedClient mc;
 	private InetSocketAddress[] servers;
 	private int defint = 120;
+	private long timeout = 1000;
 
 	/**
 	 * Sets the default resend interval, for storing alarms unrelated to a specific channel,
@@ -43,6 +49,18 @@ public class AlarmMemcachedClient implements AlarmCache {
 		return defint;
 	}
 
+	/**
+	 * Sets the time in milliseconds to wait for memcached to answer an add operation. If there's no answer
+	 * in time, the alarm is sent. Default is 1 second.
+	 */
+	public void setTimeout(final long millis) {
+		timeout = millis;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
 	/**
 	 * Sets the list of memcached servers to be used. Each item must be the IP or hostname of the
 	 * server, which can include the port separated by colon e.g. 127.0.0.1:12345 (default port is 11211).
@@ -70,8 +88,8 @@ public class AlarmMemcachedClient implements AlarmCache {
 		mc.shutdown();
 	}
 
-	@Override
-	public void store(final AlarmChannel channel, final String source, final String message) {
+	/** Connects to memcached if it hasn't been done yet, returning false if it can't. */
+	private boolean connect() {
 		if (mc == null) {
 			synchronized (this) {
 				if (mc == null) {
@@ -79,15 +97,47 @@ public class AlarmMemcachedClient implements AlarmCache {
 						init();
 					} catch (final IOException ex) {
 						log.error("Initializing alarm memcached client", ex);
-						return;
+						return false;
 					}
 				}
 			}
 		}
-		final String k = channel == null ? String.format("jalarms:ALL:%s:%s", source == null ? "" : source, DigestUtils.md5Hex(message))
+		return true;
+	}
+
+	private String key(final AlarmChannel channel, final String source, final String message) {
+		return channel == null ? String.format("jalarms:ALL:%s:%s", source == null ? "" : source, DigestUtils.md5Hex(message))
 				: String.format("jalarms:chan%d:%s:%s", channel.hashCode(), source == null ? "" : source, DigestUtils.md5Hex(message));
-		// We don't care about the actual value, just that the key exists
-		mc.set(k, channel == null ? defint : channel.getMinResendInterval() / 1000, (byte) 0);
+	}
+
+	@Override
+	public void store(final AlarmChannel channel, final String source, final String message) {
+		if (connect()) {
+			// We don't care about the actual value, just that the key exists
+			mc.set(key(channel, source, message), channel == null ? defint : channel.getMinResendInterval() / 1000, (byte) 0);
+		}
+	}
+
+	@Override
+	public boolean tryAcquire(final AlarmChannel channel, final String source, final String message) {
+		final int exp = channel == null ? defint : channel.getMinResendInterval() / 1000;
+		if (exp <= 0 || !connect()) {
+			return true;
+		}
+		final String k = key(channel, source, message);
+		// add only succeeds if the key doesn't exist, so only one caller (in any app) gets to send the alarm
+		try {
+			return mc.add(k, exp, (byte) 0).get(timeout, TimeUnit.MILLISECONDS);
+		} catch (final TimeoutException ex) {
+			log.error("Timeout waiting to add {} to memcached", k, ex);
+		} catch (final ExecutionException ex) {
+			log.error("Adding key {} to memcached", k, ex.getCause() == null ? ex : ex.getCause());
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (final RuntimeException ex) {
+			log.error("Adding key {} to memcached", k, ex.getCause() == null ? ex : ex.getCause());
+		}
+		return true;
 	}
 
 	@Override
@@ -95,8 +145,7 @@ public class AlarmMemcachedClient implements AlarmCache {
 		if (mc == null) {
 			return true;
 		}
-		final String k = channel == null ? String.format("jalarms:ALL:%s:%s", source == null ? "" : source, DigestUtils.md5Hex(message))
-				: String.format("jalarms:chan%d:%s:%s", channel.hashCode(), source == null ? "" : source, DigestUtils.md5Hex(message));
+		final String k = key(channel, source, message);
 		// If the entry exists, don't resend
 		try {
 			return mc.get(k) == null;
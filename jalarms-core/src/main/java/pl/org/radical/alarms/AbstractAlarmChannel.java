@@ -1,8 +1,22 @@
 package pl.org.radical.alarms;
 
+import pl.org.radical.alarms.metrics.ChannelStats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.huxhorn.lilith.slf4j.Logger;
 import de.huxhorn.lilith.slf4j.LoggerFactory;
@@ -14,15 +28,162 @@ import de.huxhorn.lilith.slf4j.LoggerFactory;
  * Runnable in every call; this Runnable will be queued in a thread pool to be executed
  * as soon as possible, but without interrupting normal program flow.
  * This class already handles what is needed to avoid sending repeated messages very often.
+ * It also has a circuit breaker: when the tasks of a channel report several failures in a row (see
+ * {@link #reportFailure(Throwable)}), the channel stops trying to send alarms for a while, instead of
+ * waiting for every one of them to time out. Tasks that fail for a reason that may go away (see
+ * {@link #reportRetryableFailure(Throwable)}) are run again later, with exponential backoff, while the
+ * channel goes on with the next alarms.
+ * The tasks wait in a separate lane for each alarm severity, so that a critical alarm doesn't have to wait
+ * for thousands of warnings queued before it; see {@link #setPriorityOrder(PriorityOrder)}. The queue
+ * is bounded, so that a channel that can't keep up doesn't use up the heap; see {@link #setQueueCapacity(int)}
+ * and {@link #setQueueOverflow(QueueOverflow)}. The tasks are run by a thread of the channel's own, which
+ * stops after a minute without alarms, or by an executor shared with other channels; see
+ * {@link #setDeliveryExecutor(Executor)}.
  * 
  * @author Enrique Zamudio
  */
-public abstract class AbstractAlarmChannel implements AlarmChannel {
+public abstract class AbstractAlarmChannel implements StructuredAlarmChannel, BatchAlarmChannel {
+
+	/** The states of the circuit breaker of a channel. */
+	public enum BreakerState {
+		/** Alarms are sent normally. */
+		CLOSED,
+		/** The channel has failed too many times in a row; alarms are not sent. */
+		OPEN,
+		/** The cool-down is over and one alarm is being sent to check if the channel works again. */
+		HALF_OPEN
+	}
+
+	/** How a channel chooses the next alarm to send among the alarms of different severities. */
+	public enum PriorityOrder {
+		/** Always send the alarms with the highest severity first. Lower severities wait while there are higher ones. */
+		STRICT,
+		/**
+		 * Send alarms of each severity in proportion to their weights (see {@link AbstractAlarmChannel#setPriorityWeights(int[])}),
+		 * so that alarms of low severity are still sent, only slower, while there are alarms of higher severity.
+		 */
+		WEIGHTED
+	}
+
+	/**
+	 * What to do with an alarm when the queue of a channel is full and there are no alarms of lower severity
+	 * to drop instead.
+	 */
+	public enum QueueOverflow {
+		/** Drop the oldest alarm of the same severity to make room for the new one. */
+		DROP_OLDEST,
+		/** Drop the new alarm. */
+		DROP_NEWEST,
+		/** Drop the new alarm if the same alarm is already waiting to be sent, otherwise drop it anyway. */
+		COALESCE,
+		/**
+		 * Drop the new alarm, and count it. When the queue is down to half its capacity, a single
+		 * "N alarms were dropped" alarm is sent, with the highest severity of the dropped alarms.
+		 */
+		SUMMARY
+	}
 
 	protected final Logger log = LoggerFactory.getLogger(getClass());
-	private final ExecutorService sendPool = Executors.newSingleThreadExecutor();
-	private boolean up = true;
+	private final PriorityLaneQueue sendQueue = new PriorityLaneQueue(10000, QueueOverflow.SUMMARY) {
+		@Override
+		void shed(final Task task) {
+			stats.recordShed(task.size());
+			lostProbe(task);
+			if (saturated.compareAndSet(false, true)) {
+				log.warn("Alarm channel queue is full ({} tasks), dropping alarms", getCapacity());
+			}
+			if (getOverflow() == QueueOverflow.SUMMARY) {
+				int severity;
+				while ((severity = spilledSeverity.get()) < task.lane && !spilledSeverity.compareAndSet(severity, task.lane)) {
+					// Retry until the highest severity is recorded
+				}
+				spilled.addAndGet(task.size());
+			}
+		}
+
+		@Override
+		void coalesced(final Task task) {
+			stats.recordDeduplicated();
+			lostProbe(task);
+		}
+	};
+	/** The number of tasks to run before letting the other channels that share the executor have a turn. */
+	private static final int DRAIN_BATCH = 64;
+	/** Milliseconds to wait before handing the drainer again to an executor that rejected it. */
+	private static final long REJECTED_DELAY = 50;
+	private static final Random JITTER = new Random();
+	private volatile Executor deliveryExecutor;
+	private volatile ExecutorService ownPool;
+	private int concurrency = 1;
+	/** The number of runs of {@link #drainer} queued to the executor or running. */
+	private final AtomicInteger drainers = new AtomicInteger();
+	/** Runs the tasks in the queue, until it's empty or it has run {@link #DRAIN_BATCH} of them. */
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			for (;;) {
+				Runnable task;
+				for (int n = 0; n < DRAIN_BATCH && (task = sendQueue.poll()) != null; n++) {
+					task.run();
+				}
+				if (!sendQueue.isEmpty()) {
+					try {
+						// Let the other channels have a turn, and come back
+						executor().execute(this);
+						return;
+					} catch (final RejectedExecutionException ex) {
+						continue;
+					}
+				}
+				if (drainers.decrementAndGet() == 0 && !up) {
+					// Wake up awaitDrained
+					synchronized (this) {
+						notifyAll();
+					}
+				}
+				// A task could have been queued after the last poll, when this run still counted as running
+				if (sendQueue.isEmpty() || !claimDrainer()) {
+					return;
+				}
+			}
+		}
+	};
+	private final ChannelStats stats = new ChannelStats(sendQueue);
+	private final AtomicBoolean saturated = new AtomicBoolean();
+	/** The alarms dropped from a full queue with the SUMMARY policy, and the highest of their severities. */
+	private final AtomicInteger spilled = new AtomicInteger();
+	private final AtomicInteger spilledSeverity = new AtomicInteger();
+	/** The number of alarms whose tasks are waiting to be retried. */
+	private final AtomicInteger retrying = new AtomicInteger();
+	/** The number of alarms whose tasks would have been retried, but the channel had been shut down. */
+	private final AtomicInteger abandoned = new AtomicInteger();
+	private volatile boolean up = true;
 	private int minResend = 60000;
+	private int failThreshold = 5;
+	private int coolDown = 60000;
+	private int outboxSize;
+	private final AtomicReference<BreakerState> state = new AtomicReference<BreakerState>(BreakerState.CLOSED);
+	private volatile long openedAt;
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final Queue<Alarm> outbox = new ConcurrentLinkedQueue<Alarm>();
+	private final AtomicInteger outboxCount = new AtomicInteger();
+	/** Set by {@link #reportFailure(Throwable)} in the thread that runs a task. */
+	private final ThreadLocal<Throwable> taskFailure = new ThreadLocal<Throwable>();
+	private int maxAttempts = 3;
+	private int retryBackoff = 1000;
+	private int maxBackoff = 60000;
+	private int maxRetryAge = 300000;
+
+	/** Wraps the cause of a failure reported with {@link #reportRetryableFailure(Throwable)}. */
+	private static final class RetryableFailure extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		RetryableFailure(final Throwable cause) {
+			super(cause);
+		}
+	}
 
 	/**
 	 * Sets the minimum amount of time between equal messsages. The same message will not be sent through
@@ -42,6 +203,192 @@ public abstract class AbstractAlarmChannel implements AlarmChannel {
 		return minResend;
 	}
 
+	/**
+	 * Sets the number of consecutive failures after which the circuit breaker opens and the channel stops
+	 * sending alarms. Default is 5; 0 disables the circuit breaker.
+	 */
+	public void setFailureThreshold(final int value) {
+		failThreshold = value;
+	}
+
+	public int getFailureThreshold() {
+		return failThreshold;
+	}
+
+	/**
+	 * Sets the time, in milliseconds, that the circuit breaker stays open before the channel tries to send
+	 * an alarm again. Default is 60000. After this time, the next alarm is sent as a probe: if it's sent,
+	 * the breaker closes and the channel works normally again; if it fails, the breaker stays open for
+	 * another cool-down.
+	 */
+	public void setCoolDown(final int millis) {
+		coolDown = millis;
+	}
+
+	public int getCoolDown() {
+		return coolDown;
+	}
+
+	/**
+	 * Sets the maximum number of alarms to keep while the circuit breaker is open, to send them once the channel
+	 * works again. Default is 0, which means the alarms are only counted. When the outbox is full, newer alarms
+	 * are counted but not kept.
+	 */
+	public void setOutboxSize(final int value) {
+		outboxSize = value;
+	}
+
+	public int getOutboxSize() {
+		return outboxSize;
+	}
+
+	/** Sets how the channel chooses the next alarm to send. Default is {@link PriorityOrder#STRICT}. */
+	public void setPriorityOrder(final PriorityOrder value) {
+		sendQueue.setWeighted(value == PriorityOrder.WEIGHTED);
+	}
+
+	public PriorityOrder getPriorityOrder() {
+		return sendQueue.isWeighted() ? PriorityOrder.WEIGHTED : PriorityOrder.STRICT;
+	}
+
+	/**
+	 * Sets the share of the channel that each severity gets with {@link PriorityOrder#WEIGHTED}, in order
+	 * from {@link Alarm.Severity#INFO} to {@link Alarm.Severity#CRITICAL}. Default is 1, 2, 4, 8: while there
+	 * are alarms of every severity waiting, for every info alarm the channel sends 2 warnings, 4 errors and
+	 * 8 critical alarms.
+	 */
+	public void setPriorityWeights(final int[] value) {
+		sendQueue.setWeights(value);
+	}
+
+	public int[] getPriorityWeights() {
+		return sendQueue.getWeights();
+	}
+
+	/**
+	 * Sets the maximum number of tasks waiting to be sent. Default is 10000; 0 means there is no limit.
+	 * When the queue is full, the oldest task of the lowest severity is dropped to make room for a new one of
+	 * higher severity; if there is none, the {@link #setQueueOverflow(QueueOverflow) overflow policy} decides
+	 * what to drop. Dropped alarms are counted in the {@link #getStats() stats} as shed, so a channel that
+	 * can't keep up can be told by its shed count.
+	 */
+	public void setQueueCapacity(final int value) {
+		sendQueue.setCapacity(value);
+	}
+
+	public int getQueueCapacity() {
+		return sendQueue.getCapacity();
+	}
+
+	/** Sets what to drop when the queue is full. Default is {@link QueueOverflow#SUMMARY}. */
+	public void setQueueOverflow(final QueueOverflow value) {
+		sendQueue.setOverflow(value);
+	}
+
+	public QueueOverflow getQueueOverflow() {
+		return sendQueue.getOverflow();
+	}
+
+	/**
+	 * Sets the executor that runs the tasks of this channel, usually one shared with other channels, from
+	 * {@link ChannelExecutors}. Default is null, which means the channel has threads of its own, as many as
+	 * its {@link #setConcurrency(int) concurrency}, which are stopped after a minute without alarms. The
+	 * channel never shuts down an executor set here. Must be set before sending any alarms.
+	 */
+	public void setDeliveryExecutor(final Executor value) {
+		deliveryExecutor = value;
+	}
+
+	public Executor getDeliveryExecutor() {
+		return deliveryExecutor;
+	}
+
+	/**
+	 * Sets the maximum number of alarms this channel sends at the same time. Default is 1, which means the
+	 * alarms are sent one at a time, in the order of the queue. With more, a delivery that waits for a slow
+	 * server doesn't hold up the rest, but the alarms can arrive in a different order; only raise it for
+	 * channels whose tasks can run at the same time. Must be set before sending any alarms.
+	 */
+	public void setConcurrency(final int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("The concurrency must be at least 1");
+		}
+		concurrency = value;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Sets the maximum number of times a task is run when it reports a retryable failure, counting the
+	 * first one. Default is 3; 1 means tasks are never retried.
+	 */
+	public void setMaxAttempts(final int value) {
+		maxAttempts = value;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Sets the time to wait before retrying a task the first time, in milliseconds. Default is 1000. The
+	 * time doubles with each attempt, up to the {@link #setMaxRetryBackoff(int) maximum}, and a random part
+	 * of up to half of it is taken off.
+	 */
+	public void setRetryBackoff(final int millis) {
+		retryBackoff = millis;
+	}
+
+	public int getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	/** Sets the maximum time to wait before retrying a task, in milliseconds. Default is 60000. */
+	public void setMaxRetryBackoff(final int millis) {
+		maxBackoff = millis;
+	}
+
+	public int getMaxRetryBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * Sets the maximum age, in milliseconds, of the alarms that are retried. Default is 300000. A task is given
+	 * up if its oldest alarm would be older than this by the next attempt, since by then the alarm is
+	 * probably not news anymore.
+	 */
+	public void setMaxRetryAge(final int millis) {
+		maxRetryAge = millis;
+	}
+
+	public int getMaxRetryAge() {
+		return maxRetryAge;
+	}
+
+	public BreakerState getBreakerState() {
+		return state.get();
+	}
+
+	/** Returns the number of tasks that have failed since the channel was created. */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/** Returns the number of alarms that were not sent because the circuit breaker was open. */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * Returns the counters of this channel: alarms are counted as sent or failed when their task finishes,
+	 * and the latency is measured until then.
+	 */
+	public ChannelStats getStats() {
+		return stats;
+	}
+
 	/**
 	 * Sends an alarm message for the specified source. If the concrete subclass returns null from the
 	 * {@link #createSendTask(String, String)} method, no alarm is sent, and no record is made of the
@@ -49,26 +396,463 @@ public abstract class AbstractAlarmChannel implements AlarmChannel {
 	 */
 	@Override
 	public void send(final String msg, final String source) {
+		send(new Alarm(msg, source));
+	}
+
+	/**
+	 * Sends an alarm. If the concrete subclass returns null from the {@link #createSendTask(Alarm)} method,
+	 * no alarm is sent.
+	 */
+	@Override
+	public void send(final Alarm alarm) {
 		if (!up) {
 			return;
 		}
-		final Runnable task = createSendTask(msg, source);
+		final boolean probe = admit();
+		if (!probe && state.get() != BreakerState.CLOSED) {
+			skip(alarm);
+			return;
+		}
+		final Runnable task;
+		try {
+			task = createSendTask(alarm);
+		} catch (final RuntimeException ex) {
+			if (probe) {
+				reopen();
+			}
+			throw ex;
+		}
+		execute(guard(task, alarm, null, probe));
+	}
+
+	/**
+	 * Sends several alarms. The task returned by {@link #createBatchSendTask(List)} is queued to the thread
+	 * pool as a single unit.
+	 */
+	@Override
+	public void send(final List<Alarm> alarms) {
+		if (!up) {
+			return;
+		}
+		final boolean probe = admit();
+		if (!probe && state.get() != BreakerState.CLOSED) {
+			for (final Alarm alarm : alarms) {
+				skip(alarm);
+			}
+			return;
+		}
+		final Runnable task;
+		try {
+			task = createBatchSendTask(alarms);
+		} catch (final RuntimeException ex) {
+			if (probe) {
+				reopen();
+			}
+			throw ex;
+		}
+		execute(guard(task, null, alarms, probe));
+	}
+
+	private void execute(final Runnable task) {
 		if (task != null) {
+			sendQueue.offer(task);
+			startDrainer();
+		}
+	}
+
+	/**
+	 * Hands a run of the drainer to the executor, unless there are as many as the concurrency allows. If the
+	 * executor rejects it, the tasks stay in the queue and the drainer is handed again a bit later, rather
+	 * than run in the thread that sends the alarm; if the executor is shut down, they wait for
+	 * {@link #shutdownNow()} to count them.
+	 */
+	private void startDrainer() {
+		if (claimDrainer()) {
+			final Executor e = executor();
 			try {
-				// Queue to the thread pool
-				sendPool.execute(task);
+				e.execute(drainer);
 			} catch (final RejectedExecutionException ex) {
-				// Run in the calling thread
+				drainers.decrementAndGet();
+				if (e instanceof ExecutorService && ((ExecutorService) e).isShutdown()) {
+					return;
+				}
+				log.debug("Executor is busy, {} alarm tasks wait in the queue", sendQueue.size());
+				ChannelExecutors.scheduler().schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (!sendQueue.isEmpty()) {
+							startDrainer();
+						}
+					}
+				}, REJECTED_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/** Counts a new run of the drainer, unless there are as many as the concurrency allows. */
+	private boolean claimDrainer() {
+		for (;;) {
+			final int n = drainers.get();
+			if (n >= concurrency) {
+				return false;
+			}
+			if (drainers.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/** Returns the delivery executor, or the channel's own pool, creating it the first time. */
+	private Executor executor() {
+		final Executor e = deliveryExecutor;
+		if (e != null) {
+			return e;
+		}
+		if (ownPool == null) {
+			synchronized (this) {
+				if (ownPool == null) {
+					final ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+					        new LinkedBlockingQueue<Runnable>(), ChannelExecutors.threadFactory("jalarms-channel", false));
+					pool.allowCoreThreadTimeOut(true);
+					if (!up) {
+						pool.shutdown();
+					}
+					ownPool = pool;
+				}
+			}
+		}
+		return ownPool;
+	}
+
+	/**
+	 * Checks if the circuit breaker allows a probe. This happens when the breaker is open and the cool-down
+	 * is over; only the first caller gets to send the probe.
+	 * 
+	 * @return true if the alarm should be sent as the probe.
+	 */
+	private boolean admit() {
+		return state.get() == BreakerState.OPEN && System.nanoTime() - openedAt >= coolDown * 1000000L
+		        && state.compareAndSet(BreakerState.OPEN, BreakerState.HALF_OPEN);
+	}
+
+	/** Counts an alarm that is not sent because the circuit breaker is open, and keeps it if there's room in the outbox. */
+	private void skip(final Alarm alarm) {
+		skipped.incrementAndGet();
+		stats.recordFailed(1);
+		if (outboxSize > 0) {
+			if (outboxCount.incrementAndGet() <= outboxSize) {
+				outbox.offer(alarm);
+			} else {
+				outboxCount.decrementAndGet();
+			}
+		}
+	}
+
+	/** Wraps a task so that its outcome updates the circuit breaker, and it goes to the lane of its alarms. */
+	private Runnable guard(final Runnable task, final Alarm alarm, final List<Alarm> alarms, final boolean probe) {
+		if (task == null) {
+			if (probe) {
+				// Nothing to probe with, let the next alarm do it
+				state.compareAndSet(BreakerState.HALF_OPEN, BreakerState.OPEN);
+			}
+			return null;
+		}
+		return new GuardedTask(task, alarm, alarms, probe, 1);
+	}
+
+	/** Reopens the breaker if the task dropped from the queue was the probe. */
+	private void lostProbe(final PriorityLaneQueue.Task task) {
+		if (task instanceof GuardedTask && ((GuardedTask) task).probe) {
+			reopen();
+		}
+	}
+
+	/**
+	 * Opens the breaker again, for another cool-down, when the probe is lost before it runs. Otherwise the
+	 * breaker would stay half open, waiting for the outcome of a probe that never comes.
+	 */
+	private void reopen() {
+		openedAt = System.nanoTime();
+		state.compareAndSet(BreakerState.HALF_OPEN, BreakerState.OPEN);
+	}
+
+	/** A task of the subclass, with what's needed to update the circuit breaker and retry it. */
+	private final class GuardedTask extends PriorityLaneQueue.Task {
+
+		private final Runnable task;
+		private final boolean probe;
+		private final int attempt;
+
+		GuardedTask(final Runnable task, final Alarm alarm, final List<Alarm> alarms, final boolean probe, final int attempt) {
+			super(alarm, alarms);
+			this.task = task;
+			this.probe = probe;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void run() {
+			drained();
+			final boolean breaker = failThreshold > 0;
+			if (breaker && !probe && state.get() != BreakerState.CLOSED) {
+				// The breaker opened while this task was queued
+				if (alarm != null) {
+					skip(alarm);
+				} else {
+					for (final Alarm a : alarms) {
+						skip(a);
+					}
+				}
+				return;
+			}
+			taskFailure.remove();
+			Throwable failure;
+			try {
 				task.run();
+				failure = taskFailure.get();
+			} catch (final RuntimeException ex) {
+				log.error("Sending alarm", ex);
+				failure = ex;
+			} finally {
+				taskFailure.remove();
 			}
+			if (failure == null) {
+				final long now = System.nanoTime();
+				if (alarm != null) {
+					stats.recordSent(now - alarm.getNanoTime());
+				} else {
+					for (int i = 0; i < alarms.size(); i++) {
+						stats.recordSent(now - alarms.get(i).getNanoTime());
+					}
+				}
+				if (breaker) {
+					succeeded(probe);
+				}
+			} else {
+				final boolean retryable = failure instanceof RetryableFailure;
+				if (retryable) {
+					failure = failure.getCause();
+				}
+				if (breaker) {
+					failed(probe, failure);
+				}
+				if (!retryable || !retry(this)) {
+					stats.recordFailed(size());
+				}
+			}
+		}
+
+		/** Returns the {@link System#nanoTime()} at which the oldest alarm of the task was raised. */
+		long raised() {
+			if (alarm != null) {
+				return alarm.getNanoTime();
+			}
+			long oldest = alarms.get(0).getNanoTime();
+			for (int i = 1; i < alarms.size(); i++) {
+				if (alarms.get(i).getNanoTime() - oldest < 0) {
+					oldest = alarms.get(i).getNanoTime();
+				}
+			}
+			return oldest;
+		}
+
+	}
+
+	/**
+	 * Schedules another attempt of a task that failed, if it has attempts and time left.
+	 * 
+	 * @return false if the task is given up.
+	 */
+	private boolean retry(final GuardedTask failed) {
+		if (failed.attempt < maxAttempts && !up) {
+			abandoned.addAndGet(failed.size());
+		} else if (failed.attempt < maxAttempts) {
+			final long delay = backoff(failed.attempt);
+			final long age = (System.nanoTime() - failed.raised()) / 1000000L;
+			if (age + delay <= maxRetryAge) {
+				stats.recordRetry();
+				retrying.addAndGet(failed.size());
+				ChannelExecutors.scheduler().schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (up) {
+							execute(new GuardedTask(failed.task, failed.alarm, failed.alarms, false, failed.attempt + 1));
+						} else {
+							abandoned.addAndGet(failed.size());
+							stats.recordGaveUp(failed.size());
+							stats.recordFailed(failed.size());
+						}
+						// Only now, so that shutdownNow doesn't miss the alarms between here and the queue
+						retrying.addAndGet(-failed.size());
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+				return true;
+			}
+		}
+		stats.recordGaveUp(failed.size());
+		log.warn("Giving up sending {} alarms after {} attempts", failed.size(), failed.attempt);
+		return false;
+	}
+
+	/**
+	 * Returns the time to wait before the next attempt of a task, in milliseconds: the initial backoff,
+	 * doubled for each attempt up to the maximum, of which a random half is taken off so that the tasks
+	 * that failed together are not retried together.
+	 */
+	private long backoff(final int attempt) {
+		final long base = Math.min(maxBackoff, (long) retryBackoff << Math.min(attempt - 1, 30));
+		return base - (long) (JITTER.nextDouble() * (base / 2));
+	}
+
+	/**
+	 * Checks, before running each task, whether the queue was full and is now down to half its capacity.
+	 * If so, sends the summary of the alarms dropped in the meantime.
+	 */
+	private void drained() {
+		if (saturated.get() && sendQueue.size() <= sendQueue.getCapacity() / 2 && saturated.compareAndSet(true, false)) {
+			log.info("Alarm channel queue is no longer full");
+		}
+		// Once the channel is shut down the summary can't be sent, and the dropped alarms are counted by shutdownNow
+		if (spilled.get() > 0 && !saturated.get() && up) {
+			sendSummary();
+		}
+	}
+
+	/** Sends the summary of the alarms dropped from the queue since the last one. */
+	private void sendSummary() {
+		final int severity = spilledSeverity.getAndSet(0);
+		final int n = spilled.getAndSet(0);
+		if (n > 0) {
+			send(new Alarm(String.format("%d alarms were dropped because the alarm channel could not keep up", n), null,
+			        Alarm.Severity.values()[severity], null));
 		}
 	}
 
-	/** Shuts down the thread pool and rejects any more incoming alarms. */
+	private void succeeded(final boolean probe) {
+		if (consecutiveFailures.get() != 0) {
+			consecutiveFailures.set(0);
+		}
+		if (probe && state.compareAndSet(BreakerState.HALF_OPEN, BreakerState.CLOSED)) {
+			final List<Alarm> pending = new ArrayList<Alarm>(outboxCount.get());
+			Alarm a;
+			while ((a = outbox.poll()) != null) {
+				outboxCount.decrementAndGet();
+				pending.add(a);
+			}
+			log.info("Alarm channel works again, sending {} alarms kept while it was down", pending.size());
+			if (!pending.isEmpty()) {
+				send(pending);
+			}
+		}
+	}
+
+	private void failed(final boolean probe, final Throwable cause) {
+		failures.incrementAndGet();
+		if (probe) {
+			openedAt = System.nanoTime();
+			state.set(BreakerState.OPEN);
+		} else if (consecutiveFailures.incrementAndGet() >= failThreshold && state.get() == BreakerState.CLOSED) {
+			openedAt = System.nanoTime();
+			if (state.compareAndSet(BreakerState.CLOSED, BreakerState.OPEN)) {
+				log.error("Alarm channel failed {} times in a row, it will not send alarms for {} millis", consecutiveFailures.get(),
+				        coolDown, cause);
+			}
+		}
+	}
+
+	/**
+	 * Reports that the task that is running could not send its alarm, but might if it tried again later, for
+	 * example because the server didn't answer. The task counts as failed for the circuit breaker, and it's
+	 * run again after a while, as long as it has {@link #setMaxAttempts(int) attempts} and
+	 * {@link #setMaxRetryAge(int) time} left; meanwhile the channel goes on with the next alarms. A task
+	 * that reports this must be able to run again, and should only try again what it couldn't do before.
+	 * 
+	 * @param cause
+	 *            The reason for the failure. Can be null.
+	 */
+	protected void reportRetryableFailure(final Throwable cause) {
+		taskFailure.set(new RetryableFailure(cause == null ? new IllegalStateException("Alarm not sent") : cause));
+	}
+
+	/**
+	 * Reports that the task that is running could not send its alarm. Tasks must call this method from the
+	 * thread that runs them, usually where they catch the exception from the server they send the alarms to;
+	 * a task that throws a RuntimeException also counts as failed. Tasks that finish without calling this
+	 * method count as successful. After {@link #getFailureThreshold()} failures in a row, the circuit breaker
+	 * opens.
+	 * 
+	 * @param cause
+	 *            The reason for the failure. Can be null.
+	 */
+	protected void reportFailure(final Throwable cause) {
+		taskFailure.set(cause == null ? new IllegalStateException("Alarm not sent") : cause);
+	}
+
+	/**
+	 * Shuts down the channel's own threads, after they send the alarms already queued, and rejects any more
+	 * incoming alarms. A {@link #setDeliveryExecutor(Executor) delivery executor} is not shut down.
+	 * This doesn't wait for the alarms to be sent; see {@link #awaitDrained(long, TimeUnit)}.
+	 */
 	@Override
 	public void shutdown() {
+		if (up && spilled.get() > 0) {
+			// The last chance to send it
+			sendSummary();
+		}
 		up = false;
-		sendPool.shutdown();
+		synchronized (this) {
+			if (ownPool != null) {
+				ownPool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the channel to send the alarms that were queued when it was {@link #shutdown() shut down}.
+	 * The tasks waiting to be retried are not waited for, since they're given up once the channel is shut
+	 * down.
+	 * 
+	 * @return true if the queue is empty and no task is running, false if the timeout elapsed first.
+	 */
+	public boolean awaitDrained(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (drainer) {
+			while (drainers.get() > 0 || !sendQueue.isEmpty()) {
+				final long left = deadline - System.nanoTime();
+				if (left <= 0) {
+					return false;
+				}
+				// The drainer wakes us up when it stops, but look again now and then in case it's not running at all
+				drainer.wait(Math.max(1, Math.min(100, TimeUnit.NANOSECONDS.toMillis(left))));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Shuts down the channel without sending the alarms still queued, and interrupts the tasks that are
+	 * running in the channel's own threads. The dropped alarms, and the ones waiting to be retried, count
+	 * as failed.
+	 * 
+	 * @return the number of alarms that were not sent: the ones dropped now, the ones waiting to be retried,
+	 *         the ones whose tasks failed after {@link #shutdown()} and could not be retried, and the ones
+	 *         dropped from a full queue whose summary could not be sent. The alarms being sent when this is
+	 *         called are not counted.
+	 */
+	public int shutdownNow() {
+		up = false;
+		int lost = 0;
+		Runnable task;
+		while ((task = sendQueue.poll()) != null) {
+			lost += ((PriorityLaneQueue.Task) task).size();
+		}
+		stats.recordFailed(lost);
+		synchronized (this) {
+			if (ownPool != null) {
+				ownPool.shutdownNow();
+			}
+		}
+		return lost + retrying.get() + abandoned.getAndSet(0) + spilled.getAndSet(0);
 	}
 
 	/**
@@ -84,6 +868,83 @@ public abstract class AbstractAlarmChannel implements AlarmChannel {
 	 */
 	abstract protected Runnable createSendTask(String msg, String source);
 
+	/**
+	 * Creates the task to send an alarm. By default this calls {@link #createSendTask(String, String)} with the
+	 * alarm's message and source; subclasses can override it to use the rest of the alarm's data, such as the
+	 * time it was raised or its severity.
+	 */
+	protected Runnable createSendTask(final Alarm alarm) {
+		return createSendTask(alarm.getMessage(), alarm.getSource());
+	}
+
+	/**
+	 * Creates a single task to send several alarms. By default, this creates the tasks for each alarm
+	 * with {@link #createSendTask(Alarm)} and runs them in order, as in {@link #createTaskList(List)}.
+	 * Subclasses that can deliver many alarms at once should override this method to do so. It can return
+	 * null if nothing is to be sent.
+	 * 
+	 * @param alarms
+	 *            The alarms to be sent, in the order they were raised. They can have different sources.
+	 */
+	protected Runnable createBatchSendTask(final List<Alarm> alarms) {
+		final List<Runnable> tasks = new ArrayList<Runnable>(alarms.size());
+		for (final Alarm alarm : alarms) {
+			final Runnable task = createSendTask(alarm);
+			if (task != null) {
+				tasks.add(task);
+			}
+		}
+		return tasks.isEmpty() ? null : createTaskList(tasks);
+	}
+
+	/**
+	 * Returns a task that runs several tasks in order, for subclasses that send a batch as several
+	 * deliveries. A task that throws a RuntimeException counts as failed, and the rest still run. If any of
+	 * them {@link #reportRetryableFailure(Throwable) can be retried}, the whole task is, but only the tasks
+	 * that failed that way run again, so the alarms already sent are not sent twice.
+	 */
+	protected Runnable createTaskList(final List<Runnable> tasks) {
+		return new TaskList(tasks);
+	}
+
+	/** Runs several tasks, and keeps the ones to run again if it's retried. */
+	private final class TaskList implements Runnable {
+
+		/** Replaced by the tasks to retry after each run, which is never at the same time as another. */
+		private volatile List<Runnable> pending;
+
+		TaskList(final List<Runnable> tasks) {
+			pending = tasks;
+		}
+
+		@Override
+		public void run() {
+			final List<Runnable> retry = new ArrayList<Runnable>();
+			Throwable failure = null;
+			for (final Runnable task : pending) {
+				taskFailure.remove();
+				Throwable f;
+				try {
+					task.run();
+					f = taskFailure.get();
+				} catch (final RuntimeException ex) {
+					log.error("Sending alarm in batch", ex);
+					f = ex;
+				}
+				if (f instanceof RetryableFailure) {
+					retry.add(task);
+					failure = f;
+				} else if (f != null && !(failure instanceof RetryableFailure)) {
+					failure = f;
+				}
+			}
+			pending = retry;
+			// A retryable failure wins, so that the tasks that can be retried are
+			taskFailure.set(failure);
+		}
+
+	}
+
 	/**
 	 * This method is used to determine if a certain alarm channel has a special condition for the specified
 	 * alarmSource or not. It's used to determine if the alarm messages should be saved as regular alarms or
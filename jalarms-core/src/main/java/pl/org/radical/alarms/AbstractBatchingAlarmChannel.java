@@ -0,0 +1,206 @@
+package pl.org.radical.alarms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An AbstractAlarmChannel that sends its alarms in batches, for channels whose transport works better with
+ * fewer, larger deliveries, such as one email with several alarms instead of one email for each. The alarms
+ * are kept until there are {@link #setMaxBatchSize(int) enough of them} or the first one has waited for
+ * the {@link #setLinger(int) linger time}, and then they're sent together with the task created by
+ * {@link #createBatchSendTask(List)}. Alarms can be grouped by source, so that each batch goes to the
+ * recipients of its source, or all together.
+ * The linger time is 0 by default, which means each alarm is sent on its own as in AbstractAlarmChannel;
+ * a channel can extend this class instead and let its users turn batching on, without changing how it
+ * sends single alarms. Channels that don't override {@link #createBatchSendTask(List)} still send one
+ * alarm at a time, only later.
+ * The batches waiting for their time are flushed by a scheduler shared by all channels, which only queues
+ * them to the channel; they're sent as usual, by the channel's executor.
+ */
+public abstract class AbstractBatchingAlarmChannel extends AbstractAlarmChannel {
+
+	/** The key of the batch of the alarms without a source, or of all the alarms if they're not grouped. */
+	private static final Object NO_SOURCE = new Object();
+	/** Returned by a batch that was sent and removed, so the alarm has to go in a new one. */
+	private static final List<Alarm> REMOVED = new ArrayList<Alarm>(0);
+
+	private int maxBatch = 100;
+	private int linger;
+	private boolean perSource = true;
+	private volatile boolean closed;
+	private final ConcurrentHashMap<Object, Batch> batches = new ConcurrentHashMap<Object, Batch>();
+
+	/** Sets the maximum number of alarms in a batch. A batch is sent as soon as it's full. Default is 100. */
+	public void setMaxBatchSize(final int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("The batch size must be at least 1");
+		}
+		maxBatch = value;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatch;
+	}
+
+	/**
+	 * Sets the maximum time, in milliseconds, that an alarm waits for others to be sent with it. Default is
+	 * 0, which means the alarms are not batched.
+	 */
+	public void setLinger(final int millis) {
+		linger = millis;
+	}
+
+	public int getLinger() {
+		return linger;
+	}
+
+	/**
+	 * Sets whether the alarms are batched by source, so that all the alarms in a batch have the same source.
+	 * Default is true. If false, all the alarms go in the same batches, whatever their source.
+	 */
+	public void setBatchPerSource(final boolean value) {
+		perSource = value;
+	}
+
+	public boolean isBatchPerSource() {
+		return perSource;
+	}
+
+	/** Adds an alarm to its batch, or sends it right away if batching is off. */
+	@Override
+	public void send(final Alarm alarm) {
+		if (linger <= 0 || closed) {
+			super.send(alarm);
+		} else {
+			add(alarm);
+		}
+	}
+
+	/** Adds several alarms to their batches, or sends them right away if batching is off. */
+	@Override
+	public void send(final List<Alarm> alarms) {
+		if (linger <= 0 || closed) {
+			super.send(alarms);
+		} else {
+			for (final Alarm alarm : alarms) {
+				add(alarm);
+			}
+		}
+	}
+
+	private void add(final Alarm alarm) {
+		final Object key = perSource && alarm.getSource() != null ? alarm.getSource() : NO_SOURCE;
+		List<Alarm> full;
+		do {
+			Batch batch = batches.get(key);
+			if (batch == null) {
+				batch = new Batch(key);
+				final Batch prev = batches.putIfAbsent(key, batch);
+				if (prev != null) {
+					batch = prev;
+				}
+			}
+			full = batch.add(alarm);
+		} while (full == REMOVED);
+		if (full != null) {
+			dispatch(full);
+		}
+	}
+
+	private void dispatch(final List<Alarm> alarms) {
+		if (alarms.size() == 1) {
+			super.send(alarms.get(0));
+		} else {
+			super.send(Collections.unmodifiableList(alarms));
+		}
+	}
+
+	/** Sends all the batches that are waiting, without waiting for their time. */
+	public void flush() {
+		for (final Batch batch : batches.values()) {
+			batch.run();
+		}
+	}
+
+	/** Returns the number of batches waiting to be sent. */
+	int getPendingBatches() {
+		return batches.size();
+	}
+
+	/** Sends the batches that are waiting, and shuts down the channel. */
+	@Override
+	public void shutdown() {
+		closed = true;
+		flush();
+		super.shutdown();
+	}
+
+	/**
+	 * The alarms waiting to be sent together. Once sent, the batch is removed from the map, so that the
+	 * map doesn't keep a batch for every source ever seen; the next alarm for the key starts a new one.
+	 */
+	private final class Batch implements Runnable {
+
+		private final Object key;
+		private List<Alarm> alarms = new ArrayList<Alarm>();
+		private ScheduledFuture<?> timer;
+
+		Batch(final Object key) {
+			this.key = key;
+		}
+
+		/**
+		 * Adds an alarm, and schedules the batch if it's the first one.
+		 * 
+		 * @return the alarms to send, if the batch is full; {@link #REMOVED} if the batch was already sent;
+		 *         null otherwise.
+		 */
+		synchronized List<Alarm> add(final Alarm alarm) {
+			if (alarms == null) {
+				return REMOVED;
+			}
+			alarms.add(alarm);
+			if (alarms.size() >= maxBatch) {
+				if (timer != null) {
+					timer.cancel(false);
+				}
+				return take();
+			}
+			if (timer == null) {
+				timer = ChannelExecutors.scheduler().schedule(this, linger, TimeUnit.MILLISECONDS);
+			}
+			return null;
+		}
+
+		/** Takes the alarms of the batch and removes it from the map; must be called holding the lock. */
+		private List<Alarm> take() {
+			final List<Alarm> rv = alarms;
+			alarms = null;
+			timer = null;
+			batches.remove(key, this);
+			return rv;
+		}
+
+		/** Sends the batch when its time is up. */
+		@Override
+		public void run() {
+			final List<Alarm> send;
+			synchronized (this) {
+				if (alarms == null || alarms.isEmpty()) {
+					return;
+				}
+				if (timer != null) {
+					timer.cancel(false);
+				}
+				send = take();
+			}
+			dispatch(send);
+		}
+
+	}
+
+}
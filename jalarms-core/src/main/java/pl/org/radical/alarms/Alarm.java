@@ -0,0 +1,136 @@
+package pl.org.radical.alarms;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An alarm, as it travels from the AlarmSender to the cache and the channels. Alarms are immutable;
+ * the time they were created and their fingerprint are computed once, when the alarm is created,
+ * so that every channel sees the same time and the cache doesn't have to hash the message again.
+ * The string based methods of {@link AlarmSender} and {@link AlarmChannel} create an alarm with the
+ * default severity and no tags.
+ */
+public final class Alarm {
+
+	/**
+	 * How serious an alarm is. Channels can use this to decide how to deliver it, or whether to deliver it at all;
+	 * it's also the alarm's priority in the queues of the channels that extend {@link AbstractAlarmChannel}.
+	 */
+	public enum Severity {
+		INFO, WARNING, ERROR, CRITICAL
+	}
+
+	/** The severity of the alarms that are sent only with a message and a source. */
+	public static final Severity DEFAULT_SEVERITY = Severity.ERROR;
+
+	private final String message;
+	private final String source;
+	private final Severity severity;
+	private final Map<String, String> tags;
+	private final long timestamp;
+	private final long nanoTime;
+	private final long fingerprint;
+
+	/** Creates an alarm with the default severity and no source. */
+	public Alarm(final String message) {
+		this(message, null, DEFAULT_SEVERITY, null);
+	}
+
+	/** Creates an alarm with the default severity. */
+	public Alarm(final String message, final String source) {
+		this(message, source, DEFAULT_SEVERITY, null);
+	}
+
+	/**
+	 * Creates an alarm.
+	 * 
+	 * @param message
+	 *            The alarm message; must not be null.
+	 * @param source
+	 *            The alarm source, used by the channels to choose the recipients. Can be null, for the default recipients.
+	 * @param severity
+	 *            The severity of the alarm. If null, the default severity is used.
+	 * @param tags
+	 *            Additional data about the alarm, which some channels can include in their messages. Can be null.
+	 *            The map is copied, so later changes to it don't affect the alarm.
+	 */
+	public Alarm(final String message, final String source, final Severity severity, final Map<String, String> tags) {
+		this(message, source, severity, tags == null || tags.isEmpty() ? Collections.<String, String> emptyMap() : Collections
+		        .unmodifiableMap(new LinkedHashMap<String, String>(tags)), System.currentTimeMillis(), System.nanoTime(), AlarmFingerprint
+		        .of(source, checkMessage(message)));
+	}
+
+	private static String checkMessage(final String message) {
+		if (message == null) {
+			throw new IllegalArgumentException("The alarm message cannot be null");
+		}
+		return message;
+	}
+
+	private Alarm(final String message, final String source, final Severity severity, final Map<String, String> tags,
+	        final long timestamp, final long nanoTime, final long fingerprint) {
+		this.message = checkMessage(message);
+		this.source = source;
+		this.severity = severity == null ? DEFAULT_SEVERITY : severity;
+		this.tags = tags;
+		this.timestamp = timestamp;
+		this.nanoTime = nanoTime;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Returns a copy of this alarm with a different message, for example one that includes the number of times
+	 * the alarm was raised. The copy keeps the time and the fingerprint of the original, so that it's still the
+	 * same alarm for the cache.
+	 */
+	public Alarm withMessage(final String value) {
+		return new Alarm(value, source, severity, tags, timestamp, nanoTime, fingerprint);
+	}
+
+	/** Returns a copy of this alarm with a different fingerprint, as computed by an {@link AlarmFingerprinter}. */
+	Alarm withFingerprint(final long value) {
+		return value == fingerprint ? this : new Alarm(message, source, severity, tags, timestamp, nanoTime, value);
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public Severity getSeverity() {
+		return severity;
+	}
+
+	/** Returns the tags of the alarm, which cannot be modified. */
+	public Map<String, String> getTags() {
+		return tags;
+	}
+
+	/** Returns the time the alarm was created, in milliseconds since the epoch. */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/** Returns the value of {@link System#nanoTime()} when the alarm was created, to measure how long it took to deliver. */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	/**
+	 * Returns the fingerprint of the alarm's source and message, as computed by {@link AlarmFingerprint#of(String, String)},
+	 * or by the {@link AlarmSender#setFingerprinter(AlarmFingerprinter) fingerprinter} of the sender.
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	@Override
+	public String toString() {
+		return source == null ? String.format("%s '%s'", severity, message) : String.format("%s %s:'%s'", severity, source, message);
+	}
+
+}
@@ -0,0 +1,95 @@
+package pl.org.radical.alarms;
+
+/**
+ * Computes a compact 64-bit fingerprint of an alarm's source and message. The fingerprint is computed once
+ * per alarm by the AlarmSender and then handed to the cache for every channel, instead of each cache call
+ * building its own formatted key with an MD5 digest of the message.
+ * This is a non-cryptographic hash (MurmurHash3 style mixing over the UTF-16 chars of the strings); it is
+ * only meant to tell alarms apart, not to be resistant to deliberate collisions.
+ */
+public final class AlarmFingerprint {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+	private static final long SEED = 0x9e3779b97f4a7c15L;
+
+	private AlarmFingerprint() {
+	}
+
+	/**
+	 * Returns the fingerprint for the specified alarm. A null source is treated the same as an empty one.
+	 * 
+	 * @param source
+	 *            The alarm source, can be null.
+	 * @param message
+	 *            The alarm message.
+	 */
+	public static long of(final String source, final String message) {
+		return of(source, (CharSequence) message);
+	}
+
+	/**
+	 * Returns the fingerprint for an alarm whose message is in a buffer, such as the one a
+	 * {@link NormalizingFingerprinter} writes the normalized message to. The result is the same as
+	 * {@link #of(String, String)} for a message with the same chars.
+	 */
+	public static long of(final String source, final CharSequence message) {
+		long h = SEED;
+		int len = 0;
+		if (source != null) {
+			h = update(h, source);
+			len = source.length();
+		}
+		// Separate the source from the message so that "ab"+"c" and "a"+"bc" differ
+		h ^= mixK(len + 1);
+		h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+		h = update(h, message);
+		return fmix(h ^ (len + message.length()));
+	}
+
+	/**
+	 * Combines an alarm fingerprint with the index of a channel, so that caches can use a single long as the
+	 * key for the alarm in that channel.
+	 * 
+	 * @param fingerprint
+	 *            The alarm fingerprint, as returned by {@link #of(String, String)}.
+	 * @param channelIndex
+	 *            The index of the channel within its AlarmSender, or -1 for alarms unrelated to a channel.
+	 */
+	public static long withChannel(final long fingerprint, final int channelIndex) {
+		return fmix(fingerprint + (channelIndex + 1) * SEED);
+	}
+
+	private static long update(long h, final CharSequence s) {
+		final int len = s.length();
+		int i = 0;
+		for (final int limit = len - 3; i < limit; i += 4) {
+			final long k = s.charAt(i) | (long) s.charAt(i + 1) << 16 | (long) s.charAt(i + 2) << 32 | (long) s.charAt(i + 3) << 48;
+			h ^= mixK(k);
+			h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+		}
+		if (i < len) {
+			long k = 0;
+			for (int shift = 0; i < len; i++, shift += 16) {
+				k |= (long) s.charAt(i) << shift;
+			}
+			h ^= mixK(k);
+		}
+		return h;
+	}
+
+	private static long mixK(long k) {
+		k *= C1;
+		k = Long.rotateLeft(k, 31);
+		return k * C2;
+	}
+
+	private static long fmix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ h >>> 33;
+	}
+
+}
@@ -0,0 +1,22 @@
+package pl.org.radical.alarms;
+
+/**
+ * Computes the fingerprint that identifies an alarm for the cache and the time buffer. The AlarmSender
+ * uses {@link AlarmFingerprint#of(String, String)} by default, which tells apart any two different messages;
+ * an implementation of this interface can make alarms that only differ in some details, such as ids or times,
+ * count as the same alarm. The fingerprint is only used to find repeated alarms; the channels still get the
+ * original message.
+ */
+public interface AlarmFingerprinter {
+
+	/**
+	 * Returns the fingerprint for an alarm.
+	 * 
+	 * @param source
+	 *            The alarm source, can be null.
+	 * @param message
+	 *            The alarm message.
+	 */
+	public long fingerprint(String source, String message);
+
+}
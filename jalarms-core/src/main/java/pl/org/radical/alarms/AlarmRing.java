@@ -0,0 +1,106 @@
+package pl.org.radical.alarms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue of alarms for many producer threads and a single consumer, used by the AlarmSender
+ * when alarms are dispatched asynchronously. The slots are allocated up front, so publishing an alarm
+ * doesn't allocate anything: a producer claims a slot by incrementing the tail with compare-and-swap,
+ * writes the alarm in the slot and then publishes it by updating the slot's sequence number. The consumer
+ * reads the slots in order and hands them back to the producers by advancing their sequence numbers by
+ * the capacity of the ring.
+ */
+final class AlarmRing {
+
+	/** Receives the alarms taken from the ring. */
+	interface Handler {
+		void handle(Alarm alarm, boolean always);
+	}
+
+	private final int mask;
+	private final AtomicLongArray seq;
+	private final Alarm[] alarms;
+	private final boolean[] always;
+	private final AtomicLong tail = new AtomicLong();
+	/** Only written by the consumer; volatile so that other threads can read the queue size. */
+	private volatile long head;
+
+	/** Creates a ring with at least the specified capacity, rounded up to a power of 2. */
+	AlarmRing(final int capacity) {
+		final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		mask = size - 1;
+		seq = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			seq.set(i, i);
+		}
+		alarms = new Alarm[size];
+		always = new boolean[size];
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	/** Returns the number of alarms waiting in the ring. */
+	int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	boolean isEmpty() {
+		return tail.get() == head;
+	}
+
+	/**
+	 * Adds an alarm to the ring, if there is room for it.
+	 * 
+	 * @return false if the ring is full.
+	 */
+	boolean offer(final Alarm alarm, final boolean sendAlways) {
+		for (;;) {
+			final long t = tail.get();
+			final int i = (int) t & mask;
+			final long s = seq.get(i);
+			if (s == t) {
+				if (tail.compareAndSet(t, t + 1)) {
+					alarms[i] = alarm;
+					always[i] = sendAlways;
+					// Publishes the writes above to the consumer
+					seq.lazySet(i, t + 1);
+					return true;
+				}
+			} else if (s < t) {
+				// The consumer has not freed this slot since the last lap
+				return false;
+			}
+			// Another producer took the slot, try the next one
+		}
+	}
+
+	/**
+	 * Passes up to the specified number of alarms to the handler, in the order they were added.
+	 * This must only be called from the consumer thread.
+	 * 
+	 * @return The number of alarms handled.
+	 */
+	int drain(final Handler handler, final int max) {
+		long h = head;
+		int n = 0;
+		while (n < max) {
+			final int i = (int) h & mask;
+			if (seq.get(i) != h + 1) {
+				// Empty, or the producer that claimed the slot has not finished writing it
+				break;
+			}
+			final Alarm alarm = alarms[i];
+			final boolean a = always[i];
+			alarms[i] = null;
+			seq.lazySet(i, h + mask + 1);
+			head = ++h;
+			n++;
+			handler.handle(alarm, a);
+		}
+		return n;
+	}
+
+}
@@ -1,21 +1,35 @@
 package pl.org.radical.alarms;
 
 import pl.org.radical.alarms.cache.AlarmCache;
+import pl.org.radical.alarms.cache.AtomicAlarmCache;
 import pl.org.radical.alarms.cache.DefaultAlarmCache;
+import pl.org.radical.alarms.cache.FingerprintAlarmCache;
+import pl.org.radical.alarms.metrics.AlarmMetrics;
 
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import de.huxhorn.lilith.slf4j.Logger;
+import de.huxhorn.lilith.slf4j.LoggerFactory;
 
 /**
  * This is the central class for jAlarms. An AlarmSender can have several AlarmChannel instances
@@ -26,21 +40,66 @@ import org.apache.commons.codec.digest.DigestUtils;
  */
 public class AlarmSender {
 
+	private final Logger log = LoggerFactory.getLogger(getClass());
 	private List<AlarmChannel> chans = Collections.emptyList();
 	private AlarmCache cache;
 	private int bufTime;
-	private ScheduledExecutorService timer;
-	private ConcurrentHashMap<String, CachedAlarm> buffer;
+	private int granularity = 100;
+	private volatile ScheduledExecutorService timer;
+	private ConcurrentHashMap<Long, CachedAlarm> buffer;
+	private int bufMaxEntries = 10000;
+	private long bufMaxBytes = 8 * 1024 * 1024;
+	private BufferOverflow overflow = BufferOverflow.DIGEST;
+	private final AtomicInteger bufEntries = new AtomicInteger();
+	private final AtomicLong bufBytes = new AtomicLong();
+	/** Alarms that didn't fit in the buffer and have not been reported in a digest yet. */
+	private final AtomicInteger digest = new AtomicInteger();
+	private final AtomicLong suppressed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong flushedEarly = new AtomicLong();
+	private int asyncSize;
+	private volatile AlarmRing ring;
+	private Thread dispatcher;
+	private volatile boolean dispatching;
+	private volatile boolean dispatcherIdle;
+	private int rateLimit;
+	private int rateBurst = 10;
+	private Map<String, Integer> sourceRates;
+	private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+	private final AtomicLong rateLimited = new AtomicLong();
+	private int stormThreshold;
+	private int stormWindow = 10000;
+	private int stormInterval = 60000;
+	private int stormTop = 5;
+	private volatile AlarmStorm storm;
+	private volatile ScheduledFuture<?> stormTask;
+	private final AlarmMetrics metrics = new AlarmMetrics();
+	private String jmxName;
+	private AlarmFingerprinter fingerprinter;
+	private int shutdownTimeout = 5000;
+	private volatile boolean closed;
+	private volatile int lostOnShutdown;
+	/** Alarms accepted while shutting down, that could not be scheduled because the timer was already stopped. */
+	private final AtomicInteger lostLate = new AtomicInteger();
+
+	/** What to do with an alarm sent via {@link #sendAlarmAlways(String, String)} when the buffer is full. */
+	public enum BufferOverflow {
+		/** Count the alarm, and send a single "N other alarms suppressed" alarm when the buffer time is up. */
+		DIGEST,
+		/** Discard the alarm. */
+		DROP_NEWEST,
+		/** Send all the buffered alarms right away to make room for the new one. */
+		FLUSH_EARLY
+	}
 
 	/**
 	 * Sets the time in milliseconds that the alarms sent via {@link #sendAlarmAlways(String, String)} are
 	 * buffered before actually sending them. Default is 0 which causes alarms to be sent immediately. If
 	 * set to a positive value, alarms are not sent immediately, but are rather queued to be sent after
 	 * sitting for the time specified here. If several identical messages are queued, only one is sent,
-	 * specifying how many times it was received. The queue is reviewed every 30 seconds, which means that
-	 * alarms will always be transmitted no sooner than 30 to 60 seconds after they're received, if they were
-	 * only received one time; an alarm that's been received 2 or more times will be queued for as long
-	 * as the buffer specifies.
+	 * specifying how many times it was received. Each alarm is sent when the buffer time has elapsed since
+	 * it was first received (rounded up to the {@link #setFlushGranularity(int) flush granularity}), whether
+	 * it was received once or many times.
 	 */
 	public void setAlarmTimeBuffer(final int value) {
 		bufTime = value;
@@ -50,11 +109,173 @@ public class AlarmSender {
 		return bufTime;
 	}
 
+	/**
+	 * Sets the precision, in milliseconds, with which buffered alarms are sent. The time at which each alarm
+	 * is due is rounded up to a multiple of this value, so that alarms received close to each other are sent
+	 * in the same run of the timer instead of waking it up once for each alarm. Default is 100.
+	 */
+	public void setFlushGranularity(final int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("The flush granularity must be at least 1 millisecond");
+		}
+		granularity = value;
+	}
+
+	public int getFlushGranularity() {
+		return granularity;
+	}
+
+	/** Sets the maximum number of different alarms kept in the time buffer. Default is 10000. */
+	public void setBufferMaxEntries(final int value) {
+		bufMaxEntries = value;
+	}
+
+	public int getBufferMaxEntries() {
+		return bufMaxEntries;
+	}
+
+	/**
+	 * Sets the maximum amount of memory, in bytes, used by the alarms in the time buffer. This is an estimate
+	 * based on the length of the messages and sources, plus a fixed overhead per alarm. Default is 8MB.
+	 */
+	public void setBufferMaxBytes(final long value) {
+		bufMaxBytes = value;
+	}
+
+	public long getBufferMaxBytes() {
+		return bufMaxBytes;
+	}
+
+	/** Sets what to do when an alarm doesn't fit in the time buffer. Default is {@link BufferOverflow#DIGEST}. */
+	public void setBufferOverflow(final BufferOverflow value) {
+		overflow = value;
+	}
+
+	public BufferOverflow getBufferOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * Sets the size of the queue for sending alarms asynchronously. Default is 0, which means that alarms are
+	 * checked against the cache and handed to the channels in the thread that sends them. If set to a positive
+	 * value (rounded up to a power of 2), {@link #init()} starts a dispatcher thread, and the methods to send
+	 * alarms only put them in the queue and return; the dispatcher does everything else. When the queue is
+	 * full, {@link #sendAlarm(String, String)} waits for room, while {@link #trySendAlarm(String, String)}
+	 * returns false.
+	 */
+	public void setAsyncQueueSize(final int value) {
+		asyncSize = value;
+	}
+
+	public int getAsyncQueueSize() {
+		return asyncSize;
+	}
+
+	/**
+	 * Sets the maximum number of alarms per minute that each source can send, sustained over time. Default is 0,
+	 * which means there is no limit. Each source has its own limit, so a component that raises many different
+	 * alarms (which the cache doesn't suppress, because they're not identical) can't flood the channels and
+	 * hide the alarms from other sources. Alarms over the limit are not sent; instead, a single
+	 * "source X: N alarms suppressed" alarm is sent when the source can send alarms again.
+	 * Alarms sent with {@link #sendAlarmAlways(String, String)} are also limited, unless they go through the
+	 * time buffer, which has its own limits.
+	 */
+	public void setRateLimit(final int alarmsPerMinute) {
+		rateLimit = alarmsPerMinute;
+	}
+
+	public int getRateLimit() {
+		return rateLimit;
+	}
+
+	/**
+	 * Sets the number of alarms a source can send at once, before the rate limit applies. Default is 10.
+	 */
+	public void setRateBurst(final int value) {
+		rateBurst = value;
+	}
+
+	public int getRateBurst() {
+		return rateBurst;
+	}
+
+	/**
+	 * Sets a different rate limit, in alarms per minute, for some sources. The sources not in this map use
+	 * the limit set with {@link #setRateLimit(int)}; a limit of 0 means no limit for that source. The limits
+	 * must be set before any alarms are sent.
+	 */
+	public void setSourceRateLimits(final Map<String, Integer> value) {
+		sourceRates = value;
+	}
+
+	public Map<String, Integer> getSourceRateLimits() {
+		return sourceRates;
+	}
+
+	/**
+	 * Sets the number of alarms in the storm window (see {@link #setStormWindow(int)}) that starts an alarm
+	 * storm. Default is 0, which means storms are not detected. All the alarms that the cache lets through
+	 * count, from any source. During a storm, the alarms are not sent; the channels get a single alarm when the
+	 * storm starts, and then every storm digest interval an alarm with the number of alarms held and the
+	 * sources and alarms that were raised most often. The storm is over when the number of alarms in the
+	 * window drops under half the threshold.
+	 */
+	public void setStormThreshold(final int value) {
+		stormThreshold = value;
+	}
+
+	public int getStormThreshold() {
+		return stormThreshold;
+	}
+
+	/** Sets the length of the sliding window in which the alarms are counted to detect a storm, in milliseconds. Default is 10000. */
+	public void setStormWindow(final int millis) {
+		stormWindow = millis;
+	}
+
+	public int getStormWindow() {
+		return stormWindow;
+	}
+
+	/** Sets the interval between the digests sent during an alarm storm, in milliseconds. Default is 60000. */
+	public void setStormDigestInterval(final int millis) {
+		stormInterval = millis;
+	}
+
+	public int getStormDigestInterval() {
+		return stormInterval;
+	}
+
+	/** Sets the number of sources and alarms listed in each storm digest. Default is 5. */
+	public void setStormDigestTop(final int value) {
+		stormTop = value;
+	}
+
+	public int getStormDigestTop() {
+		return stormTop;
+	}
+
+	/**
+	 * Sets how the fingerprints of the alarms are computed. Default is null, which means two alarms are the
+	 * same only if they have the same source and message. The fingerprint decides which alarms the cache
+	 * suppresses and which ones the time buffer groups together; the channels still get the original message.
+	 * Use a {@link NormalizingFingerprinter} to treat alarms that only differ in numbers, ids and such as the
+	 * same alarm. Caches that don't take fingerprints get the fingerprint in hex instead of the message.
+	 */
+	public void setFingerprinter(final AlarmFingerprinter value) {
+		fingerprinter = value;
+	}
+
+	public AlarmFingerprinter getFingerprinter() {
+		return fingerprinter;
+	}
+
 	/**
 	 * Sets the cache to use for alarm messages.
 	 */
 	public void setAlarmCache(final AlarmCache value) {
 		cache = value;
+		metrics.getCache().setCache(value);
 	}
 
 	/**
@@ -62,6 +283,47 @@ public class AlarmSender {
 	 */
 	public void setAlarmChannels(final List<AlarmChannel> channels) {
 		chans = channels;
+		metrics.setChannels(channels);
+	}
+
+	/**
+	 * Sets the name under which the metrics of this sender are registered as MBeans in the platform MBean
+	 * server, when {@link #init()} is called. Default is null, which means the metrics are not registered;
+	 * they're always recorded and available from {@link #getMetrics()}.
+	 */
+	public void setJmxName(final String value) {
+		jmxName = value;
+	}
+
+	public String getJmxName() {
+		return jmxName;
+	}
+
+	/**
+	 * Sets the maximum time, in milliseconds, that {@link #shutdown()} waits for the channels to send the
+	 * alarms they have queued. Default is 5000. The channels that extend {@link AbstractAlarmChannel} and
+	 * haven't finished by then are stopped, and the alarms they didn't send are counted as lost.
+	 */
+	public void setShutdownTimeout(final int millis) {
+		shutdownTimeout = millis;
+	}
+
+	public int getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	/**
+	 * Returns the number of alarms that were not sent because of {@link #shutdown()}: the ones the channels
+	 * or the dispatcher had not sent when the shutdown timeout elapsed, and the ones accepted while shutting
+	 * down that could no longer be scheduled.
+	 */
+	public int getLostOnShutdown() {
+		return lostOnShutdown + lostLate.get();
+	}
+
+	/** Returns the counters of the alarms received, sent, etc. by this sender, its sources and its channels. */
+	public AlarmMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
@@ -94,23 +356,328 @@ public class AlarmSender {
 	 */
 	public void sendAlarm(final String msg, final String source) {
 		if (msg != null) {
-			if (cache == null) {
-				// Setup default cache if there's none
-				synchronized (this) {
-					if (cache == null) {
-						cache = new DefaultAlarmCache();
-					}
+			sendAlarm(new Alarm(msg, source));
+		}
+	}
+
+	/**
+	 * Sends an alarm with the specified severity, as long as it hasn't been already sent very recently.
+	 * The severity is the alarm's priority: channels that extend {@link AbstractAlarmChannel} send the
+	 * alarms of higher severity first, and drop the ones of lower severity first when they fall behind.
+	 * 
+	 * @param msg
+	 *            The message to be sent as an alarm.
+	 * @param source
+	 *            The alarm source, as in {@link #sendAlarm(String, String)}.
+	 * @param severity
+	 *            The severity of the alarm. If null, the default severity is used.
+	 */
+	public void sendAlarm(final String msg, final String source, final Alarm.Severity severity) {
+		if (msg != null) {
+			sendAlarm(new Alarm(msg, source, severity, null));
+		}
+	}
+
+	/**
+	 * Sends an alarm through all channels, as long as it hasn't been already sent very recently.
+	 * This is the same as {@link #sendAlarm(String, String)}, for alarms with a severity or tags;
+	 * the channels that implement {@link StructuredAlarmChannel} get the whole alarm.
+	 */
+	public void sendAlarm(final Alarm alarm) {
+		metrics.received(alarm);
+		if (refused(alarm)) {
+			return;
+		}
+		final Alarm a = prepare(alarm);
+		if (ring == null) {
+			dispatch(a);
+		} else {
+			publish(a, false);
+		}
+	}
+
+	/**
+	 * Sends an alarm like {@link #sendAlarm(String)}, unless the alarm can't be queued right away.
+	 * 
+	 * @return false if alarms are sent asynchronously and the queue is full, in which case the alarm is discarded.
+	 */
+	public boolean trySendAlarm(final String msg) {
+		return trySendAlarm(msg, null);
+	}
+
+	/**
+	 * Sends an alarm like {@link #sendAlarm(String, String)}, unless the alarm can't be queued right away.
+	 * This never blocks the calling thread when alarms are sent asynchronously.
+	 * 
+	 * @return false if alarms are sent asynchronously and the queue is full, in which case the alarm is discarded.
+	 */
+	public boolean trySendAlarm(final String msg, final String source) {
+		return msg == null || trySendAlarm(new Alarm(msg, source));
+	}
+
+	/**
+	 * Sends an alarm like {@link #sendAlarm(Alarm)}, unless the alarm can't be queued right away.
+	 * 
+	 * @return false if alarms are sent asynchronously and the queue is full, in which case the alarm is discarded.
+	 */
+	public boolean trySendAlarm(final Alarm alarm) {
+		metrics.received(alarm);
+		if (refused(alarm)) {
+			return false;
+		}
+		final Alarm a = prepare(alarm);
+		final AlarmRing r = ring;
+		if (r == null) {
+			dispatch(a);
+		} else if (r.offer(a, false)) {
+			wakeDispatcher();
+		} else {
+			metrics.failed(alarm);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends several alarms, all from the same source, as in {@link #sendAlarms(Collection)}.
+	 * 
+	 * @param msgs
+	 *            The messages to be sent as alarms. Null messages are ignored.
+	 * @param source
+	 *            The alarm source, as in {@link #sendAlarm(String, String)}.
+	 */
+	public void sendAlarms(final Collection<String> msgs, final String source) {
+		final List<Alarm> alarms = new ArrayList<Alarm>(msgs.size());
+		for (final String msg : msgs) {
+			if (msg != null) {
+				alarms.add(new Alarm(msg, source));
+			}
+		}
+		sendAlarms(alarms);
+	}
+
+	/**
+	 * Sends several alarms, as if each one was sent with {@link #sendAlarm(Alarm)}. Repeated alarms in the
+	 * collection are only considered once, and each channel gets all its alarms in one call if it's a
+	 * {@link BatchAlarmChannel}. In asynchronous mode the alarms are queued one by one, and the dispatcher
+	 * groups the ones it finds waiting together.
+	 */
+	public void sendAlarms(final Collection<Alarm> alarms) {
+		final List<Alarm> prepared = new ArrayList<Alarm>(alarms.size());
+		for (final Alarm alarm : alarms) {
+			metrics.received(alarm);
+			if (!refused(alarm)) {
+				prepared.add(prepare(alarm));
+			}
+		}
+		if (ring == null) {
+			dispatch(prepared);
+		} else {
+			for (final Alarm alarm : prepared) {
+				publish(alarm, false);
+			}
+		}
+	}
+
+	/** Counts an alarm as failed if the sender has been shut down. */
+	private boolean refused(final Alarm alarm) {
+		if (closed) {
+			metrics.failed(alarm);
+			log.debug("AlarmSender is shut down, not sending {}", alarm);
+			return true;
+		}
+		return false;
+	}
+
+	/** Computes the fingerprint of an alarm with the fingerprinter, if there's one. */
+	private Alarm prepare(final Alarm alarm) {
+		final AlarmFingerprinter f = fingerprinter;
+		return f == null ? alarm : alarm.withFingerprint(f.fingerprint(alarm.getSource(), alarm.getMessage()));
+	}
+
+	/** Returns the cache, setting up the default cache if there's none. */
+	private AlarmCache cache() {
+		if (cache == null) {
+			synchronized (this) {
+				if (cache == null) {
+					cache = new DefaultAlarmCache();
+					metrics.getCache().setCache(cache);
+				}
+			}
+		}
+		return cache;
+	}
+
+	/** Checks an alarm against the cache and hands it to the channels that should send it. */
+	private void dispatch(final Alarm alarm) {
+		final AlarmCache ac = cache();
+		boolean admitted = false;
+		boolean sent = false;
+		final long now = System.nanoTime();
+		int idx = 0;
+		for (final AlarmChannel c : chans) {
+			// The storm detector and the rate limit only count the alarms that the cache lets through, but
+			// they go first, so that the cache doesn't record an alarm that is not sent
+			if (!admitted && wouldSend(ac, idx, c, alarm)) {
+				if (!admit(alarm, now)) {
+					return;
 				}
+				admitted = true;
+			}
+			if (admitted && acquire(ac, idx, c, alarm)) {
+				deliver(idx, c, alarm, now);
+				sent = true;
+			}
+			idx++;
+		}
+		if (sent) {
+			metrics.sent(alarm, now);
+		} else {
+			metrics.deduplicated(alarm);
+		}
+	}
+
+	/**
+	 * Checks several alarms against the cache, and hands each channel the ones it should send, all at once
+	 * if the channel can take them that way.
+	 */
+	private void dispatch(final Collection<Alarm> alarms) {
+		final AlarmCache ac = cache();
+		final List<Alarm> unique = new ArrayList<Alarm>(alarms.size());
+		final Set<Long> seen = new HashSet<Long>();
+		for (final Alarm alarm : alarms) {
+			if (seen.add(alarm.getFingerprint())) {
+				unique.add(alarm);
+			} else {
+				metrics.deduplicated(alarm);
+			}
+		}
+		if (unique.size() <= 1) {
+			if (!unique.isEmpty()) {
+				dispatch(unique.get(0));
 			}
+			return;
+		}
+		final List<List<Alarm>> perChannel = new ArrayList<List<Alarm>>(chans.size());
+		for (int i = 0; i < chans.size(); i++) {
+			perChannel.add(new ArrayList<Alarm>(unique.size()));
+		}
+		final long now = System.nanoTime();
+		for (final Alarm alarm : unique) {
+			boolean admitted = false;
+			boolean sent = false;
+			boolean limited = false;
+			int idx = 0;
 			for (final AlarmChannel c : chans) {
-				if (cache.shouldResend(c, source, msg)) {
-					cache.store(c, source, msg);
-					c.send(msg, source);
+				if (!admitted && wouldSend(ac, idx, c, alarm)) {
+					if (!admit(alarm, now)) {
+						limited = true;
+						break;
+					}
+					admitted = true;
+				}
+				if (admitted && acquire(ac, idx, c, alarm)) {
+					perChannel.get(idx).add(alarm);
+					sent = true;
+				}
+				idx++;
+			}
+			if (sent) {
+				metrics.sent(alarm, now);
+			} else if (!limited) {
+				metrics.deduplicated(alarm);
+			}
+		}
+		int idx = 0;
+		for (final AlarmChannel c : chans) {
+			final List<Alarm> send = perChannel.get(idx);
+			if (send.size() == 1) {
+				deliver(idx, c, send.get(0), now);
+			} else if (send.size() > 1) {
+				if (c instanceof BatchAlarmChannel) {
+					for (final Alarm alarm : send) {
+						metrics.channelReceived(idx, alarm, now);
+					}
+					((BatchAlarmChannel) c).send(Collections.unmodifiableList(send));
+				} else {
+					for (final Alarm alarm : send) {
+						deliver(idx, c, alarm, now);
+					}
 				}
 			}
+			idx++;
 		}
 	}
 
+	/**
+	 * Checks an alarm against the cache for a channel without recording it, to find out if it has to go
+	 * through the storm detector and the rate limit.
+	 */
+	private boolean wouldSend(final AlarmCache ac, final int idx, final AlarmChannel c, final Alarm alarm) {
+		final boolean rv;
+		if (ac instanceof FingerprintAlarmCache) {
+			rv = ((FingerprintAlarmCache) ac).shouldResend(idx, c, alarm.getFingerprint());
+		} else {
+			rv = ac.shouldResend(c, alarm.getSource(), cacheMessage(alarm));
+		}
+		if (!rv) {
+			metrics.channelDeduplicated(idx);
+		}
+		return rv;
+	}
+
+	/** Checks an alarm against the cache for a channel, recording it if it's going to be sent. */
+	private boolean acquire(final AlarmCache ac, final int idx, final AlarmChannel c, final Alarm alarm) {
+		final boolean rv;
+		if (ac instanceof FingerprintAlarmCache) {
+			// The alarm was hashed when it was created, the cache gets the fingerprint and the channel index
+			rv = ((FingerprintAlarmCache) ac).tryAcquire(idx, c, alarm.getFingerprint());
+		} else {
+			final String msg = cacheMessage(alarm);
+			if (ac instanceof AtomicAlarmCache) {
+				rv = ((AtomicAlarmCache) ac).tryAcquire(c, alarm.getSource(), msg);
+			} else if (ac.shouldResend(c, alarm.getSource(), msg)) {
+				// Caches that can't check and store atomically
+				ac.store(c, alarm.getSource(), msg);
+				rv = true;
+			} else {
+				rv = false;
+			}
+		}
+		if (rv) {
+			metrics.getCache().recordMiss();
+		} else {
+			metrics.channelDeduplicated(idx);
+		}
+		return rv;
+	}
+
+	/** Returns the message the string based caches get for an alarm. */
+	private String cacheMessage(final Alarm alarm) {
+		// With a fingerprinter, alarms with different messages can be the same alarm
+		return fingerprinter == null ? alarm.getMessage() : Long.toHexString(alarm.getFingerprint());
+	}
+
+	/** Hands an alarm to a channel, whole if the channel can take it that way. */
+	private void deliver(final int idx, final AlarmChannel c, final Alarm alarm, final long now) {
+		metrics.channelReceived(idx, alarm, now);
+		if (c instanceof StructuredAlarmChannel) {
+			((StructuredAlarmChannel) c).send(alarm);
+		} else {
+			c.send(alarm.getMessage(), alarm.getSource());
+		}
+	}
+
+	/** Hands an alarm to all the channels. */
+	private void deliver(final Alarm alarm) {
+		final long now = System.nanoTime();
+		int idx = 0;
+		for (final AlarmChannel c : chans) {
+			deliver(idx++, c, alarm, now);
+		}
+		metrics.sent(alarm, now);
+	}
+
 	/**
 	 * Sends an alarm through all channels, to the users defined for the specified source in each channel,
 	 * regardless of the last time the same message was sent.
@@ -122,20 +689,235 @@ public class AlarmSender {
 	 *            the recipients of the alarm. If null, the default recipients for each channel are used.
 	 */
 	public void sendAlarmAlways(final String msg, final String source) {
+		if (msg != null) {
+			sendAlarmAlways(new Alarm(msg, source));
+		}
+	}
+
+	/**
+	 * Sends an alarm with the specified severity regardless of the last time it was sent, as in
+	 * {@link #sendAlarmAlways(String, String)}. The severity is the alarm's priority, as in
+	 * {@link #sendAlarm(String, String, Alarm.Severity)}.
+	 */
+	public void sendAlarmAlways(final String msg, final String source, final Alarm.Severity severity) {
+		if (msg != null) {
+			sendAlarmAlways(new Alarm(msg, source, severity, null));
+		}
+	}
+
+	/**
+	 * Sends an alarm through all channels regardless of the last time it was sent, as in
+	 * {@link #sendAlarmAlways(String, String)}.
+	 */
+	public void sendAlarmAlways(final Alarm alarm) {
+		metrics.received(alarm);
+		if (refused(alarm)) {
+			return;
+		}
+		final Alarm a = prepare(alarm);
+		if (ring == null) {
+			dispatchAlways(a);
+		} else {
+			publish(a, true);
+		}
+	}
+
+	/** Buffers an alarm that must always be sent, or hands it to the channels right away if there's no buffer. */
+	private void dispatchAlways(final Alarm alarm) {
 		if (bufTime > 0) {
-			final String k = DigestUtils.md5Hex(String.format("%s:%s", source == null ? "" : source, msg));
-			CachedAlarm ca = buffer.get(k);
-			if (ca == null) {
-				ca = new CachedAlarm(source, msg);
-				buffer.put(k, ca);
-			} else {
-				ca.update();
+			final Long k = alarm.getFingerprint();
+			boolean flushed = false;
+			for (;;) {
+				CachedAlarm ca = buffer.get(k);
+				if (ca == null) {
+					final int bytes = CachedAlarm.estimateSize(alarm);
+					if (!reserve(bytes)) {
+						if (overflow == BufferOverflow.FLUSH_EARLY && !flushed) {
+							flushedEarly.incrementAndGet();
+							flushBuffer(Long.MAX_VALUE);
+							flushed = true;
+							continue;
+						}
+						metrics.failed(alarm);
+						overflow();
+						return;
+					}
+					final CachedAlarm fresh = new CachedAlarm(k, alarm, bufTime, granularity, bytes);
+					ca = buffer.putIfAbsent(k, fresh);
+					if (ca == null) {
+						metrics.buffered(alarm);
+						schedule(fresh);
+						return;
+					}
+					release(bytes);
+				}
+				if (ca.update()) {
+					metrics.buffered(alarm);
+					return;
+				}
+				// The alarm was just flushed; help remove it and start a new one
+				buffer.remove(k, ca);
 			}
-		} else {
-			for (final AlarmChannel c : chans) {
-				c.send(msg, source);
+		} else if (admit(alarm, System.nanoTime())) {
+			deliver(alarm);
+		}
+	}
+
+	/**
+	 * Checks if an alarm can be sent now: it's held for the digest if there's an alarm storm, and refused if
+	 * its source is over the rate limit.
+	 */
+	private boolean admit(final Alarm alarm, final long now) {
+		if (stormThreshold > 0 && holdForStorm(alarm)) {
+			return false;
+		}
+		final TokenBucket bucket = bucket(alarm.getSource());
+		if (bucket == null || bucket.tryTake(now)) {
+			return true;
+		}
+		rateLimited(bucket, alarm);
+		return false;
+	}
+
+	/**
+	 * Counts an alarm for the storm detector and, if there's a storm, adds it to the digest.
+	 * 
+	 * @return true if the alarm was held for the digest.
+	 */
+	private boolean holdForStorm(final Alarm alarm) {
+		final AlarmStorm s = storm();
+		final long now = System.currentTimeMillis();
+		s.record(now);
+		if (!s.active.get()) {
+			final long count = s.count(now);
+			if (count < stormThreshold || !s.active.compareAndSet(false, true)) {
+				return false;
+			}
+			if (!startStorm(s, count)) {
+				lostLate(alarm, 1);
+				return true;
+			}
+		}
+		s.add(alarm);
+		metrics.buffered(alarm);
+		return true;
+	}
+
+	private AlarmStorm storm() {
+		AlarmStorm s = storm;
+		if (s == null) {
+			synchronized (this) {
+				s = storm;
+				if (s == null) {
+					s = new AlarmStorm(stormWindow);
+					storm = s;
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Tells the channels that there's a storm and starts sending the digests.
+	 * 
+	 * @return false if the sender was shut down in the meantime.
+	 */
+	private boolean startStorm(final AlarmStorm s, final long count) {
+		try {
+			stormTask = timer().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					sendDigest(s);
+				}
+			}, stormInterval, stormInterval, TimeUnit.MILLISECONDS);
+		} catch (final RejectedExecutionException ex) {
+			s.active.set(false);
+			return false;
+		}
+		log.error("Alarm storm, {} alarms in {} millis", count, stormWindow);
+		deliver(new Alarm(String.format("Alarm storm: %d alarms in the last %s. Alarms will be sent in a digest every %s until it's over.",
+		        count, AlarmStorm.duration(stormWindow), AlarmStorm.duration(stormInterval))));
+		return true;
+	}
+
+	/** Sends the digest of the alarms held since the last one, and ends the storm if the rate has dropped. */
+	private void sendDigest(final AlarmStorm s) {
+		// The storm is over when the rate drops to half the threshold, so that it doesn't start again right away
+		final boolean over = s.count(System.currentTimeMillis()) < stormThreshold / 2;
+		if (over) {
+			s.active.set(false);
+			stormTask.cancel(false);
+		}
+		final String summary = s.takeSummary(stormInterval, stormTop);
+		if (summary != null || over) {
+			deliver(new Alarm(over ? String.format("%s The alarm storm is over.", summary == null ? "" : summary).trim() : summary));
+		}
+	}
+
+	/** Returns the token bucket for the source, or null if the source has no rate limit. */
+	private TokenBucket bucket(final String source) {
+		if (rateLimit <= 0 && sourceRates == null) {
+			return null;
+		}
+		final String key = source == null ? "" : source;
+		TokenBucket b = buckets.get(key);
+		if (b == null) {
+			final Integer rate = sourceRates == null ? null : sourceRates.get(source);
+			final int perMinute = rate == null ? rateLimit : rate;
+			if (perMinute <= 0) {
+				return null;
+			}
+			b = new TokenBucket(perMinute, rateBurst);
+			final TokenBucket prev = buckets.putIfAbsent(key, b);
+			if (prev != null) {
+				b = prev;
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Counts an alarm refused by the rate limit. The first one refused since the last summary schedules the
+	 * next summary for when the source can send again.
+	 */
+	private void rateLimited(final TokenBucket bucket, final Alarm alarm) {
+		metrics.failed(alarm);
+		rateLimited.incrementAndGet();
+		final String source = alarm.getSource();
+		if (bucket.suppressed.incrementAndGet() == 1) {
+			try {
+				timer().schedule(new Runnable() {
+					@Override
+					public void run() {
+						final int n = bucket.suppressed.getAndSet(0);
+						if (n > 0) {
+							deliver(new Alarm(String.format("source %s: %d alarms suppressed", source == null ? "(default)" : source, n), source));
+						}
+					}
+				}, Math.max(1000000, bucket.nanosUntilToken(System.nanoTime())), TimeUnit.NANOSECONDS);
+			} catch (final RejectedExecutionException ex) {
+				// Shut down in the meantime; the alarm is already counted as rate limited, there's just no summary
+				bucket.suppressed.decrementAndGet();
+			}
+		}
+	}
+
+	/** Returns the timer for the buffered alarms and the rate limit summaries, creating it if necessary. */
+	private ScheduledExecutorService timer() {
+		ScheduledExecutorService t = timer;
+		if (t == null) {
+			synchronized (this) {
+				t = timer;
+				if (t == null) {
+					final ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1);
+					// The tasks of the alarms flushed early are cancelled, and must not stay in the queue until they're due
+					stpe.setRemoveOnCancelPolicy(true);
+					t = stpe;
+					timer = t;
+				}
 			}
 		}
+		return t;
 	}
 
 	/**
@@ -145,78 +927,409 @@ public class AlarmSender {
 	@PostConstruct
 	public void init() {
 		if (bufTime > 0) {
-			timer = Executors.newSingleThreadScheduledExecutor();
-			buffer = new ConcurrentHashMap<String, AlarmSender.CachedAlarm>();
-			timer.scheduleWithFixedDelay(new Runnable() {
+			timer();
+			buffer = new ConcurrentHashMap<Long, AlarmSender.CachedAlarm>();
+		}
+		if (asyncSize > 0 && ring == null) {
+			final AlarmRing r = new AlarmRing(asyncSize);
+			dispatching = true;
+			dispatcher = new Thread("jalarms-dispatcher") {
 				@Override
 				public void run() {
-					final long now = System.currentTimeMillis();
-					// check queue, send alarms
-					Iterator<Map.Entry<String, CachedAlarm>> iter;
-					for (iter = buffer.entrySet().iterator(); iter.hasNext();) {
-						final Map.Entry<String, CachedAlarm> e = iter.next();
-						if (e.getValue().times > 1) {
-							// Check firstSent against buffer time
-							if (now - e.getValue().firstSent >= bufTime) {
-								iter.remove();
-								for (final AlarmChannel c : chans) {
-									c.send(String.format("%s (%dx)", e.getValue().msg, e.getValue().times), e.getValue().src);
-								}
-							}
-						} else if (now - e.getValue().lastSent >= 29800) {
-							// In practice, the scheduler tends to run the task a little under 30s
-							iter.remove();
-							for (final AlarmChannel c : chans) {
-								c.send(e.getValue().msg, e.getValue().src);
+					runDispatcher(r);
+				}
+			};
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+			ring = r;
+		}
+		if (jmxName != null) {
+			metrics.register(ManagementFactory.getPlatformMBeanServer(), jmxName);
+		}
+	}
+
+	/** Puts an alarm in the queue for the dispatcher, waiting for room if it's full. */
+	private void publish(final Alarm alarm, final boolean always) {
+		AlarmRing r = ring;
+		while (r != null && !r.offer(alarm, always)) {
+			wakeDispatcher();
+			LockSupport.parkNanos(100000);
+			r = ring;
+		}
+		if (r == null) {
+			// The dispatcher was stopped while we waited
+			if (always) {
+				dispatchAlways(alarm);
+			} else {
+				dispatch(alarm);
+			}
+		} else {
+			wakeDispatcher();
+		}
+	}
+
+	private void wakeDispatcher() {
+		if (dispatcherIdle) {
+			LockSupport.unpark(dispatcher);
+		}
+	}
+
+	private void dispatchPending(final List<Alarm> pending) {
+		if (!pending.isEmpty()) {
+			try {
+				if (pending.size() == 1) {
+					dispatch(pending.get(0));
+				} else {
+					dispatch(pending);
+				}
+			} catch (final RuntimeException ex) {
+				log.error("Dispatching {} alarms", pending.size(), ex);
+			}
+			pending.clear();
+		}
+	}
+
+	/** The dispatcher thread: takes alarms from the queue until it's stopped and the queue is empty. */
+	private void runDispatcher(final AlarmRing r) {
+		// The alarms found waiting together are dispatched together
+		final List<Alarm> pending = new ArrayList<Alarm>();
+		final AlarmRing.Handler handler = new AlarmRing.Handler() {
+			@Override
+			public void handle(final Alarm alarm, final boolean always) {
+				if (always) {
+					dispatchPending(pending);
+					try {
+						dispatchAlways(alarm);
+					} catch (final RuntimeException ex) {
+						log.error("Dispatching alarm {}", alarm, ex);
+					}
+				} else {
+					pending.add(alarm);
+				}
+			}
+		};
+		while (dispatching || !r.isEmpty()) {
+			final int n = r.drain(handler, 1024);
+			dispatchPending(pending);
+			if (n == 0) {
+				dispatcherIdle = true;
+				// Check again after announcing that we're idle, so a producer either sees the flag or we see its alarm
+				if (dispatching && r.isEmpty()) {
+					LockSupport.parkNanos(100000000);
+				}
+				dispatcherIdle = false;
+			}
+		}
+	}
+
+	/** Makes room in the buffer for a new alarm, if it fits in the limits. */
+	private boolean reserve(final int bytes) {
+		for (;;) {
+			final int n = bufEntries.get();
+			if (n >= bufMaxEntries) {
+				return false;
+			}
+			if (bufEntries.compareAndSet(n, n + 1)) {
+				break;
+			}
+		}
+		if (bufBytes.addAndGet(bytes) > bufMaxBytes) {
+			release(bytes);
+			return false;
+		}
+		return true;
+	}
+
+	private void release(final int bytes) {
+		bufBytes.addAndGet(-bytes);
+		bufEntries.decrementAndGet();
+	}
+
+	/** Handles an alarm that doesn't fit in the buffer, according to the overflow policy. */
+	private void overflow() {
+		if (overflow == BufferOverflow.DIGEST) {
+			suppressed.incrementAndGet();
+			if (digest.incrementAndGet() == 1) {
+				// The first alarm suppressed since the last digest schedules the next one
+				try {
+					timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							final int n = digest.getAndSet(0);
+							if (n > 0) {
+								deliver(new Alarm(String.format("%d other alarms suppressed", n)));
 							}
 						}
-					}
+					}, bufTime, TimeUnit.MILLISECONDS);
+				} catch (final RejectedExecutionException ex) {
+					// Shut down in the meantime, there will be no digest
+					digest.decrementAndGet();
+					suppressed.decrementAndGet();
+					dropped.incrementAndGet();
+					lostLate.incrementAndGet();
+				}
+			}
+		} else {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Schedules a buffered alarm to be sent when it's due. The timer keeps its tasks in a delay queue,
+	 * so it only wakes up when an alarm is due and only looks at the alarms that are due. The task is
+	 * cancelled if the alarm is flushed before then.
+	 */
+	private void schedule(final CachedAlarm ca) {
+		try {
+			ca.task = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush(ca);
 				}
-			}, 30, 30, TimeUnit.SECONDS);
+			}, ca.deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		} catch (final RejectedExecutionException ex) {
+			// Shut down in the meantime, after the buffer was flushed
+			final int times = ca.close();
+			buffer.remove(ca.key, ca);
+			if (times > 0) {
+				release(ca.size);
+				dropped.incrementAndGet();
+				lostLate(ca.alarm, times);
+			}
+			return;
+		}
+		if (ca.times.get() < 0) {
+			// Flushed before the task was set
+			ca.task.cancel(false);
 		}
 	}
 
 	/**
-	 * Shuts down all channels, and the alarm cache.
+	 * Sends the buffered alarms that are due at the specified time, without waiting for their scheduled
+	 * tasks. Those tasks find the alarms already sent and do nothing.
+	 */
+	void flushBuffer(final long now) {
+		for (final CachedAlarm ca : buffer.values()) {
+			if (ca.deadline <= now) {
+				flush(ca);
+			}
+		}
+	}
+
+	/**
+	 * Sends a buffered alarm, once, with the number of times it was received if it's more than one.
+	 */
+	private void flush(final CachedAlarm ca) {
+		// Once closed the alarm gets no more updates, so the count is final
+		final int times = ca.close();
+		// A producer may already have replaced it with a new one, which must stay
+		buffer.remove(ca.key, ca);
+		if (times > 0) {
+			release(ca.size);
+			final ScheduledFuture<?> task = ca.task;
+			if (task != null) {
+				task.cancel(false);
+			}
+			deliver(times > 1 ? ca.alarm.withMessage(String.format("%s (%dx)", ca.alarm.getMessage(), times)) : ca.alarm);
+		}
+	}
+
+	/** Counts an alarm that was accepted while shutting down, and could not be sent. */
+	private void lostLate(final Alarm alarm, final int times) {
+		metrics.failed(alarm);
+		lostLate.addAndGet(times);
+		log.warn("AlarmSender was shut down before it could send {}", alarm);
+	}
+
+	/**
+	 * Shuts down the sender, sending what it can of the alarms it has already accepted. New alarms are
+	 * refused, the dispatcher hands the alarms left in its queue to the channels, the alarms in the time
+	 * buffer are sent right away, along with the pending digests and summaries, and all the channels are
+	 * shut down. Then it waits for the channels to send their queued alarms; they all send at the same time,
+	 * each in its own threads. The whole shutdown takes at most the {@link #setShutdownTimeout(int) shutdown
+	 * timeout}, after which the dispatcher and the channels that are not done are given up on, and the
+	 * alarms they didn't send are logged and counted in {@link #getLostOnShutdown()}.
+	 * Finally the alarm cache is shut down.
 	 */
 	@PreDestroy
 	public void shutdown() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		final long deadline = System.nanoTime() + shutdownTimeout * 1000000L;
+		int lost = 0;
+		final AlarmRing r = ring;
+		if (r != null) {
+			// New alarms are sent synchronously, the dispatcher sends what's left in the queue and stops
+			ring = null;
+			dispatching = false;
+			LockSupport.unpark(dispatcher);
+			try {
+				dispatcher.join(Math.max(1, shutdownTimeout));
+			} catch (final InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			if (dispatcher.isAlive()) {
+				// Stuck in a channel or the cache; what it has not taken yet is counted as lost
+				lost = r.size();
+				log.warn("Alarm dispatcher did not stop within {} millis, giving up on {} queued alarms", shutdownTimeout, lost);
+			}
+		}
+		flushPending();
 		for (final AlarmChannel c : chans) {
 			c.shutdown();
 		}
+		lostOnShutdown = lost + drainChannels(deadline);
 		if (cache != null) {
 			cache.shutdown();
 		}
+		metrics.unregister();
+	}
+
+	/** Sends the alarms held in the time buffer or for the storm digest, and the summaries not yet sent. */
+	private void flushPending() {
+		final AlarmStorm s = storm;
+		if (s != null && s.active.get()) {
+			stormTask.cancel(false);
+			final String summary = s.takeSummary(stormInterval, stormTop);
+			if (summary != null) {
+				deliver(new Alarm(summary));
+			}
+		}
+		if (buffer != null) {
+			flushBuffer(Long.MAX_VALUE);
+		}
+		final ScheduledExecutorService t = timer;
+		if (t != null) {
+			// The buffered alarms' tasks find them already sent; the rate limit and digest summaries are sent now
+			for (final Runnable task : t.shutdownNow()) {
+				try {
+					task.run();
+				} catch (final RuntimeException ex) {
+					log.error("Sending pending summary", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for the channels to send their queued alarms, until the deadline (in nanos), and stops the ones
+	 * that are not done by then.
+	 * 
+	 * @return the number of alarms that were not sent.
+	 */
+	private int drainChannels(final long deadline) {
+		int lost = 0;
+		for (final AlarmChannel c : chans) {
+			if (c instanceof AbstractAlarmChannel) {
+				final AbstractAlarmChannel ac = (AbstractAlarmChannel) c;
+				boolean drained = false;
+				try {
+					drained = ac.awaitDrained(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				} catch (final InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				final int n = ac.shutdownNow();
+				if (!drained || n > 0) {
+					log.warn("Alarm channel {} was stopped with {} alarms not sent", c.getClass().getSimpleName(), n);
+				}
+				lost += n;
+			}
+		}
+		if (lost > 0) {
+			log.warn("AlarmSender shut down, {} alarms were lost", lost);
+		} else {
+			log.info("AlarmSender shut down, all alarms were sent");
+		}
+		return lost;
 	}
 
 	public String getStatus() {
-		return String.format("AlarmSender with %d channels, time buffer %d, cache %s", chans.size(), bufTime, cache);
+		final StringBuilder sb = new StringBuilder(String.format("AlarmSender with %d channels, time buffer %d", chans.size(), bufTime));
+		if (bufTime > 0) {
+			sb.append(String.format(" (%d alarms, %d bytes, %d suppressed, %d dropped, %d flushed early)", bufEntries.get(),
+			        bufBytes.get(), suppressed.get(), dropped.get(), flushedEarly.get()));
+		}
+		final AlarmRing r = ring;
+		if (r != null) {
+			sb.append(String.format(", async queue %d/%d", r.size(), r.capacity()));
+		}
+		if (rateLimit > 0 || sourceRates != null) {
+			sb.append(String.format(", %d rate limited", rateLimited.get()));
+		}
+		final AlarmStorm s = storm;
+		if (s != null && s.active.get()) {
+			sb.append(String.format(", alarm storm (%d alarms held)", s.held()));
+		}
+		return sb.append(", cache ").append(cache).toString();
 	}
 
 	/**
-	 * This should be used by implementations of AlarmCache to store the necessary alarm data in the cache.
+	 * An alarm waiting in the time buffer. Many threads can update it at the same time; when it's flushed
+	 * it is closed, and the threads that find it closed put a new one in the buffer instead.
 	 */
 	private static class CachedAlarm {
+		final Long key;
 		/** The timestamp of the first time this alarm was sent (in the last batch) */
-		long firstSent;
+		final long firstSent;
+		/** The time at which the alarm must be sent. */
+		final long deadline;
 		/** The timestamp of the last time this alarm was sent. */
-		long lastSent;
-		/** The number of times the alarm has been sent. */
-		int times = 1;
-		String src;
-		String msg;
-
-		private CachedAlarm(final String src, final String msg) {
-			lastSent = System.currentTimeMillis();
+		volatile long lastSent;
+		/** The number of times the alarm has been sent, or -1 once it's been flushed. */
+		final AtomicInteger times = new AtomicInteger(1);
+		/** The first alarm received, which is the one that will be sent. */
+		final Alarm alarm;
+		/** The estimated memory used by this alarm. */
+		final int size;
+		/** The timer task that flushes this alarm when it's due. */
+		volatile ScheduledFuture<?> task;
+
+		private CachedAlarm(final Long key, final Alarm alarm, final int bufTime, final int granularity, final int size) {
+			lastSent = alarm.getTimestamp();
 			firstSent = lastSent;
-			this.src = src;
-			this.msg = msg;
+			final long due = firstSent + bufTime + granularity - 1;
+			deadline = due - due % granularity;
+			this.key = key;
+			this.size = size;
+			this.alarm = alarm;
+		}
+
+		/**
+		 * Estimates the memory used by an alarm in the buffer: the strings plus the alarm, this object, its key
+		 * and its map entry.
+		 */
+		static int estimateSize(final Alarm alarm) {
+			int size = 192 + 2 * ((alarm.getSource() == null ? 0 : alarm.getSource().length()) + alarm.getMessage().length());
+			for (final Map.Entry<String, String> tag : alarm.getTags().entrySet()) {
+				size += 64 + 2 * (tag.getKey().length() + (tag.getValue() == null ? 0 : tag.getValue().length()));
+			}
+			return size;
+		}
+
+		/**
+		 * Updates the last sent time and increments the number of times the alarm has been sent.
+		 * 
+		 * @return false if the alarm has already been flushed.
+		 */
+		private boolean update() {
+			for (;;) {
+				final int t = times.get();
+				if (t < 0) {
+					return false;
+				}
+				if (times.compareAndSet(t, t + 1)) {
+					lastSent = System.currentTimeMillis();
+					return true;
+				}
+			}
 		}
 
-		/** Updates the last sent time and increments the number of times the alarm has been sent. */
-		private void update() {
-			times++;
-			lastSent = System.currentTimeMillis();
+		/** Closes the alarm to further updates, returning the number of times it was sent (0 if it was already closed). */
+		private int close() {
+			final int t = times.getAndSet(-1);
+			return t < 0 ? 0 : t;
 		}
 	}
 
@@ -0,0 +1,232 @@
+package pl.org.radical.alarms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Detects alarm storms and collects the alarms raised during one, for the AlarmSender.
+ * The rate of alarms is counted in a sliding window split in 10 slots. Each slot holds the time slice it
+ * counts for in its upper bits and the count in its lower 24 bits, so that moving a slot to a new time slice
+ * and counting an alarm in it is a single compare-and-swap, and old slices are simply ignored when the
+ * window is added up. The slices are numbered from the time the detector was created, so that the number
+ * fits in the upper 40 bits even for slices of a millisecond.
+ * While a storm lasts, the alarms are counted by source and by alarm instead of being sent; only the first
+ * 1000 distinct alarms of each digest are kept, the rest are counted with their source.
+ */
+final class AlarmStorm {
+
+	private static final int SLOTS = 10;
+	private static final int COUNT_BITS = 24;
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+	private static final int MAX_DISTINCT = 1000;
+
+	private final long sliceMillis;
+	private final long start = System.currentTimeMillis();
+	private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+	final AtomicBoolean active = new AtomicBoolean();
+	private final AtomicReference<Digest> digest = new AtomicReference<Digest>(new Digest());
+
+	/**
+	 * @param windowMillis
+	 *            The length of the sliding window.
+	 */
+	AlarmStorm(final int windowMillis) {
+		sliceMillis = Math.max(1, windowMillis / SLOTS);
+	}
+
+	/** Counts an alarm at the specified time, in milliseconds. */
+	void record(final long now) {
+		final long slice = slice(now);
+		final int i = (int) (slice % SLOTS);
+		for (;;) {
+			final long v = slots.get(i);
+			final long nv;
+			if (v >>> COUNT_BITS != slice) {
+				nv = slice << COUNT_BITS | 1;
+			} else if ((v & COUNT_MASK) == COUNT_MASK) {
+				return;
+			} else {
+				nv = v + 1;
+			}
+			if (slots.compareAndSet(i, v, nv)) {
+				return;
+			}
+		}
+	}
+
+	/** Returns the number of alarms counted in the window that ends at the specified time. */
+	long count(final long now) {
+		final long slice = slice(now);
+		long sum = 0;
+		for (int i = 0; i < SLOTS; i++) {
+			final long v = slots.get(i);
+			if (slice - (v >>> COUNT_BITS) < SLOTS) {
+				sum += v & COUNT_MASK;
+			}
+		}
+		return sum;
+	}
+
+	/** Returns the time slice of a time in milliseconds; the clock going back counts as the first slice. */
+	private long slice(final long now) {
+		return Math.max(0, now - start) / sliceMillis;
+	}
+
+	/** Adds an alarm to the current digest. */
+	void add(final Alarm alarm) {
+		while (!digest.get().add(alarm)) {
+			// The digest was taken meanwhile, the alarm goes in the next one
+		}
+	}
+
+	/** Returns the number of alarms in the current digest. */
+	int held() {
+		return digest.get().total.get();
+	}
+
+	/**
+	 * Replaces the current digest with an empty one and returns its summary, or null if it had no alarms.
+	 * The alarms being added to the old digest by other threads are waited for, or go in the new one.
+	 */
+	String takeSummary(final int millis, final int top) {
+		final Digest d = digest.getAndSet(new Digest());
+		d.close();
+		final int total = d.total.get();
+		if (total == 0) {
+			return null;
+		}
+		final StringBuilder sb = new StringBuilder(String.format("Alarm storm: %d alarms from %d sources in the last %s.",
+		        total, d.sources.size(), duration(millis)));
+		sb.append(" Top sources:");
+		int n = 0;
+		for (final Map.Entry<String, AtomicInteger> e : sorted(d.sources)) {
+			if (n++ == top) {
+				break;
+			}
+			sb.append(n == 1 ? " " : ", ").append(e.getKey()).append(" (").append(e.getValue().get()).append(')');
+		}
+		sb.append(". Top alarms:");
+		n = 0;
+		final List<Entry> alarms = new ArrayList<Entry>(d.alarms.values());
+		Collections.sort(alarms, new Comparator<Entry>() {
+			@Override
+			public int compare(final Entry o1, final Entry o2) {
+				final int c1 = o1.count.get(), c2 = o2.count.get();
+				return c1 > c2 ? -1 : c1 == c2 ? 0 : 1;
+			}
+		});
+		for (final Entry e : alarms) {
+			if (n++ == top) {
+				break;
+			}
+			sb.append(n == 1 ? " " : ", ");
+			if (e.alarm.getSource() != null) {
+				sb.append(e.alarm.getSource()).append(": ");
+			}
+			sb.append('\'').append(e.alarm.getMessage()).append("' (").append(e.count.get()).append(')');
+		}
+		return sb.append('.').toString();
+	}
+
+	/** Formats a time in milliseconds as seconds if it's a whole number of them. */
+	static String duration(final int millis) {
+		return millis % 1000 == 0 ? String.format("%d seconds", millis / 1000) : String.format("%d milliseconds", millis);
+	}
+
+	private static List<Map.Entry<String, AtomicInteger>> sorted(final Map<String, AtomicInteger> counts) {
+		final List<Map.Entry<String, AtomicInteger>> rv = new ArrayList<Map.Entry<String, AtomicInteger>>(counts.entrySet());
+		Collections.sort(rv, new Comparator<Map.Entry<String, AtomicInteger>>() {
+			@Override
+			public int compare(final Map.Entry<String, AtomicInteger> o1, final Map.Entry<String, AtomicInteger> o2) {
+				final int c1 = o1.getValue().get(), c2 = o2.getValue().get();
+				return c1 > c2 ? -1 : c1 == c2 ? 0 : 1;
+			}
+		});
+		return rv;
+	}
+
+	/** The alarms held during one digest interval. */
+	private static final class Digest {
+		final AtomicInteger total = new AtomicInteger();
+		final ConcurrentHashMap<String, AtomicInteger> sources = new ConcurrentHashMap<String, AtomicInteger>();
+		final ConcurrentHashMap<Long, Entry> alarms = new ConcurrentHashMap<Long, Entry>();
+		final AtomicInteger distinct = new AtomicInteger();
+		/** The threads adding an alarm right now. */
+		private final AtomicInteger writers = new AtomicInteger();
+		private volatile boolean closed;
+
+		/**
+		 * Adds an alarm to the digest.
+		 * 
+		 * @return false if the digest was closed, so the alarm was not added.
+		 */
+		boolean add(final Alarm alarm) {
+			writers.incrementAndGet();
+			try {
+				if (closed) {
+					return false;
+				}
+				count(alarm);
+				return true;
+			} finally {
+				writers.decrementAndGet();
+			}
+		}
+
+		/** Stops taking alarms, and waits for the ones being added. */
+		void close() {
+			closed = true;
+			while (writers.get() > 0) {
+				Thread.yield();
+			}
+		}
+
+		private void count(final Alarm alarm) {
+			total.incrementAndGet();
+			final String src = alarm.getSource() == null ? "(default)" : alarm.getSource();
+			AtomicInteger sc = sources.get(src);
+			if (sc == null) {
+				sc = new AtomicInteger();
+				final AtomicInteger prev = sources.putIfAbsent(src, sc);
+				if (prev != null) {
+					sc = prev;
+				}
+			}
+			sc.incrementAndGet();
+			final Long k = alarm.getFingerprint();
+			Entry e = alarms.get(k);
+			if (e == null) {
+				if (distinct.incrementAndGet() > MAX_DISTINCT) {
+					distinct.decrementAndGet();
+					return;
+				}
+				e = new Entry(alarm);
+				final Entry prev = alarms.putIfAbsent(k, e);
+				if (prev != null) {
+					distinct.decrementAndGet();
+					e = prev;
+				}
+			}
+			e.count.incrementAndGet();
+		}
+	}
+
+	/** An alarm in a digest, with the number of times it was raised. */
+	private static final class Entry {
+		final Alarm alarm;
+		final AtomicInteger count = new AtomicInteger();
+
+		Entry(final Alarm alarm) {
+			this.alarm = alarm;
+		}
+	}
+
+}
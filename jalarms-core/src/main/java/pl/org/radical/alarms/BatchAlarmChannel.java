@@ -0,0 +1,24 @@
+package pl.org.radical.alarms;
+
+import java.util.List;
+
+/**
+ * An alarm channel that can receive several alarms at once. The AlarmSender uses this when alarms are sent
+ * in bulk with {@link AlarmSender#sendAlarms(java.util.Collection)}, or when the asynchronous
+ * dispatcher finds several alarms waiting, so that channels that can deliver many alarms in one go (in one
+ * email or one HTTP request, for example) get them together. {@link AbstractAlarmChannel} implements this
+ * interface, so most channels only need to override
+ * {@link AbstractAlarmChannel#createBatchSendTask(List)} to take advantage of it.
+ */
+public interface BatchAlarmChannel extends AlarmChannel {
+
+	/**
+	 * Sends several alarms to the users defined for the channel for their sources.
+	 * 
+	 * @param alarms
+	 *            The alarms to be sent, in the order they were raised; they can have different sources.
+	 *            The list must not be modified.
+	 */
+	public void send(List<Alarm> alarms);
+
+}
@@ -0,0 +1,107 @@
+package pl.org.radical.alarms;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors to run the tasks of several alarm channels, set with
+ * {@link AbstractAlarmChannel#setDeliveryExecutor(java.util.concurrent.Executor)}. By default each channel
+ * has a thread of its own; with one of these, all the channels share the same threads, and each channel
+ * still sends its alarms in the order of its own queue, with its own limit of concurrent deliveries.
+ * The caller owns the executors created here and must shut them down when the channels are shut down.
+ */
+public final class ChannelExecutors {
+
+	private static final Method VIRTUAL;
+	private static volatile ScheduledExecutorService scheduler;
+
+	static {
+		Method m;
+		try {
+			m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (final NoSuchMethodException ex) {
+			// Before Java 21
+			m = null;
+		}
+		VIRTUAL = m;
+	}
+
+	private ChannelExecutors() {
+	}
+
+	/**
+	 * Creates a pool of daemon threads to share among channels. Threads that have been idle for a minute
+	 * are stopped, so an idle pool has no threads.
+	 * 
+	 * @param threads
+	 *            The maximum number of threads, which is the maximum number of alarms sent at the same time
+	 *            through all the channels that use the pool.
+	 */
+	public static ExecutorService newSharedPool(final int threads) {
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+		        new LinkedBlockingQueue<Runnable>(), threadFactory("jalarms-delivery", true));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/** Returns true if this JVM has virtual threads, that is, it's Java 21 or newer. */
+	public static boolean isVirtualThreadsAvailable() {
+		return VIRTUAL != null;
+	}
+
+	/**
+	 * Creates an executor that runs each task in a new virtual thread. A delivery that waits for the
+	 * network then only holds a virtual thread, so a channel can have many alarms in flight, limited by
+	 * its concurrency, at almost no cost while it's idle.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if this JVM doesn't have virtual threads.
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		if (VIRTUAL == null) {
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
+		}
+		try {
+			return (ExecutorService) VIRTUAL.invoke(null);
+		} catch (final Exception ex) {
+			throw new UnsupportedOperationException("Cannot create the virtual thread executor", ex);
+		}
+	}
+
+	/**
+	 * Returns the scheduler shared by all channels for the work they do later, such as sending a batch of
+	 * alarms when its time is up. It has a single daemon thread, created the first time it's needed; the
+	 * tasks scheduled on it must be short, and hand anything slow to the channel's executor.
+	 */
+	static ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			synchronized (ChannelExecutors.class) {
+				if (scheduler == null) {
+					scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("jalarms-scheduler", true));
+				}
+			}
+		}
+		return scheduler;
+	}
+
+	/** Returns a thread factory that names the threads with the prefix and a number. */
+	static ThreadFactory threadFactory(final String prefix, final boolean daemon) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+				t.setDaemon(daemon);
+				return t;
+			}
+		};
+	}
+
+}
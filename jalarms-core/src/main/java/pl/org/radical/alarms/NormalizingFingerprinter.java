@@ -0,0 +1,234 @@
+package pl.org.radical.alarms;
+
+/**
+ * A fingerprinter that replaces the parts of a message that change between occurrences of the same problem
+ * before computing the fingerprint, so that "Timeout after 3012ms on order 88123" and
+ * "Timeout after 2999ms on order 88124" are the same alarm. These are replaced, each kind can be turned off:
+ * <ul>
+ * <li>UUIDs, with &lt;uuid&gt;</li>
+ * <li>IPv4 addresses, with an optional port, with &lt;ip&gt;</li>
+ * <li>hex numbers, either with a 0x prefix or at least 8 hex digits with both digits and letters, with &lt;hex&gt;</li>
+ * <li>numbers, including decimals, with &lt;num&gt;; digits that are part of a word, as in "log4j", are kept</li>
+ * <li>text in single or double quotes, with * between the quotes; apostrophes inside words are kept</li>
+ * </ul>
+ * The message is scanned once, left to right, without regular expressions: at the start of each word the
+ * scanner checks for the longest pattern that matches there, and anything else is copied as is. The
+ * normalized message is written to a buffer that each thread reuses, so normalizing doesn't create a new
+ * string for each alarm.
+ */
+public class NormalizingFingerprinter implements AlarmFingerprinter {
+
+	private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	private boolean uuids = true;
+	private boolean ips = true;
+	private boolean hex = true;
+	private boolean numbers = true;
+	private boolean quoted = true;
+
+	/** Sets whether UUIDs are replaced. Default is true. */
+	public void setUuids(final boolean value) {
+		uuids = value;
+	}
+
+	/** Sets whether IPv4 addresses are replaced. Default is true. */
+	public void setIps(final boolean value) {
+		ips = value;
+	}
+
+	/** Sets whether hex numbers are replaced. Default is true. */
+	public void setHex(final boolean value) {
+		hex = value;
+	}
+
+	/** Sets whether decimal numbers are replaced. Default is true. */
+	public void setNumbers(final boolean value) {
+		numbers = value;
+	}
+
+	/** Sets whether quoted text is replaced. Default is true. */
+	public void setQuoted(final boolean value) {
+		quoted = value;
+	}
+
+	@Override
+	public long fingerprint(final String source, final String message) {
+		StringBuilder buf = BUFFER.get();
+		if (buf.capacity() > 65536) {
+			// Don't keep a huge buffer around because of one huge message
+			buf = new StringBuilder(256);
+			BUFFER.set(buf);
+		}
+		buf.setLength(0);
+		normalize(message, buf);
+		return AlarmFingerprint.of(source, buf);
+	}
+
+	/** Returns the normalized message, as used for the fingerprint. */
+	public String normalize(final String message) {
+		final StringBuilder buf = new StringBuilder(message.length());
+		normalize(message, buf);
+		return buf.toString();
+	}
+
+	/** Writes the normalized message to the buffer. */
+	void normalize(final CharSequence m, final StringBuilder out) {
+		final int len = m.length();
+		// Once there's no closing quote after a position, there's none after any later position either
+		int noSingleFrom = len;
+		int noDoubleFrom = len;
+		// Whether the last char was part of a word, in which case no pattern can start here
+		boolean word = false;
+		int i = 0;
+		while (i < len) {
+			final char c = m.charAt(i);
+			if (!word && isHexDigit(c)) {
+				int end;
+				if (uuids && (end = uuid(m, i, len)) > 0) {
+					out.append("<uuid>");
+				} else if (ips && (end = ipv4(m, i, len)) > 0) {
+					out.append("<ip>");
+				} else if (hex && (end = hexNumber(m, i, len)) > 0) {
+					out.append("<hex>");
+				} else if (numbers && c >= '0' && c <= '9') {
+					end = number(m, i, len);
+					out.append("<num>");
+				} else {
+					end = i + 1;
+					out.append(c);
+				}
+				i = end;
+				word = true;
+			} else if (quoted && !word && (c == '\'' && i < noSingleFrom || c == '"' && i < noDoubleFrom)) {
+				int close = i + 1;
+				while (close < len && m.charAt(close) != c) {
+					close++;
+				}
+				if (close < len) {
+					out.append(c).append('*').append(c);
+					i = close + 1;
+				} else {
+					if (c == '\'') {
+						noSingleFrom = i;
+					} else {
+						noDoubleFrom = i;
+					}
+					out.append(c);
+					i++;
+				}
+				word = false;
+			} else {
+				out.append(c);
+				word = isWordChar(c);
+				i++;
+			}
+		}
+	}
+
+	/** Returns the end of the UUID that starts at i, or -1 if there's none. */
+	private static int uuid(final CharSequence m, final int i, final int len) {
+		final int end = i + 36;
+		if (end > len || end < len && isWordChar(m.charAt(end))) {
+			return -1;
+		}
+		for (int j = i; j < end; j++) {
+			final int pos = j - i;
+			if (pos == 8 || pos == 13 || pos == 18 || pos == 23) {
+				if (m.charAt(j) != '-') {
+					return -1;
+				}
+			} else if (!isHexDigit(m.charAt(j))) {
+				return -1;
+			}
+		}
+		return end;
+	}
+
+	/** Returns the end of the IPv4 address (and port) that starts at i, or -1 if there's none. */
+	private static int ipv4(final CharSequence m, final int i, final int len) {
+		int j = i;
+		for (int group = 0; group < 4; group++) {
+			if (group > 0) {
+				if (j >= len || m.charAt(j) != '.') {
+					return -1;
+				}
+				j++;
+			}
+			final int start = j;
+			while (j < len && j - start < 3 && isDigit(m.charAt(j))) {
+				j++;
+			}
+			if (j == start) {
+				return -1;
+			}
+		}
+		if (j + 1 < len && m.charAt(j) == ':' && isDigit(m.charAt(j + 1))) {
+			j++;
+			while (j < len && isDigit(m.charAt(j))) {
+				j++;
+			}
+		}
+		if (j < len && (isWordChar(m.charAt(j)) || m.charAt(j) == '.' && j + 1 < len && isDigit(m.charAt(j + 1)))) {
+			return -1;
+		}
+		return j;
+	}
+
+	/** Returns the end of the hex number that starts at i, or -1 if there's none. */
+	private static int hexNumber(final CharSequence m, final int i, final int len) {
+		int j = i;
+		if (m.charAt(i) == '0' && i + 2 < len && (m.charAt(i + 1) == 'x' || m.charAt(i + 1) == 'X') && isHexDigit(m.charAt(i + 2))) {
+			j = i + 2;
+			while (j < len && isHexDigit(m.charAt(j))) {
+				j++;
+			}
+		} else {
+			boolean digits = false, letters = false;
+			while (j < len && isHexDigit(m.charAt(j))) {
+				if (isDigit(m.charAt(j))) {
+					digits = true;
+				} else {
+					letters = true;
+				}
+				j++;
+			}
+			if (j - i < 8 || !digits || !letters) {
+				return -1;
+			}
+		}
+		return j < len && isWordChar(m.charAt(j)) ? -1 : j;
+	}
+
+	/** Returns the end of the number that starts at i, which must be a digit. */
+	private static int number(final CharSequence m, final int i, final int len) {
+		int j = i + 1;
+		while (j < len && isDigit(m.charAt(j))) {
+			j++;
+		}
+		if (j + 1 < len && m.charAt(j) == '.' && isDigit(m.charAt(j + 1))) {
+			j += 2;
+			while (j < len && isDigit(m.charAt(j))) {
+				j++;
+			}
+		}
+		return j;
+	}
+
+	private static boolean isDigit(final char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isHexDigit(final char c) {
+		return c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+	}
+
+	private static boolean isWordChar(final char c) {
+		return c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c > 127 && Character.isLetterOrDigit(c);
+	}
+
+}
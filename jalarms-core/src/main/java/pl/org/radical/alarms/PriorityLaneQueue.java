@@ -0,0 +1,343 @@
+package pl.org.radical.alarms;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of the tasks of an {@link AbstractAlarmChannel}, with a lane for each alarm severity. Each lane
+ * is first in, first out; the lane to take the next task from is either the highest one with tasks
+ * (strict order), or chosen by smooth weighted round robin among the lanes with tasks, so that lower lanes
+ * get a share of the channel even when the higher ones are busy.
+ * The queue can have a capacity. When it's full, the oldest task of the lowest lane is shed to make room,
+ * as long as that lane is lower than the lane of the new task. Otherwise the overflow policy decides: the
+ * oldest task of the same lane or the new task is shed, or the new task is dropped if a task for the same
+ * alarm is already waiting. Shed tasks are handed to {@link #shed(Task)}, and {@link #offer(Runnable)}
+ * still returns true, since the executor has nothing else to do with them.
+ * To coalesce tasks without looking through the whole queue, the queue counts the fingerprints of the
+ * single alarm tasks waiting in it, but only while the policy is to coalesce.
+ */
+abstract class PriorityLaneQueue extends AbstractQueue<Runnable> {
+
+	static final int LANES = Alarm.Severity.values().length;
+	/** The lane of the tasks that don't have one. */
+	private static final int DEFAULT_LANE = Alarm.DEFAULT_SEVERITY.ordinal();
+
+	/** A task with the alarms it sends, which decide its lane. */
+	abstract static class Task implements Runnable {
+		final Alarm alarm;
+		final List<Alarm> alarms;
+		final int lane;
+
+		/** Creates the task for a single alarm, or for several if alarm is null. */
+		Task(final Alarm alarm, final List<Alarm> alarms) {
+			this.alarm = alarm;
+			this.alarms = alarms;
+			if (alarm != null) {
+				lane = alarm.getSeverity().ordinal();
+			} else {
+				int max = 0;
+				for (int i = 0; i < alarms.size(); i++) {
+					max = Math.max(max, alarms.get(i).getSeverity().ordinal());
+				}
+				lane = max;
+			}
+		}
+
+		/** Returns the number of alarms this task sends. */
+		int size() {
+			return alarm != null ? 1 : alarms.size();
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ArrayDeque<Runnable>[] lanes;
+	private final int[] current = new int[LANES];
+	private int[] weights = { 1, 2, 4, 8 };
+	private volatile boolean weighted;
+	private volatile int capacity;
+	private volatile AbstractAlarmChannel.QueueOverflow overflow;
+	private volatile int count;
+	/** The number of single alarm tasks for each fingerprint, while coalescing. */
+	private HashMap<Long, Integer> fingerprints;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	PriorityLaneQueue(final int capacity, final AbstractAlarmChannel.QueueOverflow overflow) {
+		lanes = new ArrayDeque[LANES];
+		for (int i = 0; i < LANES; i++) {
+			lanes[i] = new ArrayDeque<Runnable>();
+		}
+		this.capacity = capacity;
+		setOverflow(overflow);
+	}
+
+	/** Called, without holding the lock, with each task that is shed because the queue is full. */
+	abstract void shed(Task task);
+
+	/** Called, without holding the lock, with each task that is dropped because the same alarm is waiting to be sent. */
+	abstract void coalesced(Task task);
+
+	void setCapacity(final int value) {
+		capacity = value;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	void setOverflow(final AbstractAlarmChannel.QueueOverflow value) {
+		lock.lock();
+		try {
+			overflow = value;
+			if (value != AbstractAlarmChannel.QueueOverflow.COALESCE) {
+				fingerprints = null;
+			} else if (fingerprints == null) {
+				fingerprints = new HashMap<Long, Integer>();
+				for (final ArrayDeque<Runnable> q : lanes) {
+					for (final Runnable task : q) {
+						added(task);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	AbstractAlarmChannel.QueueOverflow getOverflow() {
+		return overflow;
+	}
+
+	void setWeighted(final boolean value) {
+		weighted = value;
+	}
+
+	boolean isWeighted() {
+		return weighted;
+	}
+
+	/** Sets the weight of each lane, lowest severity first. */
+	void setWeights(final int[] value) {
+		if (value.length != LANES) {
+			throw new IllegalArgumentException(String.format("There must be %d weights, one for each severity", LANES));
+		}
+		for (final int w : value) {
+			if (w < 1) {
+				throw new IllegalArgumentException("The weights must be at least 1");
+			}
+		}
+		lock.lock();
+		try {
+			weights = value.clone();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int[] getWeights() {
+		return weights.clone();
+	}
+
+	private static int laneOf(final Runnable task) {
+		return task instanceof Task ? ((Task) task).lane : DEFAULT_LANE;
+	}
+
+	/** Returns the fingerprint of the alarm of a single alarm task, or null if the task doesn't have one. */
+	private static Long fingerprintOf(final Runnable task) {
+		return task instanceof Task && ((Task) task).alarm != null ? ((Task) task).alarm.getFingerprint() : null;
+	}
+
+	/** Counts a task that was added to a lane; must be called with the lock held. */
+	private void added(final Runnable task) {
+		final HashMap<Long, Integer> fps = fingerprints;
+		final Long fp;
+		if (fps != null && (fp = fingerprintOf(task)) != null) {
+			final Integer n = fps.get(fp);
+			fps.put(fp, n == null ? 1 : n + 1);
+		}
+	}
+
+	/** Forgets a task that was removed from a lane; must be called with the lock held. */
+	private void removed(final Runnable task) {
+		final HashMap<Long, Integer> fps = fingerprints;
+		final Long fp;
+		if (fps != null && (fp = fingerprintOf(task)) != null) {
+			final Integer n = fps.get(fp);
+			if (n == null || n == 1) {
+				fps.remove(fp);
+			} else {
+				fps.put(fp, n - 1);
+			}
+		}
+	}
+
+	@Override
+	public boolean offer(final Runnable task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		final int lane = laneOf(task);
+		Runnable victim = null;
+		boolean duplicate = false;
+		lock.lock();
+		try {
+			final int cap = capacity;
+			if (cap > 0 && count >= cap) {
+				int lowest = 0;
+				while (lanes[lowest].isEmpty()) {
+					lowest++;
+				}
+				final Long fp;
+				if (lowest < lane) {
+					victim = lanes[lowest].pollFirst();
+				} else if (overflow == AbstractAlarmChannel.QueueOverflow.DROP_OLDEST && lowest == lane) {
+					victim = lanes[lane].pollFirst();
+				} else if (fingerprints != null && (fp = fingerprintOf(task)) != null && fingerprints.containsKey(fp)) {
+					victim = task;
+					duplicate = true;
+				} else {
+					victim = task;
+				}
+				if (victim != task) {
+					removed(victim);
+					count--;
+				}
+			}
+			if (victim != task) {
+				lanes[lane].addLast(task);
+				added(task);
+				count++;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (duplicate) {
+			coalesced((Task) task);
+		} else if (victim instanceof Task) {
+			shed((Task) victim);
+		}
+		return true;
+	}
+
+	/** Takes the next task; must be called with the lock held and the queue not empty. */
+	private Runnable dequeue() {
+		int lane = -1;
+		if (weighted) {
+			int total = 0;
+			for (int i = LANES - 1; i >= 0; i--) {
+				if (!lanes[i].isEmpty()) {
+					current[i] += weights[i];
+					total += weights[i];
+					if (lane < 0 || current[i] > current[lane]) {
+						lane = i;
+					}
+				}
+			}
+			current[lane] -= total;
+		} else {
+			lane = LANES - 1;
+			while (lanes[lane].isEmpty()) {
+				lane--;
+			}
+		}
+		count--;
+		final Runnable task = lanes[lane].pollFirst();
+		removed(task);
+		if (lanes[lane].isEmpty()) {
+			// A lane doesn't keep its credit, or its debt, while it has nothing to send
+			current[lane] = 0;
+		}
+		return task;
+	}
+
+	@Override
+	public Runnable poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the first task of the highest lane with tasks, which is not always the next one in weighted order. */
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			for (int i = LANES - 1; i >= 0; i--) {
+				if (!lanes[i].isEmpty()) {
+					return lanes[i].peekFirst();
+				}
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public boolean remove(final Object o) {
+		lock.lock();
+		try {
+			for (final ArrayDeque<Runnable> q : lanes) {
+				if (q.remove(o)) {
+					removed((Runnable) o);
+					count--;
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns an iterator over a copy of the queue, highest lane first. Removing through it removes from the queue. */
+	@Override
+	public Iterator<Runnable> iterator() {
+		final List<Runnable> copy = new ArrayList<Runnable>(count);
+		lock.lock();
+		try {
+			for (int i = LANES - 1; i >= 0; i--) {
+				copy.addAll(lanes[i]);
+			}
+		} finally {
+			lock.unlock();
+		}
+		final Iterator<Runnable> it = copy.iterator();
+		return new Iterator<Runnable>() {
+			private Runnable last;
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public Runnable next() {
+				last = it.next();
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last == null) {
+					throw new IllegalStateException();
+				}
+				PriorityLaneQueue.this.remove(last);
+				last = null;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,16 @@
+package pl.org.radical.alarms;
+
+/**
+ * An alarm channel that receives the whole {@link Alarm}, with its severity, tags and creation time,
+ * instead of just the message and the source. The AlarmSender uses this method for the channels that
+ * implement it. {@link AbstractAlarmChannel} implements this interface, so most channels only need to
+ * override {@link AbstractAlarmChannel#createSendTask(Alarm)} to use the extra data.
+ */
+public interface StructuredAlarmChannel extends AlarmChannel {
+
+	/**
+	 * Sends the alarm to the users defined for the channel for its source.
+	 */
+	public void send(Alarm alarm);
+
+}
@@ -0,0 +1,53 @@
+package pl.org.radical.alarms;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket for the alarms of one source, which allows a sustained rate of alarms plus a burst.
+ * Instead of a number of tokens and a refill time, which would have to be updated together, the bucket keeps
+ * only the time at which it will be full again (the "theoretical arrival time" of the generic cell rate
+ * algorithm): taking a token moves that time forward by one interval, and a token is available as long as
+ * that time is no more than a burst worth of intervals in the future. That single value is updated with
+ * compare-and-swap, so taking tokens is lock-free and the bucket refills itself as time passes.
+ */
+final class TokenBucket {
+
+	private final long interval;
+	private final long burstWindow;
+	private final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+	/** Alarms refused since the last summary. */
+	final AtomicInteger suppressed = new AtomicInteger();
+
+	/**
+	 * @param perMinute
+	 *            The sustained number of alarms per minute.
+	 * @param burst
+	 *            The number of alarms that can be sent at once when the bucket is full.
+	 */
+	TokenBucket(final int perMinute, final int burst) {
+		interval = 60000000000L / Math.max(1, perMinute);
+		burstWindow = interval * Math.max(1, burst);
+	}
+
+	/** Takes a token if one is available at the specified time, as given by {@link System#nanoTime()}. */
+	boolean tryTake(final long now) {
+		for (;;) {
+			final long f = full.get();
+			final long next = (f == Long.MIN_VALUE || f - now < 0 ? now : f) + interval;
+			if (next - now > burstWindow) {
+				return false;
+			}
+			if (full.compareAndSet(f, next)) {
+				return true;
+			}
+		}
+	}
+
+	/** Returns the number of nanoseconds from the specified time until a token is available. */
+	long nanosUntilToken(final long now) {
+		final long f = full.get();
+		return f == Long.MIN_VALUE ? 0 : Math.max(0, f + interval - burstWindow - now);
+	}
+
+}
@@ -0,0 +1,21 @@
+package pl.org.radical.alarms.cache;
+
+import pl.org.radical.alarms.AlarmChannel;
+
+/**
+ * An AlarmCache that can decide if an alarm should be sent and record it in a single atomic step.
+ * Calling {@link #shouldResend(AlarmChannel, String, String)} and then {@link #store(AlarmChannel, String, String)}
+ * leaves a gap in which several threads raising the same alarm can all decide to send it; caches implementing
+ * this interface close that gap, and the AlarmSender uses {@link #tryAcquire(AlarmChannel, String, String)}
+ * instead of the two separate calls whenever it is available.
+ */
+public interface AtomicAlarmCache extends AlarmCache {
+
+	/**
+	 * Returns true if the specified message with optional source has not been sent through the specified
+	 * channel very recently, recording the current date for it at the same time. When several threads call
+	 * this method concurrently for the same alarm, only one of them gets true.
+	 */
+	public boolean tryAcquire(AlarmChannel channel, String source, String message);
+
+}
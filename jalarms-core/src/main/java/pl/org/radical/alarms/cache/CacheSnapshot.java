@@ -0,0 +1,106 @@
+package pl.org.radical.alarms.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes the snapshot files that the caches use to keep their state across restarts.
+ * A snapshot is a small header (magic number, version and the time it was written) followed by one fixed
+ * size record per entry: the key, the time the alarm was last sent and the time until which it must not be
+ * sent again. Files are written to a temporary file which then replaces the previous snapshot, and they
+ * are read through a memory mapping, skipping the entries that have expired in the meantime.
+ */
+final class CacheSnapshot {
+
+	private static final int MAGIC = 0x4a414c53;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 24;
+
+	private final File file;
+	private final File temp;
+	private final DataOutputStream out;
+	private int count;
+
+	/** Receives the entries read from a snapshot. */
+	interface Loader {
+		void load(long key, long sent, long deadline);
+	}
+
+	/** Creates a new snapshot, which is written to the file when {@link #commit()} is called. */
+	CacheSnapshot(final File file) throws IOException {
+		this.file = file;
+		temp = new File(file.getPath() + ".tmp");
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(System.currentTimeMillis());
+	}
+
+	/** Adds an entry to the snapshot. */
+	void add(final long key, final long sent, final long deadline) throws IOException {
+		out.writeLong(key);
+		out.writeLong(sent);
+		out.writeLong(deadline);
+		count++;
+	}
+
+	/** Closes the snapshot and puts it in place of the previous one, returning the number of entries written. */
+	int commit() throws IOException {
+		out.close();
+		if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+			throw new IOException("Cannot replace snapshot " + file);
+		}
+		return count;
+	}
+
+	/** Discards a snapshot that could not be written completely. */
+	void abort() {
+		try {
+			out.close();
+		} catch (final IOException ex) {
+			// nothing to do, the file is deleted anyway
+		}
+		temp.delete();
+	}
+
+	/**
+	 * Reads a snapshot, passing every entry whose deadline is after the specified time to the loader.
+	 * 
+	 * @return The number of entries loaded, or -1 if the file does not exist.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a valid snapshot.
+	 */
+	static int read(final File file, final long now, final Loader loader) throws IOException {
+		if (!file.exists()) {
+			return -1;
+		}
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final MappedByteBuffer buf;
+		try {
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			// The mapping remains valid after the file is closed
+			raf.close();
+		}
+		if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+			throw new IOException("Not a valid alarm cache snapshot: " + file);
+		}
+		int loaded = 0;
+		for (int pos = HEADER_SIZE; pos + RECORD_SIZE <= buf.limit(); pos += RECORD_SIZE) {
+			final long deadline = buf.getLong(pos + 16);
+			if (deadline > now) {
+				loader.load(buf.getLong(pos), buf.getLong(pos + 8), deadline);
+				loaded++;
+			}
+		}
+		return loaded;
+	}
+
+}
@@ -1,22 +1,59 @@
 package pl.org.radical.alarms.cache;
 
 import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmFingerprint;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import javax.annotation.PostConstruct;
+
+import de.huxhorn.lilith.slf4j.Logger;
+import de.huxhorn.lilith.slf4j.LoggerFactory;
 
 /**
  * This is the default cache, which uses a map to store the last date a message was sent for a given
- * channel/msg/source cobination.
+ * channel/msg/source cobination. The map is keyed by the alarm fingerprint combined with an id the cache
+ * gives to each channel, so no strings are built or hashed when the AlarmSender passes a precomputed
+ * fingerprint. Channels are told apart by identity, so several senders can share the same cache.
+ * Entries are dropped once the resend interval they were stored with has elapsed, using a timing wheel
+ * that is advanced as new alarms are stored, and the number of entries can be capped with
+ * {@link #setMaxEntries(int)}.
+ * On hosts with many cores the cache can be split in several independent segments with
+ * {@link #setSegments(int)}; each alarm goes to the segment selected by its fingerprint, and every segment
+ * has its own map, expiry wheel and counters, so threads raising different alarms don't compete for the
+ * same locks or cache lines.
+ * If a snapshot file is set, the entries are saved to it when the cache is shut down and loaded again
+ * in {@link #init()}, so that alarms sent just before a restart are not sent again right after it.
  * 
  * @author Enrique Zamudio
  */
-public class DefaultAlarmCache implements AlarmCache {
+public class DefaultAlarmCache implements FingerprintAlarmCache {
+
+	/** Resolution of the expiry wheel; entries are removed at most this long after they expire. */
+	private static final long EXPIRY_RESOLUTION = 1000;
+	private static final int EXPIRY_SLOTS = 512;
 
-	private final Map<String, Long> lastSends = new ConcurrentHashMap<String, Long>();
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private Segment[] segments = { new Segment() };
+	/** The ids of the channels seen so far, replaced by a copy when a channel is added. */
+	private volatile Map<AlarmChannel, Integer> channelIds = new IdentityHashMap<AlarmChannel, Integer>();
+	private File snapshot;
 	private int defint = 120000;
+	private int maxEntries = 100000;
+	private Eviction eviction = Eviction.EARLIEST_EXPIRY;
+
+	/** What to do when storing an alarm would take the cache over its maximum number of entries. */
+	public enum Eviction {
+		/** Remove the entries that are closest to expiring anyway; those alarms may be resent a bit early. */
+		EARLIEST_EXPIRY,
+		/** Keep the existing entries and don't record new alarms, which means they will not be suppressed. */
+		DISCARD_NEW
+	}
 
 	/**
 	 * Sets the default resend interval, for storing alarms unrelated to a specific channel,
@@ -30,22 +67,123 @@ public class DefaultAlarmCache implements AlarmCache {
 		return defint;
 	}
 
+	/**
+	 * Sets the number of segments the cache is split into, which is rounded up to a power of 2. Default is 1,
+	 * a single map; a value close to the number of cores is better when many threads raise alarms at the same
+	 * time. This must be set before the cache is used, since any stored entries are discarded.
+	 */
+	public void setSegments(final int value) {
+		int n = 1;
+		while (n < value) {
+			n <<= 1;
+		}
+		final Segment[] segs = new Segment[n];
+		for (int i = 0; i < n; i++) {
+			segs[i] = new Segment();
+		}
+		segments = segs;
+	}
+
+	public int getSegments() {
+		return segments.length;
+	}
+
+	/**
+	 * Sets the maximum number of entries the cache can hold. Default is 100,000; 0 or a negative value
+	 * means there is no limit other than the expiration of the entries. When the cache has several segments,
+	 * each one can hold its proportional part of this value.
+	 */
+	public void setMaxEntries(final int value) {
+		maxEntries = value;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/** Sets the policy to apply when the maximum number of entries is reached. */
+	public void setEviction(final Eviction value) {
+		eviction = value;
+	}
+
+	public Eviction getEviction() {
+		return eviction;
+	}
+
+	/**
+	 * Sets the file where the cache saves its entries when it's shut down, and loads them from in
+	 * {@link #init()}. By default nothing is saved.
+	 */
+	public void setSnapshotFile(final String value) {
+		snapshot = value == null ? null : new File(value);
+	}
+
+	public String getSnapshotFile() {
+		return snapshot == null ? null : snapshot.getPath();
+	}
+
+	/**
+	 * Loads the entries saved in the snapshot file, if one was set, skipping those that have already expired.
+	 * This must be called after the cache is configured and before it is used; Spring does it automatically.
+	 */
+	@PostConstruct
+	public void init() {
+		if (snapshot != null) {
+			final long now = System.currentTimeMillis();
+			try {
+				final int loaded = CacheSnapshot.read(snapshot, now, new CacheSnapshot.Loader() {
+					@Override
+					public void load(final long key, final long sent, final long deadline) {
+						final Segment seg = segmentFor(key);
+						final Long k = key;
+						final Long stamp = sent;
+						recorded(seg, k, stamp, now, (int) (deadline - now), seg.map.put(k, stamp) == null);
+					}
+				});
+				if (loaded >= 0) {
+					log.info("Loaded {} alarms from cache snapshot {}", loaded, snapshot);
+				}
+			} catch (final IOException ex) {
+				log.error("Loading cache snapshot {}", snapshot, ex);
+			}
+		}
+	}
+
 	@Override
 	public void store(final AlarmChannel channel, final String source, final String message) {
-		if (channel == null || channel.getMinResendInterval() > 0) {
-			final String k = channel == null ? String.format("ALL:%s:%s", source == null ? "" : source, DigestUtils.md5Hex(message))
-			        : String.format("chan%s:%s:%s", channel.hashCode(), source == null ? "" : source, DigestUtils.md5Hex(message));
-			lastSends.put(k, System.currentTimeMillis());
-		}
+		store(-1, channel, AlarmFingerprint.of(source, message));
 	}
 
 	@Override
 	public boolean shouldResend(final AlarmChannel channel, final String source, final String message) {
+		return shouldResend(-1, channel, AlarmFingerprint.of(source, message));
+	}
+
+	@Override
+	public boolean tryAcquire(final AlarmChannel channel, final String source, final String message) {
+		return tryAcquire(-1, channel, AlarmFingerprint.of(source, message));
+	}
+
+	@Override
+	public void store(final int channelIndex, final AlarmChannel channel, final long fingerprint) {
+		final int interval = channel == null ? defint : channel.getMinResendInterval();
+		if (channel == null || interval > 0) {
+			final long now = System.currentTimeMillis();
+			final Long k = AlarmFingerprint.withChannel(fingerprint, channelId(channelIndex, channel));
+			final Segment seg = segmentFor(k);
+			if (!isFull(seg, k)) {
+				final Long stamp = now;
+				recorded(seg, k, stamp, now, interval, seg.map.put(k, stamp) == null);
+			}
+		}
+	}
+
+	@Override
+	public boolean shouldResend(final int channelIndex, final AlarmChannel channel, final long fingerprint) {
 		boolean resend = true;
 		if (channel == null || channel.getMinResendInterval() > 0) {
-			final String k = channel == null ? String.format("ALL:%s:%s", source == null ? "" : source, DigestUtils.md5Hex(message))
-					: String.format("chan%s:%s:%s", channel.hashCode(), source == null ? "" : source, DigestUtils.md5Hex(message));
-			final Long then = lastSends.get(k);
+			final Long k = AlarmFingerprint.withChannel(fingerprint, channelId(channelIndex, channel));
+			final Long then = segmentFor(k).map.get(k);
 			// Check the last time this same message was sent
 			if (then != null) {
 				// If it's too recent, don't send it through this channel
@@ -55,13 +193,157 @@ public class DefaultAlarmCache implements AlarmCache {
 		return resend;
 	}
 
+	@Override
+	public boolean tryAcquire(final int channelIndex, final AlarmChannel channel, final long fingerprint) {
+		final int interval = channel == null ? defint : channel.getMinResendInterval();
+		if (channel != null && interval <= 0) {
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		final Long k = AlarmFingerprint.withChannel(fingerprint, channelId(channelIndex, channel));
+		final Segment seg = segmentFor(k);
+		for (;;) {
+			final Long then = seg.map.get(k);
+			if (then == null) {
+				if (isFull(seg, k)) {
+					return true;
+				}
+				final Long stamp = now;
+				if (seg.map.putIfAbsent(k, stamp) == null) {
+					recorded(seg, k, stamp, now, interval, true);
+					return true;
+				}
+			} else if (now - then < interval) {
+				// Sent too recently, this is the common case during an alarm storm
+				return false;
+			} else {
+				final Long stamp = now;
+				if (seg.map.replace(k, then, stamp)) {
+					recorded(seg, k, stamp, now, interval, false);
+					return true;
+				}
+			}
+			// Another thread got there first, check again
+		}
+	}
+
+	private Segment segmentFor(final long k) {
+		final Segment[] segs = segments;
+		// The low bits of the key select the bucket inside the map, so use the high bits here
+		return segs[(int) (k >>> 40) & segs.length - 1];
+	}
+
+	/** Returns the maximum number of entries for each segment. */
+	private int segmentMax() {
+		final int max = maxEntries;
+		final int n = segments.length;
+		return max <= 0 ? 0 : (max + n - 1) / n;
+	}
+
+	/**
+	 * Returns true if the segment is full and the eviction policy says that the key cannot be added.
+	 * The rejected key is counted as evicted.
+	 */
+	private boolean isFull(final Segment seg, final Long k) {
+		final int max = segmentMax();
+		if (max > 0 && eviction == Eviction.DISCARD_NEW && seg.wheel.size.get() >= max && !seg.map.containsKey(k)) {
+			seg.wheel.evicted.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/** Schedules the expiration of a key that was just put in the segment, and enforces the maximum size. */
+	private void recorded(final Segment seg, final Long k, final Long stamp, final long now, final int interval, final boolean created) {
+		seg.wheel.schedule(k, stamp, now + interval, created);
+		seg.wheel.expire(now);
+		final int max = segmentMax();
+		if (max > 0 && seg.wheel.size.get() > max) {
+			seg.wheel.evict(max);
+		}
+	}
+
+	/**
+	 * Returns the id of the channel in the keys. The index of a channel in a sender is not enough to tell it
+	 * apart: another sender sharing the cache may have a different channel at the same index, and the index
+	 * changes when the channels are set again. A channel seen for the first time gets its index as its id if
+	 * no other channel has it, so the keys saved in a snapshot still match after a restart.
+	 */
+	private int channelId(final int channelIndex, final AlarmChannel channel) {
+		if (channel == null) {
+			return -1;
+		}
+		final Integer id = channelIds.get(channel);
+		return id == null ? addChannel(channelIndex, channel) : id;
+	}
+
+	private synchronized int addChannel(final int channelIndex, final AlarmChannel channel) {
+		Integer id = channelIds.get(channel);
+		if (id == null) {
+			final Map<AlarmChannel, Integer> ids = new IdentityHashMap<AlarmChannel, Integer>(channelIds);
+			if (channelIndex >= 0 && !ids.containsValue(channelIndex)) {
+				id = channelIndex;
+			} else {
+				int max = -1;
+				for (final Integer other : ids.values()) {
+					max = Math.max(max, other);
+				}
+				id = max + 1;
+			}
+			ids.put(channel, id);
+			channelIds = ids;
+		}
+		return id;
+	}
+
+	/** Returns the number of entries currently held by the cache. */
+	public int size() {
+		long size = 0;
+		for (final Segment seg : segments) {
+			size += seg.wheel.size.get();
+		}
+		return (int) size;
+	}
+
 	@Override
 	public String toString() {
-		return String.format("Default(%d keys)", lastSends.size());
+		long size = 0, expired = 0, evicted = 0;
+		for (final Segment seg : segments) {
+			size += seg.wheel.size.get();
+			expired += seg.wheel.expired.get();
+			evicted += seg.wheel.evicted.get();
+		}
+		if (segments.length > 1) {
+			return String.format("Default(%d keys in %d segments, %d expired, %d evicted)", size, segments.length, expired, evicted);
+		}
+		return String.format("Default(%d keys, %d expired, %d evicted)", size, expired, evicted);
 	}
 
+	/** Saves the entries to the snapshot file, if one was set. */
 	@Override
 	public void shutdown() {
+		if (snapshot != null) {
+			final long now = System.currentTimeMillis();
+			CacheSnapshot snap = null;
+			try {
+				snap = new CacheSnapshot(snapshot);
+				for (final Segment seg : segments) {
+					seg.wheel.snapshot(snap, now);
+				}
+				log.info("Saved {} alarms to cache snapshot {}", snap.commit(), snapshot);
+			} catch (final IOException ex) {
+				log.error("Saving cache snapshot {}", snapshot, ex);
+				if (snap != null) {
+					snap.abort();
+				}
+			}
+		}
+	}
+
+	/** A part of the cache, with its own map and expiry wheel. */
+	private static final class Segment {
+		private final ConcurrentMap<Long, Long> map = new ConcurrentHashMap<Long, Long>();
+		private final ExpiryWheel wheel = new ExpiryWheel(map, EXPIRY_SLOTS, EXPIRY_RESOLUTION);
 	}
 
 }
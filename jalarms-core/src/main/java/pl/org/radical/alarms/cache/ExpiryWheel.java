@@ -0,0 +1,154 @@
+package pl.org.radical.alarms.cache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hashed timing wheel used by the caches to forget about alarms once their resend interval has elapsed.
+ * Every stored key is scheduled in the slot for its deadline; the wheel is advanced by whichever thread
+ * stores something when a tick has passed, so each call only pays for the slots that expired since the
+ * last one, and there is no need for a separate thread. Deadlines further away than one turn of the wheel
+ * simply stay in their slot until a later turn reaches them.
+ * The wheel only removes a key from the map if it still holds the timestamp that was scheduled, so a key
+ * that was stored again in the meantime is kept until its newer deadline.
+ */
+final class ExpiryWheel {
+
+	private final Queue<Entry>[] slots;
+	private final int mask;
+	private final long resolution;
+	private final ConcurrentMap<Long, Long> map;
+	private final ReentrantLock sweepLock = new ReentrantLock();
+	private volatile long lastTick;
+
+	/** The number of keys in the map, kept here because ConcurrentHashMap.size() is too expensive. */
+	final PaddedAtomicLong size = new PaddedAtomicLong();
+	final PaddedAtomicLong expired = new PaddedAtomicLong();
+	final PaddedAtomicLong evicted = new PaddedAtomicLong();
+
+	/**
+	 * Creates a new wheel for the specified map.
+	 * 
+	 * @param map
+	 *            The map holding the last send time of each key.
+	 * @param wheelSize
+	 *            The number of slots, rounded up to a power of 2.
+	 * @param resolution
+	 *            The duration of a tick in milliseconds; keys are removed up to this long after their deadline.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	ExpiryWheel(final ConcurrentMap<Long, Long> map, final int wheelSize, final long resolution) {
+		int n = 1;
+		while (n < wheelSize) {
+			n <<= 1;
+		}
+		slots = new Queue[n];
+		for (int i = 0; i < n; i++) {
+			slots[i] = new ConcurrentLinkedQueue<Entry>();
+		}
+		mask = n - 1;
+		this.map = map;
+		this.resolution = resolution;
+		lastTick = System.currentTimeMillis() / resolution;
+	}
+
+	/**
+	 * Records that the key was put in the map with the specified timestamp, and schedules its removal.
+	 * 
+	 * @param created
+	 *            true if the key was not in the map before, so it counts towards the size.
+	 */
+	void schedule(final Long key, final Long stamp, final long deadline, final boolean created) {
+		if (created) {
+			size.incrementAndGet();
+		}
+		long tick = deadline / resolution;
+		final long last = lastTick;
+		if (tick <= last) {
+			// That slot was already swept in this turn
+			tick = last + 1;
+		}
+		slots[(int) (tick & mask)].add(new Entry(key, stamp, deadline));
+	}
+
+	/**
+	 * Removes all the keys whose deadline has passed, if at least a tick has elapsed since the last time
+	 * and no other thread is already doing it.
+	 */
+	void expire(final long now) {
+		final long tick = now / resolution;
+		if (tick > lastTick && sweepLock.tryLock()) {
+			try {
+				final long from = Math.max(lastTick + 1, tick - mask);
+				for (long t = from; t <= tick; t++) {
+					final Iterator<Entry> iter = slots[(int) (t & mask)].iterator();
+					while (iter.hasNext()) {
+						final Entry e = iter.next();
+						if (e.deadline <= now) {
+							iter.remove();
+							if (map.remove(e.key, e.stamp)) {
+								size.decrementAndGet();
+								expired.incrementAndGet();
+							}
+						}
+					}
+				}
+				lastTick = tick;
+			} finally {
+				sweepLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Removes keys from the map, starting with the slots closest to their deadline, until the map is down
+	 * to the specified number of keys.
+	 */
+	void evict(final int maxSize) {
+		sweepLock.lock();
+		try {
+			final long first = lastTick + 1;
+			for (long t = first; t <= first + mask && size.get() > maxSize; t++) {
+				final Iterator<Entry> iter = slots[(int) (t & mask)].iterator();
+				while (iter.hasNext() && size.get() > maxSize) {
+					final Entry e = iter.next();
+					iter.remove();
+					if (map.remove(e.key, e.stamp)) {
+						size.decrementAndGet();
+						evicted.incrementAndGet();
+					}
+				}
+			}
+		} finally {
+			sweepLock.unlock();
+		}
+	}
+
+	/** Adds every key that is still in the map with its scheduled timestamp to the snapshot. */
+	void snapshot(final CacheSnapshot snap, final long now) throws IOException {
+		for (final Queue<Entry> slot : slots) {
+			for (final Entry e : slot) {
+				if (e.deadline > now && e.stamp.equals(map.get(e.key))) {
+					snap.add(e.key, e.stamp, e.deadline);
+				}
+			}
+		}
+	}
+
+	private static final class Entry {
+		private final Long key;
+		private final Long stamp;
+		private final long deadline;
+
+		private Entry(final Long key, final Long stamp, final long deadline) {
+			this.key = key;
+			this.stamp = stamp;
+			this.deadline = deadline;
+		}
+	}
+
+}
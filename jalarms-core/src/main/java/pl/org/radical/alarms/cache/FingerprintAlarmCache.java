@@ -0,0 +1,42 @@
+package pl.org.radical.alarms.cache;
+
+import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmFingerprint;
+
+/**
+ * An AlarmCache that can work with precomputed alarm fingerprints. When the AlarmSender's cache implements
+ * this interface, the fingerprint of each alarm is computed only once (see {@link AlarmFingerprint}) and
+ * passed to the cache for every channel, along with the index of the channel within the sender, so the
+ * cache does not need to hash or format anything on its own. Caches that live in the same process as the
+ * channels can tell them apart by identity instead; the index is stable across processes and restarts.
+ */
+public interface FingerprintAlarmCache extends AtomicAlarmCache {
+
+	/**
+	 * Stores the current date for the alarm with the specified fingerprint, for the given channel.
+	 * 
+	 * @param channelIndex
+	 *            The index of the channel within the AlarmSender, or -1 if the channel is null.
+	 * @param channel
+	 *            The channel, used to get the resend interval. Can be null, in which case the cache
+	 *            uses its default interval.
+	 * @param fingerprint
+	 *            The alarm fingerprint, as computed by {@link AlarmFingerprint#of(String, String)}.
+	 */
+	public void store(int channelIndex, AlarmChannel channel, long fingerprint);
+
+	/**
+	 * This method returns true if the alarm with the specified fingerprint has not been sent through the
+	 * specified channel very recently (meaning the resend interval for the channel has elapsed).
+	 * The parameters are the same as in {@link #store(int, AlarmChannel, long)}.
+	 */
+	public boolean shouldResend(int channelIndex, AlarmChannel channel, long fingerprint);
+
+	/**
+	 * Atomically checks if the alarm with the specified fingerprint should be sent through the channel and
+	 * records it if so, as in {@link AtomicAlarmCache#tryAcquire(AlarmChannel, String, String)}.
+	 * The parameters are the same as in {@link #store(int, AlarmChannel, long)}.
+	 */
+	public boolean tryAcquire(int channelIndex, AlarmChannel channel, long fingerprint);
+
+}
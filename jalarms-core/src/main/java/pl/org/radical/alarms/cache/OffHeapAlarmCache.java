@@ -0,0 +1,207 @@
+package pl.org.radical.alarms.cache;
+
+import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmFingerprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.annotation.PostConstruct;
+
+import de.huxhorn.lilith.slf4j.Logger;
+import de.huxhorn.lilith.slf4j.LoggerFactory;
+
+/**
+ * An alarm cache that keeps its data outside the Java heap, in a direct buffer of fixed size. Each entry
+ * is just the alarm fingerprint (combined with the channel index) and the time until which the alarm must
+ * not be resent, 16 bytes in total, stored in an open addressing table with linear probing; there are no
+ * objects per entry, so the number of distinct alarms has no effect on garbage collection.
+ * Expired entries are reused in place, and when the table is too full the entries closest to expiring
+ * are overwritten, so the memory used never grows beyond the budget set with {@link #setMaxMemory(int)}.
+ * To use it, just set it as the cache of the AlarmSender with
+ * {@link pl.org.radical.alarms.AlarmSender#setAlarmCache(AlarmCache)}.
+ * If a snapshot file is set, the entries are saved to it when the cache is shut down and loaded again
+ * in {@link #init()}.
+ * Since the channels are identified by their index, a sender should have its own OffHeapAlarmCache, and
+ * the entries no longer match the channels after they are set in a different order.
+ */
+public class OffHeapAlarmCache implements FingerprintAlarmCache {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private int maxMemory = 16 * 1024 * 1024;
+	private File snapshot;
+	private int defint = 120000;
+	private volatile OffHeapTable table;
+
+	/**
+	 * Sets the amount of memory, in bytes, to use for the cache. The table will use the largest power of 2
+	 * number of 16 byte slots that fits in this size. Default is 16MB (one million entries).
+	 * This must be set before the cache is used.
+	 */
+	public void setMaxMemory(final int value) {
+		if (value < OffHeapTable.SLOT_SIZE * OffHeapTable.MAX_PROBE) {
+			throw new IllegalArgumentException("The cache needs at least " + OffHeapTable.SLOT_SIZE * OffHeapTable.MAX_PROBE + " bytes");
+		}
+		maxMemory = value;
+	}
+
+	public int getMaxMemory() {
+		return maxMemory;
+	}
+
+	/**
+	 * Sets the default resend interval, for storing alarms unrelated to a specific channel,
+	 * in milliseconds. Default is 2 minutes.
+	 */
+	public void setDefaultInterval(final int value) {
+		defint = value;
+	}
+
+	public int getDefaultInterval() {
+		return defint;
+	}
+
+	/**
+	 * Sets the file where the cache saves its entries when it's shut down, and loads them from in
+	 * {@link #init()}. By default nothing is saved.
+	 */
+	public void setSnapshotFile(final String value) {
+		snapshot = value == null ? null : new File(value);
+	}
+
+	public String getSnapshotFile() {
+		return snapshot == null ? null : snapshot.getPath();
+	}
+
+	/**
+	 * Loads the entries saved in the snapshot file, if one was set, skipping those that have already expired.
+	 * This must be called after the cache is configured and before it is used; Spring does it automatically.
+	 */
+	@PostConstruct
+	public void init() {
+		if (snapshot != null) {
+			final OffHeapTable t = table();
+			final long now = System.currentTimeMillis();
+			try {
+				final int loaded = CacheSnapshot.read(snapshot, now, new CacheSnapshot.Loader() {
+					@Override
+					public void load(final long key, final long sent, final long deadline) {
+						t.acquire(key, now, deadline, true);
+					}
+				});
+				if (loaded >= 0) {
+					log.info("Loaded {} alarms from cache snapshot {}", loaded, snapshot);
+				}
+			} catch (final IOException ex) {
+				log.error("Loading cache snapshot {}", snapshot, ex);
+			}
+		}
+	}
+
+	/** Allocates the memory for the table the first time it's needed. */
+	private OffHeapTable table() {
+		OffHeapTable t = table;
+		if (t == null) {
+			synchronized (this) {
+				t = table;
+				if (t == null) {
+					final int slots = Integer.highestOneBit(maxMemory / OffHeapTable.SLOT_SIZE);
+					t = new OffHeapTable(ByteBuffer.allocateDirect(slots * OffHeapTable.SLOT_SIZE), 0, slots);
+					table = t;
+				}
+			}
+		}
+		return t;
+	}
+
+	@Override
+	public void store(final AlarmChannel channel, final String source, final String message) {
+		store(legacyIndex(channel), channel, AlarmFingerprint.of(source, message));
+	}
+
+	@Override
+	public boolean shouldResend(final AlarmChannel channel, final String source, final String message) {
+		return shouldResend(legacyIndex(channel), channel, AlarmFingerprint.of(source, message));
+	}
+
+	@Override
+	public boolean tryAcquire(final AlarmChannel channel, final String source, final String message) {
+		return tryAcquire(legacyIndex(channel), channel, AlarmFingerprint.of(source, message));
+	}
+
+	@Override
+	public void store(final int channelIndex, final AlarmChannel channel, final long fingerprint) {
+		final int interval = channel == null ? defint : channel.getMinResendInterval();
+		if (channel == null || interval > 0) {
+			final long now = System.currentTimeMillis();
+			table().acquire(AlarmFingerprint.withChannel(fingerprint, channelIndex), now, now + interval, true);
+		}
+	}
+
+	@Override
+	public boolean shouldResend(final int channelIndex, final AlarmChannel channel, final long fingerprint) {
+		if (channel == null || channel.getMinResendInterval() > 0) {
+			return !table().isLive(AlarmFingerprint.withChannel(fingerprint, channelIndex), System.currentTimeMillis());
+		}
+		return true;
+	}
+
+	@Override
+	public boolean tryAcquire(final int channelIndex, final AlarmChannel channel, final long fingerprint) {
+		final int interval = channel == null ? defint : channel.getMinResendInterval();
+		if (channel != null && interval <= 0) {
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		return table().acquire(AlarmFingerprint.withChannel(fingerprint, channelIndex), now, now + interval, false);
+	}
+
+	/**
+	 * Callers of the string based methods don't know the channel's index in the sender, so the channel's
+	 * hash code is used instead.
+	 */
+	private static int legacyIndex(final AlarmChannel channel) {
+		return channel == null ? -1 : channel.hashCode();
+	}
+
+	/** Returns the number of slots in use; expired entries keep their slot until it's reused. */
+	public int size() {
+		final OffHeapTable t = table;
+		return t == null ? 0 : (int) t.used.get();
+	}
+
+	@Override
+	public String toString() {
+		final OffHeapTable t = table;
+		if (t == null) {
+			return "OffHeap(empty)";
+		}
+		return String.format("OffHeap(%d slots, %d used, %d reused, %d evicted)", t.capacity(), t.used.get(), t.reused.get(),
+		        t.evicted.get());
+	}
+
+	/**
+	 * Saves the entries to the snapshot file if one was set, and releases the table; the memory is freed
+	 * when the buffer is garbage collected.
+	 */
+	@Override
+	public void shutdown() {
+		final OffHeapTable t = table;
+		table = null;
+		if (t != null && snapshot != null) {
+			CacheSnapshot snap = null;
+			try {
+				snap = new CacheSnapshot(snapshot);
+				t.snapshot(snap, System.currentTimeMillis());
+				log.info("Saved {} alarms to cache snapshot {}", snap.commit(), snapshot);
+			} catch (final IOException ex) {
+				log.error("Saving cache snapshot {}", snapshot, ex);
+				if (snap != null) {
+					snap.abort();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+package pl.org.radical.alarms.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An open addressing hash table of long keys to long deadlines, stored in a direct or mapped buffer.
+ * Each slot takes 16 bytes: the key (0 means the slot is free) and the time in milliseconds until which
+ * the alarm with that key must not be sent again. Collisions are solved with linear probing, limited to
+ * {@link #MAX_PROBE} slots from the key's home slot.
+ * Keys are never removed; an expired slot is reused in place the next time a key needs a slot near it,
+ * and when there are no free or expired slots near a key, the slot with the earliest deadline is evicted.
+ * All updates are lock-free compare-and-swap operations on the slots, so the table can be shared by many
+ * threads, or even by several processes if the buffer is a shared memory mapping. While a slot is being
+ * written its deadline is negative, and holds the time it was locked. A thread that finds a locked slot
+ * for too long gives up and lets the alarm through; if the slot has been locked for more than
+ * {@link #LOCK_TIMEOUT} (because the process writing it died, for example), it's taken back.
+ */
+final class OffHeapTable {
+
+	/** Bytes taken by each slot. */
+	static final int SLOT_SIZE = 16;
+	/** Maximum number of slots probed for a key. */
+	static final int MAX_PROBE = 32;
+	private static final int MAX_SPINS = 1000;
+	/** The time in milliseconds after which a locked slot is considered abandoned by its writer. */
+	static final long LOCK_TIMEOUT = 1000;
+
+	/** Kept only so that the memory is not released while the table is in use. */
+	private final ByteBuffer buf;
+	private final long base;
+	private final int mask;
+
+	final PaddedAtomicLong used = new PaddedAtomicLong();
+	final PaddedAtomicLong reused = new PaddedAtomicLong();
+	final PaddedAtomicLong evicted = new PaddedAtomicLong();
+
+	/**
+	 * Creates a table in the specified buffer.
+	 * 
+	 * @param buf
+	 *            A direct or mapped buffer, which must be zeroed the first time it is used.
+	 * @param offset
+	 *            The position in the buffer where the first slot starts; must be a multiple of 8.
+	 * @param slots
+	 *            The number of slots, which must be a power of 2 and fit in the buffer.
+	 */
+	OffHeapTable(final ByteBuffer buf, final int offset, final int slots) {
+		if (Integer.bitCount(slots) != 1 || offset + (long) slots * SLOT_SIZE > buf.capacity()) {
+			throw new IllegalArgumentException(String.format("Cannot fit %d slots in %d bytes", slots, buf.capacity() - offset));
+		}
+		this.buf = buf;
+		base = UnsafeMemory.address(buf) + offset;
+		mask = slots - 1;
+	}
+
+	/** Returns the number of slots in the table. */
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Records the deadline for the key. If the key already has a deadline that has not passed yet and
+	 * <code>force</code> is false, nothing is changed.
+	 * 
+	 * @return true if the deadline was recorded (or if it could not be, because the slots near the key
+	 *         were locked), false if the key already had a deadline in the future.
+	 */
+	boolean acquire(final long key, final long now, final long deadline, final boolean force) {
+		final long k = key == 0 ? 1 : key;
+		final int home = (int) (k ^ k >>> 32);
+		int spins = 0;
+		retry: for (;;) {
+			if (spins++ > MAX_SPINS) {
+				return true;
+			} else if (spins > 1) {
+				Thread.yield();
+			}
+			long reuse = 0;
+			long reuseDeadline = 0;
+			final int probes = Math.min(MAX_PROBE, mask + 1);
+			for (int i = 0; i < probes; i++) {
+				final long addr = slot(home + i);
+				// Read the deadline before and after the key; a slot that is rewritten in between is locked
+				final long d = UnsafeMemory.getLongVolatile(addr + 8);
+				final long sk = UnsafeMemory.getLongVolatile(addr);
+				if (d < 0 && !abandoned(d, now)) {
+					// It may be getting this key right now, whatever key it has yet
+					continue retry;
+				}
+				if (sk == k) {
+					if (d < 0) {
+						if (replace(addr, d, k, now, deadline)) {
+							return true;
+						}
+						continue retry;
+					}
+					if (d != UnsafeMemory.getLongVolatile(addr + 8)) {
+						continue retry;
+					}
+					if (!force && d > now) {
+						return false;
+					}
+					if (UnsafeMemory.compareAndSwapLong(addr + 8, d, deadline)) {
+						return true;
+					}
+					continue retry;
+				} else if (sk == 0) {
+					if (reuse != 0) {
+						// Prefer the expired slot, which is closer to the key's home
+						if (replace(reuse, reuseDeadline, k, now, deadline)) {
+							reused.incrementAndGet();
+							return true;
+						}
+					} else if ((d == 0 || abandoned(d, now)) && replace(addr, d, k, now, deadline)) {
+						used.incrementAndGet();
+						return true;
+					}
+					continue retry;
+				} else if (reuse == 0 && (d >= 0 && d <= now || abandoned(d, now))) {
+					reuse = addr;
+					reuseDeadline = d;
+				}
+			}
+			// There are no free slots near the key's home
+			if (reuse != 0) {
+				if (replace(reuse, reuseDeadline, k, now, deadline)) {
+					reused.incrementAndGet();
+					return true;
+				}
+				continue retry;
+			}
+			long victim = 0;
+			long victimDeadline = Long.MAX_VALUE;
+			for (int i = 0; i < probes; i++) {
+				final long addr = slot(home + i);
+				final long d = UnsafeMemory.getLongVolatile(addr + 8);
+				if (d >= 0 && d < victimDeadline) {
+					victim = addr;
+					victimDeadline = d;
+				}
+			}
+			if (victim != 0 && replace(victim, victimDeadline, k, now, deadline)) {
+				evicted.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/** Returns true if the key has a deadline that has not passed yet. */
+	boolean isLive(final long key, final long now) {
+		final long k = key == 0 ? 1 : key;
+		final int home = (int) (k ^ k >>> 32);
+		final int probes = Math.min(MAX_PROBE, mask + 1);
+		for (int i = 0; i < probes; i++) {
+			final long addr = slot(home + i);
+			final long d = UnsafeMemory.getLongVolatile(addr + 8);
+			final long sk = UnsafeMemory.getLongVolatile(addr);
+			if (sk == k) {
+				// A locked slot is being written by whoever is sending this alarm right now, unless it was abandoned
+				return d < 0 ? !abandoned(d, now) : d > now;
+			} else if (sk == 0) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the number of keys whose deadline has not passed yet. This scans the whole table. */
+	int countLive(final long now) {
+		int count = 0;
+		for (int i = 0; i <= mask; i++) {
+			final long addr = slot(i);
+			if (UnsafeMemory.getLongVolatile(addr) != 0 && UnsafeMemory.getLongVolatile(addr + 8) > now) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** Adds every key whose deadline has not passed yet to the snapshot. */
+	void snapshot(final CacheSnapshot snap, final long now) throws IOException {
+		for (int i = 0; i <= mask; i++) {
+			final long addr = slot(i);
+			final long d = UnsafeMemory.getLongVolatile(addr + 8);
+			final long k = UnsafeMemory.getLongVolatile(addr);
+			if (k != 0 && d > now) {
+				snap.add(k, 0, d);
+			}
+		}
+	}
+
+	private long slot(final int index) {
+		return base + (long) (index & mask) * SLOT_SIZE;
+	}
+
+	/** Returns true if the deadline of a slot says it has been locked for longer than {@link #LOCK_TIMEOUT}. */
+	private static boolean abandoned(final long d, final long now) {
+		// A slot locked at time t has -1 - t as its deadline
+		return d < 0 && now - (-1 - d) > LOCK_TIMEOUT;
+	}
+
+	/**
+	 * Locks the slot if it still has the expected deadline, and writes the new key and deadline in it. The
+	 * slot is locked with the current time, so that it can be taken back if this thread never unlocks it.
+	 */
+	private boolean replace(final long addr, final long expected, final long key, final long now, final long deadline) {
+		final long locked = -1 - now;
+		if (UnsafeMemory.compareAndSwapLong(addr + 8, expected, locked)) {
+			UnsafeMemory.putLongVolatile(addr, key);
+			// If the slot was taken back meanwhile, it's the other thread's now
+			UnsafeMemory.compareAndSwapLong(addr + 8, locked, deadline);
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,55 @@
+package pl.org.radical.alarms.cache;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A counter padded on both sides to take a whole cache line, so that counters updated by different threads
+ * (for example, the counters of different cache segments) don't slow each other down through false sharing.
+ * The JVM lays out the fields of a superclass before those of its subclasses, so the padding is split
+ * between a superclass and a subclass of the class with the value; padding in a single class could be
+ * reordered around it.
+ */
+final class PaddedAtomicLong extends PaddedAtomicLongValue {
+
+	/** Padding after the value, never read. */
+	protected long p9, p10, p11, p12, p13, p14, p15;
+
+	private static final AtomicLongFieldUpdater<PaddedAtomicLongValue> VALUE = AtomicLongFieldUpdater.newUpdater(
+	        PaddedAtomicLongValue.class, "value");
+
+	long get() {
+		return value;
+	}
+
+	void set(final long newValue) {
+		value = newValue;
+	}
+
+	long incrementAndGet() {
+		return VALUE.incrementAndGet(this);
+	}
+
+	long decrementAndGet() {
+		return VALUE.decrementAndGet(this);
+	}
+
+	long addAndGet(final long delta) {
+		return VALUE.addAndGet(this, delta);
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(value);
+	}
+
+}
+
+/** Padding before the value of a {@link PaddedAtomicLong}, never read. */
+abstract class PaddedAtomicLongPadding {
+	protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+/** The value of a {@link PaddedAtomicLong}, between its paddings. */
+abstract class PaddedAtomicLongValue extends PaddedAtomicLongPadding {
+	protected volatile long value;
+}
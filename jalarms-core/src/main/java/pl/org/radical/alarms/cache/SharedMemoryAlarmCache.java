@@ -0,0 +1,216 @@
+package pl.org.radical.alarms.cache;
+
+import pl.org.radical.alarms.AlarmChannel;
+import pl.org.radical.alarms.AlarmFingerprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.annotation.PostConstruct;
+
+import de.huxhorn.lilith.slf4j.Logger;
+import de.huxhorn.lilith.slf4j.LoggerFactory;
+
+/**
+ * An alarm cache shared by all the processes on the same host, through a memory mapped file. This is useful
+ * when several JVMs on one machine send the same alarms through the same channels, and you don't want to
+ * depend on a memcached server for that (see AlarmMemcachedClient for a cache shared across hosts).
+ * The file holds a small header and an open addressing table of alarm fingerprints and deadlines, which
+ * every process updates with lock-free compare-and-swap operations, so there is no daemon or lock file
+ * involved. By default the file is <code>/dev/shm/jalarms.cache</code>, which on Linux lives in memory;
+ * any other path works as well, as long as all the processes use the same one.
+ * The alarms are identified by their fingerprint and the index of the channel in the AlarmSender, so the
+ * processes sharing a file should have their channels set up in the same order. The first process to create
+ * the file decides its size; the others use the size in the header, whatever their own setting is.
+ */
+public class SharedMemoryAlarmCache implements FingerprintAlarmCache {
+
+	/** "JALMSHM1" */
+	private static final long MAGIC = 0x4a414c4d53484d31L;
+	private static final int HEADER_SIZE = 64;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private String path = "/dev/shm/jalarms.cache";
+	private int maxMemory = 16 * 1024 * 1024;
+	private int defint = 120000;
+	private volatile OffHeapTable table;
+
+	/** Sets the path of the shared file. Default is <code>/dev/shm/jalarms.cache</code>. */
+	public void setPath(final String value) {
+		path = value;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Sets the amount of memory, in bytes, for the table if this process creates the file. The table will use
+	 * the largest power of 2 number of 16 byte slots that fits in this size. Default is 16MB (one million entries).
+	 */
+	public void setMaxMemory(final int value) {
+		if (value < OffHeapTable.SLOT_SIZE * OffHeapTable.MAX_PROBE) {
+			throw new IllegalArgumentException("The cache needs at least " + OffHeapTable.SLOT_SIZE * OffHeapTable.MAX_PROBE + " bytes");
+		}
+		maxMemory = value;
+	}
+
+	public int getMaxMemory() {
+		return maxMemory;
+	}
+
+	/**
+	 * Sets the default resend interval, for storing alarms unrelated to a specific channel,
+	 * in milliseconds. Default is 2 minutes.
+	 */
+	public void setDefaultInterval(final int value) {
+		defint = value;
+	}
+
+	public int getDefaultInterval() {
+		return defint;
+	}
+
+	/**
+	 * Maps the shared file, creating it if it doesn't exist yet. If it's not called, the file is mapped
+	 * the first time the cache is used.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be created or mapped.
+	 */
+	@PostConstruct
+	public void init() throws IOException {
+		if (table == null) {
+			synchronized (this) {
+				if (table == null) {
+					table = map();
+				}
+			}
+		}
+	}
+
+	private OffHeapTable map() throws IOException {
+		final int mySlots = Integer.highestOneBit(maxMemory / OffHeapTable.SLOT_SIZE);
+		final RandomAccessFile raf = new RandomAccessFile(new File(path), "rw");
+		try {
+			if (raf.length() < HEADER_SIZE + (long) mySlots * OffHeapTable.SLOT_SIZE) {
+				// Growing a file fills it with zeros, which is an empty table
+				raf.setLength(HEADER_SIZE + (long) mySlots * OffHeapTable.SLOT_SIZE);
+			}
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			long addr = UnsafeMemory.address(buf);
+			// The first process to get here writes the number of slots, the others use that number
+			if (UnsafeMemory.compareAndSwapLong(addr + 8, 0, mySlots)) {
+				UnsafeMemory.putLongVolatile(addr, MAGIC);
+			} else {
+				for (int i = 0; UnsafeMemory.getLongVolatile(addr) != MAGIC; i++) {
+					if (i > 1000) {
+						throw new IOException(path + " is not a jAlarms shared cache");
+					}
+					Thread.yield();
+				}
+			}
+			final int slots = (int) UnsafeMemory.getLongVolatile(addr + 8);
+			if (HEADER_SIZE + (long) slots * OffHeapTable.SLOT_SIZE > buf.capacity()) {
+				// Another process created a bigger table while we were mapping the file
+				buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * OffHeapTable.SLOT_SIZE);
+				addr = UnsafeMemory.address(buf);
+			}
+			if (slots != mySlots) {
+				log.info("Shared alarm cache {} has {} slots, ignoring the configured size", path, slots);
+			}
+			return new OffHeapTable(buf, HEADER_SIZE, slots);
+		} finally {
+			// The mapping remains valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/** Returns the table, mapping the file if necessary; null if the file cannot be mapped. */
+	private OffHeapTable table() {
+		OffHeapTable t = table;
+		if (t == null) {
+			try {
+				init();
+				t = table;
+			} catch (final IOException ex) {
+				log.error("Mapping shared alarm cache {}", path, ex);
+			}
+		}
+		return t;
+	}
+
+	@Override
+	public void store(final AlarmChannel channel, final String source, final String message) {
+		store(legacyIndex(channel), channel, AlarmFingerprint.of(source, message));
+	}
+
+	@Override
+	public boolean shouldResend(final AlarmChannel channel, final String source, final String message) {
+		return shouldResend(legacyIndex(channel), channel, AlarmFingerprint.of(source, message));
+	}
+
+	@Override
+	public boolean tryAcquire(final AlarmChannel channel, final String source, final String message) {
+		return tryAcquire(legacyIndex(channel), channel, AlarmFingerprint.of(source, message));
+	}
+
+	@Override
+	public void store(final int channelIndex, final AlarmChannel channel, final long fingerprint) {
+		final int interval = channel == null ? defint : channel.getMinResendInterval();
+		final OffHeapTable t = table();
+		if (t != null && (channel == null || interval > 0)) {
+			final long now = System.currentTimeMillis();
+			t.acquire(AlarmFingerprint.withChannel(fingerprint, channelIndex), now, now + interval, true);
+		}
+	}
+
+	@Override
+	public boolean shouldResend(final int channelIndex, final AlarmChannel channel, final long fingerprint) {
+		final OffHeapTable t = table();
+		if (t != null && (channel == null || channel.getMinResendInterval() > 0)) {
+			return !t.isLive(AlarmFingerprint.withChannel(fingerprint, channelIndex), System.currentTimeMillis());
+		}
+		return true;
+	}
+
+	@Override
+	public boolean tryAcquire(final int channelIndex, final AlarmChannel channel, final long fingerprint) {
+		final int interval = channel == null ? defint : channel.getMinResendInterval();
+		final OffHeapTable t = table();
+		if (t == null || channel != null && interval <= 0) {
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		return t.acquire(AlarmFingerprint.withChannel(fingerprint, channelIndex), now, now + interval, false);
+	}
+
+	/**
+	 * Callers of the string based methods don't know the channel's index in the sender, so the channel's
+	 * hash code is used instead. Keep in mind that the hash code is usually different in each process, so
+	 * those alarms are not shared.
+	 */
+	private static int legacyIndex(final AlarmChannel channel) {
+		return channel == null ? -1 : channel.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		final OffHeapTable t = table;
+		if (t == null) {
+			return String.format("Shared(%s, unmapped)", path);
+		}
+		return String.format("Shared(%s, %d slots, %d used, %d reused, %d evicted by this process)", path, t.capacity(), t.used.get(),
+		        t.reused.get(), t.evicted.get());
+	}
+
+	/** Releases this process' mapping of the file; the file itself is left for the other processes. */
+	@Override
+	public void shutdown() {
+		table = null;
+	}
+
+}
@@ -0,0 +1,69 @@
+package pl.org.radical.alarms.cache;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import sun.misc.Unsafe;
+
+/**
+ * Gives the off-heap caches atomic access to the memory of direct and mapped buffers. ByteBuffer has no
+ * compare-and-swap operations, so this goes through sun.misc.Unsafe, which is available on the Sun/Oracle
+ * and OpenJDK virtual machines; on other VMs the off-heap caches cannot be used.
+ */
+final class UnsafeMemory {
+
+	private static final Unsafe UNSAFE;
+	private static final long ADDRESS_OFFSET;
+	private static final Throwable ERROR;
+
+	static {
+		Unsafe u = null;
+		long off = -1;
+		Throwable err = null;
+		try {
+			final Field f = Unsafe.class.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			u = (Unsafe) f.get(null);
+			off = u.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+		} catch (final Exception ex) {
+			u = null;
+			err = ex;
+		}
+		UNSAFE = u;
+		ADDRESS_OFFSET = off;
+		ERROR = err;
+	}
+
+	private UnsafeMemory() {
+	}
+
+	/**
+	 * Returns the native address of a direct or mapped buffer.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the buffer is not direct, or if this VM doesn't allow access to its memory.
+	 */
+	static long address(final ByteBuffer buf) {
+		if (UNSAFE == null) {
+			throw new IllegalStateException("Off-heap memory access is not available in this VM", ERROR);
+		}
+		if (!buf.isDirect()) {
+			throw new IllegalStateException("The buffer must be direct or mapped");
+		}
+		return UNSAFE.getLong(buf, ADDRESS_OFFSET);
+	}
+
+	static long getLongVolatile(final long address) {
+		return UNSAFE.getLongVolatile(null, address);
+	}
+
+	static void putLongVolatile(final long address, final long value) {
+		UNSAFE.putLongVolatile(null, address, value);
+	}
+
+	static boolean compareAndSwapLong(final long address, final long expected, final long value) {
+		return UNSAFE.compareAndSwapLong(null, address, expected, value);
+	}
+
+}
@@ -177,6 +177,7 @@ public class HttpChannel extends AbstractAlarmChannel {
 					ins.close();
 				} catch (final IOException ex) {
 					log.error("Sending alarm over URL", ex);
+					reportRetryableFailure(ex);
 				}
 			}
 		}
@@ -0,0 +1,281 @@
+package pl.org.radical.alarms.metrics;
+
+import pl.org.radical.alarms.AbstractAlarmChannel;
+import pl.org.radical.alarms.Alarm;
+import pl.org.radical.alarms.AlarmChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import de.huxhorn.lilith.slf4j.Logger;
+import de.huxhorn.lilith.slf4j.LoggerFactory;
+
+/**
+ * The metrics of an AlarmSender: the counters for all its alarms, for each source and for each channel,
+ * and the cache statistics. Channels that extend {@link AbstractAlarmChannel} keep their own counters, so that
+ * alarms are counted as sent when they're actually delivered; for other channels, an alarm is counted as
+ * sent when it's passed to the channel.
+ * The metrics can be registered as MBeans, under the pl.org.radical.alarms domain:
+ * <ul>
+ * <li>type=AlarmSender,name=<i>name</i> for all the alarms</li>
+ * <li>type=Source,sender=<i>name</i>,name=<i>source</i> for each source</li>
+ * <li>type=Channel,sender=<i>name</i>,name=<i>index class</i> for each channel</li>
+ * <li>type=Cache,sender=<i>name</i> for the cache</li>
+ * </ul>
+ * Each source costs a few KB of counters, so only the first {@link #setMaxSources(int) few} sources are
+ * counted separately, and the alarms of the rest are counted together under "(other)".
+ */
+public final class AlarmMetrics {
+
+	private static final String DOMAIN = "pl.org.radical.alarms";
+	private static final String OTHER = "(other)";
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private final AlarmStats total = new AlarmStats();
+	private final ConcurrentHashMap<String, AlarmStats> sources = new ConcurrentHashMap<String, AlarmStats>();
+	private volatile int maxSources = 1000;
+	/** The counters of the sources over the limit, once there are any. */
+	private volatile AlarmStats other;
+	/** The sources that appeared since the MBeans were registered, and don't have their own MBean yet. */
+	private final List<String> unregistered = new ArrayList<String>();
+	private final CacheStats cache = new CacheStats();
+	private volatile ChannelStats[] channels = new ChannelStats[0];
+	/** For each channel, true if the alarms count as sent when they're passed to the channel. */
+	private volatile boolean[] handOff = new boolean[0];
+	private volatile List<String> channelNames = new ArrayList<String>();
+	private MBeanServer server;
+	private String name;
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	/** Sets up the counters for the channels of the sender, in the same order. */
+	public synchronized void setChannels(final List<? extends AlarmChannel> value) {
+		unregisterChannels();
+		final ChannelStats[] stats = new ChannelStats[value.size()];
+		final boolean[] direct = new boolean[value.size()];
+		final List<String> names = new ArrayList<String>(value.size());
+		int idx = 0;
+		for (final AlarmChannel c : value) {
+			if (c instanceof AbstractAlarmChannel) {
+				stats[idx] = ((AbstractAlarmChannel) c).getStats();
+			} else {
+				stats[idx] = new ChannelStats();
+				direct[idx] = true;
+			}
+			names.add(String.format("%d %s", idx, c.getClass().getSimpleName()));
+			idx++;
+		}
+		channels = stats;
+		handOff = direct;
+		channelNames = names;
+		if (server != null) {
+			for (int i = 0; i < stats.length; i++) {
+				register(ChannelStatsMBean.class, stats[i], "type=Channel,sender=%s,name=%s", names.get(i));
+			}
+		}
+	}
+
+	public AlarmStats getTotal() {
+		return total;
+	}
+
+	/**
+	 * Sets the maximum number of sources with their own counters. The alarms of the sources that appear
+	 * once there are this many are counted together under "(other)". Default is 1000.
+	 */
+	public void setMaxSources(final int value) {
+		maxSources = value;
+	}
+
+	public int getMaxSources() {
+		return maxSources;
+	}
+
+	/**
+	 * Returns the counters for the specified source, creating them if needed. The null source is named
+	 * "(default)"; sources over the {@link #setMaxSources(int) limit} share the counters named "(other)".
+	 */
+	public AlarmStats getSource(final String source) {
+		final String key = source == null ? "(default)" : source;
+		final AlarmStats s = sources.get(key);
+		if (s != null) {
+			return s;
+		}
+		final AlarmStats o = other;
+		return o == null ? addSource(key) : o;
+	}
+
+	private synchronized AlarmStats addSource(final String key) {
+		AlarmStats s = sources.get(key);
+		if (s == null) {
+			if (other != null) {
+				return other;
+			}
+			s = new AlarmStats();
+			if (sources.size() < maxSources) {
+				sources.put(key, s);
+			} else {
+				sources.put(OTHER, s);
+				other = s;
+				log.warn("More than {} alarm sources, the alarms of the new ones are counted under {}", maxSources, OTHER);
+			}
+			if (server != null) {
+				// Registered later, not while recording an alarm
+				unregistered.add(other == s ? OTHER : key);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Returns the counters for all the sources seen so far. If the metrics are registered as MBeans, the
+	 * sources that appeared since the last call are registered now.
+	 */
+	public Map<String, AlarmStats> getSources() {
+		registerSources();
+		return sources;
+	}
+
+	private synchronized void registerSources() {
+		if (server != null) {
+			for (final String key : unregistered) {
+				register(AlarmStatsMBean.class, sources.get(key), "type=Source,sender=%s,name=%s", key);
+			}
+		}
+		unregistered.clear();
+	}
+
+	/** Returns the counters for the channel at the specified index. */
+	public ChannelStats getChannel(final int idx) {
+		return channels[idx];
+	}
+
+	public CacheStats getCache() {
+		return cache;
+	}
+
+	public void received(final Alarm alarm) {
+		total.recordReceived();
+		getSource(alarm.getSource()).recordReceived();
+	}
+
+	/** Records an alarm that the cache stopped for every channel. */
+	public void deduplicated(final Alarm alarm) {
+		total.recordDeduplicated();
+		getSource(alarm.getSource()).recordDeduplicated();
+	}
+
+	public void buffered(final Alarm alarm) {
+		total.recordBuffered();
+		getSource(alarm.getSource()).recordBuffered();
+	}
+
+	/** Records an alarm that was passed to at least one channel. */
+	public void sent(final Alarm alarm, final long now) {
+		final long latency = now - alarm.getNanoTime();
+		total.recordSent(latency);
+		getSource(alarm.getSource()).recordSent(latency);
+	}
+
+	public void failed(final Alarm alarm) {
+		total.recordFailed(1);
+		getSource(alarm.getSource()).recordFailed(1);
+	}
+
+	/** Records an alarm that the cache stopped for the channel at the specified index. */
+	public void channelDeduplicated(final int idx) {
+		cache.recordHit();
+		channels[idx].recordDeduplicated();
+	}
+
+	/** Records an alarm passed to the channel at the specified index. */
+	public void channelReceived(final int idx, final Alarm alarm, final long now) {
+		final ChannelStats s = channels[idx];
+		s.recordReceived();
+		if (handOff[idx]) {
+			s.recordSent(now - alarm.getNanoTime());
+		}
+	}
+
+	/**
+	 * Registers the metrics as MBeans in the specified server. The sources that appear later are
+	 * registered in the next call to {@link #getSources()}, rather than while their first alarm is
+	 * recorded.
+	 * 
+	 * @param mbeanServer
+	 *            Usually the platform MBean server.
+	 * @param senderName
+	 *            The name of the AlarmSender, to tell apart the metrics of different senders.
+	 */
+	public synchronized void register(final MBeanServer mbeanServer, final String senderName) {
+		unregister();
+		server = mbeanServer;
+		name = senderName;
+		register(AlarmStatsMBean.class, total, "type=AlarmSender,name=%2$s", senderName);
+		register(CacheStatsMBean.class, cache, "type=Cache,sender=%s", null);
+		unregistered.clear();
+		for (final Map.Entry<String, AlarmStats> e : sources.entrySet()) {
+			register(AlarmStatsMBean.class, e.getValue(), "type=Source,sender=%s,name=%s", e.getKey());
+		}
+		final ChannelStats[] stats = channels;
+		final List<String> names = channelNames;
+		for (int i = 0; i < stats.length; i++) {
+			register(ChannelStatsMBean.class, stats[i], "type=Channel,sender=%s,name=%s", names.get(i));
+		}
+	}
+
+	/** Removes all the MBeans registered by {@link #register(MBeanServer, String)}. */
+	public synchronized void unregister() {
+		if (server != null) {
+			for (final ObjectName on : registered) {
+				try {
+					server.unregisterMBean(on);
+				} catch (final JMException ex) {
+					log.error("Unregistering MBean {}", on, ex);
+				}
+			}
+		}
+		registered.clear();
+		unregistered.clear();
+		server = null;
+	}
+
+	private void unregisterChannels() {
+		if (server != null) {
+			for (int i = registered.size() - 1; i >= 0; i--) {
+				final ObjectName on = registered.get(i);
+				if ("Channel".equals(on.getKeyProperty("type"))) {
+					try {
+						server.unregisterMBean(on);
+					} catch (final JMException ex) {
+						log.error("Unregistering MBean {}", on, ex);
+					}
+					registered.remove(i);
+				}
+			}
+		}
+	}
+
+	private <T> void register(final Class<T> iface, final T bean, final String props, final String key) {
+		try {
+			final ObjectName on = new ObjectName(String.format("%s:%s", DOMAIN,
+			        String.format(props, ObjectName.quote(name), key == null ? null : ObjectName.quote(key))));
+			server.registerMBean(new StandardMBean(bean, iface), on);
+			registered.add(on);
+		} catch (final JMException ex) {
+			log.error("Registering MBean for {}", key == null ? name : key, ex);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s; cache %s", total, cache);
+	}
+
+}
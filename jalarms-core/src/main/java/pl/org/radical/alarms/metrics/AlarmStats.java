@@ -0,0 +1,111 @@
+package pl.org.radical.alarms.metrics;
+
+/**
+ * The counters of the alarms that went through the AlarmSender, or one of its sources or channels:
+ * <ul>
+ * <li>received: the alarms passed to the sender, or handed to the channel.</li>
+ * <li>deduplicated: the alarms that were not sent because the cache had sent them recently.</li>
+ * <li>buffered: the alarms that were held in the time buffer.</li>
+ * <li>sent: the alarms that were delivered; the latency histogram measures how long each one took.</li>
+ * <li>failed: the alarms that were not delivered: refused by the rate limit or the buffer limits, or, for a
+ * channel, not sent because of an error or because its circuit breaker was open.</li>
+ * </ul>
+ * Recording doesn't allocate anything, so the counters can always be on.
+ */
+public class AlarmStats implements AlarmStatsMBean {
+
+	private final Counter received = new Counter();
+	private final Counter deduplicated = new Counter();
+	private final Counter buffered = new Counter();
+	private final Counter sent = new Counter();
+	private final Counter failed = new Counter();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	public void recordReceived() {
+		received.increment();
+	}
+
+	public void recordDeduplicated() {
+		deduplicated.increment();
+	}
+
+	public void recordBuffered() {
+		buffered.increment();
+	}
+
+	/**
+	 * Records a delivered alarm.
+	 * 
+	 * @param latencyNanos
+	 *            The time from the creation of the alarm until it was delivered, in nanoseconds.
+	 */
+	public void recordSent(final long latencyNanos) {
+		sent.increment();
+		latency.record(latencyNanos);
+	}
+
+	public void recordFailed(final int alarms) {
+		failed.add(alarms);
+	}
+
+	@Override
+	public long getReceived() {
+		return received.sum();
+	}
+
+	@Override
+	public long getDeduplicated() {
+		return deduplicated.sum();
+	}
+
+	@Override
+	public long getBuffered() {
+		return buffered.sum();
+	}
+
+	@Override
+	public long getSent() {
+		return sent.sum();
+	}
+
+	@Override
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	@Override
+	public long getLatencyMean() {
+		return latency.getMean() / 1000;
+	}
+
+	@Override
+	public long getLatencyMedian() {
+		return latency.getPercentile(50) / 1000;
+	}
+
+	@Override
+	public long getLatency99th() {
+		return latency.getPercentile(99) / 1000;
+	}
+
+	@Override
+	public long getLatency999th() {
+		return latency.getPercentile(99.9) / 1000;
+	}
+
+	@Override
+	public long getLatencyMax() {
+		return latency.getMax() / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d received, %d deduplicated, %d buffered, %d sent, %d failed", getReceived(), getDeduplicated(),
+		        getBuffered(), getSent(), getFailed());
+	}
+
+}
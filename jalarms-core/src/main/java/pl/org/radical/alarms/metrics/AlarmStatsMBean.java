@@ -0,0 +1,29 @@
+package pl.org.radical.alarms.metrics;
+
+/**
+ * The JMX view of {@link AlarmStats}. Latencies are in microseconds, from the moment the alarm was created
+ * until it was delivered.
+ */
+public interface AlarmStatsMBean {
+
+	long getReceived();
+
+	long getDeduplicated();
+
+	long getBuffered();
+
+	long getSent();
+
+	long getFailed();
+
+	long getLatencyMean();
+
+	long getLatencyMedian();
+
+	long getLatency99th();
+
+	long getLatency999th();
+
+	long getLatencyMax();
+
+}
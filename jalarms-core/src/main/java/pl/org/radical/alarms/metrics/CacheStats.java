@@ -0,0 +1,65 @@
+package pl.org.radical.alarms.metrics;
+
+import pl.org.radical.alarms.cache.AlarmCache;
+import pl.org.radical.alarms.cache.DefaultAlarmCache;
+import pl.org.radical.alarms.cache.OffHeapAlarmCache;
+
+/**
+ * The hits and misses of the alarm cache, as seen by the AlarmSender: a hit is an alarm that the cache
+ * stopped because it was sent recently through the channel, and a miss is one it let through.
+ */
+public class CacheStats implements CacheStatsMBean {
+
+	private final Counter hits = new Counter();
+	private final Counter misses = new Counter();
+	private volatile AlarmCache cache;
+
+	/** Sets the cache whose size is reported. */
+	public void setCache(final AlarmCache value) {
+		cache = value;
+	}
+
+	public void recordHit() {
+		hits.increment();
+	}
+
+	public void recordMiss() {
+		misses.increment();
+	}
+
+	@Override
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/** Returns the ratio of hits to lookups, or 0 if the cache hasn't been used. */
+	@Override
+	public double getHitRatio() {
+		final long h = hits.sum();
+		final long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/** Returns the number of entries in the cache, or -1 if the cache can't tell. */
+	@Override
+	public long getSize() {
+		final AlarmCache c = cache;
+		if (c instanceof DefaultAlarmCache) {
+			return ((DefaultAlarmCache) c).size();
+		} else if (c instanceof OffHeapAlarmCache) {
+			return ((OffHeapAlarmCache) c).size();
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d hits, %d misses, %d entries", getHits(), getMisses(), getSize());
+	}
+
+}
@@ -0,0 +1,14 @@
+package pl.org.radical.alarms.metrics;
+
+/** The JMX view of {@link CacheStats}. */
+public interface CacheStatsMBean {
+
+	long getHits();
+
+	long getMisses();
+
+	double getHitRatio();
+
+	long getSize();
+
+}
@@ -0,0 +1,68 @@
+package pl.org.radical.alarms.metrics;
+
+import java.util.Collection;
+
+/**
+ * The counters of an alarm channel, plus the number of tasks waiting in its queue, the number of alarms
+ * shed because the queue was full, and the retries of failed tasks. Shed alarms, and alarms given up
+ * after retrying, are also counted as failed.
+ */
+public class ChannelStats extends AlarmStats implements ChannelStatsMBean {
+
+	private final Counter shed = new Counter();
+	private final Counter retries = new Counter();
+	private final Counter gaveUp = new Counter();
+	private volatile Collection<?> queue;
+
+	/** Creates the counters for a channel without a queue. */
+	public ChannelStats() {
+	}
+
+	/** Creates the counters for a channel whose tasks wait in the specified queue. */
+	public ChannelStats(final Collection<?> queue) {
+		this.queue = queue;
+	}
+
+	/** Sets the queue of the channel's executor, to report its depth. Can be null if the channel has no queue. */
+	public void setQueue(final Collection<?> value) {
+		queue = value;
+	}
+
+	/** Counts alarms that were dropped from the queue, or never queued, because it was full. */
+	public void recordShed(final int alarms) {
+		shed.add(alarms);
+		recordFailed(alarms);
+	}
+
+	@Override
+	public long getShed() {
+		return shed.sum();
+	}
+
+	/** Counts a task that failed and was scheduled to run again. */
+	public void recordRetry() {
+		retries.increment();
+	}
+
+	/** Counts alarms whose task reported a retryable failure, but had no attempts or time left. */
+	public void recordGaveUp(final int alarms) {
+		gaveUp.add(alarms);
+	}
+
+	@Override
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	@Override
+	public long getGaveUp() {
+		return gaveUp.sum();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		final Collection<?> q = queue;
+		return q == null ? 0 : q.size();
+	}
+
+}
@@ -0,0 +1,14 @@
+package pl.org.radical.alarms.metrics;
+
+/** The JMX view of {@link ChannelStats}. */
+public interface ChannelStatsMBean extends AlarmStatsMBean {
+
+	int getQueueDepth();
+
+	long getShed();
+
+	long getRetries();
+
+	long getGaveUp();
+
+}
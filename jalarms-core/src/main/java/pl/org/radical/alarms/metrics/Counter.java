@@ -0,0 +1,51 @@
+package pl.org.radical.alarms.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can update at the same time without slowing each other down. The count is
+ * split in several cells, each one in its own cache line; every thread adds to the cell chosen by its id,
+ * and reading the counter adds up all the cells. Updating the counter doesn't allocate anything.
+ */
+public final class Counter {
+
+	/** The number of cells: the number of processors rounded up to a power of 2, but no more than 16. */
+	private static final int CELLS;
+	/** The distance between cells, in longs, so that each cell has a cache line of its own. */
+	private static final int PAD = 8;
+
+	static {
+		final int n = Runtime.getRuntime().availableProcessors();
+		CELLS = Math.min(16, n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1);
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * PAD);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(final long value) {
+		cells.getAndAdd(cell(), value);
+	}
+
+	/** Returns the current count. Updates made while this method runs may or may not be included. */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < CELLS; i++) {
+			sum += cells.get(i * PAD);
+		}
+		return sum;
+	}
+
+	private static int cell() {
+		// Thread ids are consecutive, so they're spread with a multiplicative hash
+		return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 58 & (CELLS - 1)) * PAD;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+
+}
@@ -0,0 +1,105 @@
+package pl.org.radical.alarms.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets of exponentially growing width like an HDR
+ * histogram: values under 16 have a bucket each, and every power of 2 above that is split in 8 buckets,
+ * so any value is known within 12.5% of its size while the whole range of a long fits in 496 buckets.
+ * Recording a value only increments a few atomic counters and doesn't allocate anything.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int LINEAR = SUB * 2;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final Counter total = new Counter();
+	private final Counter sum = new Counter();
+	private final AtomicLong max = new AtomicLong();
+
+	/** Records a latency, in nanoseconds. Negative values are recorded as 0. */
+	public void record(final long nanos) {
+		final long v = nanos < 0 ? 0 : nanos;
+		counts.incrementAndGet(bucket(v));
+		total.increment();
+		sum.add(v);
+		long m = max.get();
+		while (v > m && !max.compareAndSet(m, v)) {
+			m = max.get();
+		}
+	}
+
+	static int bucket(final long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		final int exp = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exp - SUB_BITS;
+		return LINEAR + (exp - SUB_BITS - 1) * SUB + (int) (value >>> shift) - SUB;
+	}
+
+	/** Returns the highest value that falls in the specified bucket. */
+	static long highest(final int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		final int exp = (bucket - LINEAR) / SUB + SUB_BITS + 1;
+		final long top = (long) ((bucket - LINEAR) % SUB + SUB + 1) << exp - SUB_BITS;
+		return top <= 0 ? Long.MAX_VALUE : top - 1;
+	}
+
+	/** Returns the number of values recorded. */
+	public long getCount() {
+		return total.sum();
+	}
+
+	/** Returns the highest value recorded, or 0 if none was. */
+	public long getMax() {
+		return max.get();
+	}
+
+	/** Returns the average of the values recorded, or 0 if none was. */
+	public long getMean() {
+		final long n = total.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	/**
+	 * Returns the value under which the specified percentage of the values fall, rounded up to the top of its
+	 * bucket, or 0 if no value was recorded.
+	 * 
+	 * @param percent
+	 *            A percentage between 0 and 100.
+	 */
+	public long getPercentile(final double percent) {
+		final long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		final long target = Math.max(1, (long) Math.ceil(n * Math.min(100, Math.max(0, percent)) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d values, mean %d, median %d, 99%% %d, max %d", getCount(), getMean(), getPercentile(50),
+		        getPercentile(99), getMax());
+	}
+
+}
@@ -0,0 +1,38 @@
+package pl.org.radical.alarms;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A channel for the tests of the AbstractAlarmChannel queue. Its first task waits until the gate opens, so that
+ * the rest of the alarms queue up; the messages are recorded in the order they're sent.
+ */
+class GatedChannel extends AbstractAlarmChannel {
+
+	final List<String> sent = new CopyOnWriteArrayList<String>();
+	final CountDownLatch started = new CountDownLatch(1);
+	final CountDownLatch gate = new CountDownLatch(1);
+
+	@Override
+	protected Runnable createSendTask(final String msg, final String source) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (final InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				sent.add(msg);
+			}
+		};
+	}
+
+	@Override
+	protected boolean hasSource(final String alarmSource) {
+		return false;
+	}
+
+}
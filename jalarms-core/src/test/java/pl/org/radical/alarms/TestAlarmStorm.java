@@ -0,0 +1,98 @@
+package pl.org.radical.alarms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/** Test the alarm storm detection of the AlarmSender. */
+public class TestAlarmStorm implements UnitTestChannel.ChanDelegate {
+
+	private final List<String> received = new CopyOnWriteArrayList<String>();
+
+	@Test
+	public void testStorm() throws InterruptedException {
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 60000;
+		chan.delegate = this;
+		final List<AlarmChannel> chans = new ArrayList<AlarmChannel>();
+		chans.add(chan);
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(chans);
+		sender.setStormThreshold(5);
+		sender.setStormWindow(500);
+		sender.setStormDigestInterval(1000);
+		sender.setStormDigestTop(2);
+		for (int i = 0; i < 20; i++) {
+			sender.sendAlarm("db down " + i % 3, i % 4 == 0 ? "web" : "db");
+			sender.sendAlarm("timeout " + i, "web");
+		}
+		// 4 alarms and the storm notice
+		assert received.size() == 5 : received;
+		assert received.get(4).startsWith("Alarm storm: 5 alarms") : received;
+		// The 4 alarms sent are still stopped by the cache; the held ones are not recorded in it, so they all count
+		assert sender.getStatus().contains("alarm storm (31 alarms held)") : sender.getStatus();
+		Thread.sleep(1300);
+		assert received.size() == 6 : received;
+		final String digest = received.get(5);
+		assert digest.startsWith("Alarm storm: 31 alarms from 2 sources") : digest;
+		assert digest.contains("Top sources: web (") : digest;
+		assert digest.endsWith("The alarm storm is over.") : digest;
+		sender.sendAlarm("back to normal");
+		assert received.size() == 7 && received.get(6).equals("back to normal") : received;
+		sender.shutdown();
+	}
+
+	@Test
+	public void testShortWindow() {
+		// Slices of a millisecond
+		final AlarmStorm s = new AlarmStorm(10);
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			s.record(now);
+		}
+		assert s.count(now) == 5 : s.count(now);
+		s.record(now + 5);
+		assert s.count(now + 5) == 6 : s.count(now + 5);
+		assert s.count(now + 100) == 0;
+	}
+
+	@Test
+	public void testDigestSwitch() throws InterruptedException {
+		final AlarmStorm s = new AlarmStorm(1000);
+		final int threads = 4;
+		final int alarms = 20000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < alarms; j++) {
+						s.add(new Alarm("alarm " + j % 10, "src"));
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		long total = 0;
+		do {
+			total += summarized(s.takeSummary(1000, 1));
+		} while (!done.await(1, TimeUnit.MILLISECONDS));
+		total += summarized(s.takeSummary(1000, 1));
+		// None is lost while the digests are switched
+		assert total == threads * alarms : total;
+	}
+
+	private static long summarized(final String summary) {
+		return summary == null ? 0 : Long.parseLong(summary.split(" ")[2]);
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		received.add(msg);
+	}
+
+}
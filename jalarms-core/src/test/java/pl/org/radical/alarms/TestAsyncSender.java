@@ -0,0 +1,83 @@
+package pl.org.radical.alarms;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/** Test sending alarms through the asynchronous queue of the AlarmSender. */
+public class TestAsyncSender implements UnitTestChannel.ChanDelegate {
+
+	private final AtomicInteger received = new AtomicInteger();
+	private final CountDownLatch entered = new CountDownLatch(1);
+	private volatile CountDownLatch blocker;
+
+	private AlarmSender createSender(final int queueSize) {
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 60000;
+		chan.delegate = this;
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(Collections.singletonList((AlarmChannel) chan));
+		sender.setAsyncQueueSize(queueSize);
+		sender.init();
+		return sender;
+	}
+
+	@Test
+	public void testManyProducers() throws InterruptedException {
+		final AlarmSender sender = createSender(64);
+		final int threads = 8;
+		final int perThread = 500;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			final int id = i;
+			new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < perThread; j++) {
+						sender.sendAlarm("unique " + id + "/" + j);
+						sender.sendAlarm("repeated");
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		// Shutting down sends what's left in the queue
+		sender.shutdown();
+		assert received.get() == threads * perThread + 1 : received.get();
+	}
+
+	@Test
+	public void testTrySendWhenFull() throws InterruptedException {
+		blocker = new CountDownLatch(1);
+		final AlarmSender sender = createSender(4);
+		assert sender.trySendAlarm("first");
+		// Wait for the dispatcher to be stuck in the channel with the first alarm, then fill the queue
+		assert entered.await(5, TimeUnit.SECONDS);
+		for (int i = 0; i < 4; i++) {
+			assert sender.trySendAlarm("alarm " + i);
+		}
+		assert sender.getStatus().contains("async queue 4/4") : sender.getStatus();
+		assert !sender.trySendAlarm("one too many");
+		blocker.countDown();
+		sender.shutdown();
+		assert received.get() == 5 : received.get();
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		final CountDownLatch b = blocker;
+		if (b != null) {
+			entered.countDown();
+			try {
+				b.await();
+			} catch (final InterruptedException ex) {
+			}
+		}
+		received.incrementAndGet();
+	}
+
+}
@@ -0,0 +1,50 @@
+package pl.org.radical.alarms;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/** Test that an alarm raised by many threads at the same time is only sent once. */
+public class TestAtomicCache implements UnitTestChannel.ChanDelegate {
+
+	private final AtomicInteger received = new AtomicInteger();
+
+	@Test
+	public void testConcurrentSend() throws InterruptedException {
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 60000;
+		chan.delegate = this;
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(Collections.singletonList((AlarmChannel) chan));
+		final int threads = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < 1000; j++) {
+							sender.sendAlarm("the same alarm", "src");
+						}
+					} catch (final InterruptedException ex) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+		assert received.get() == 1 : received.get();
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		received.incrementAndGet();
+	}
+
+}
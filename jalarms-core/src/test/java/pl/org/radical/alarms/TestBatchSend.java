@@ -0,0 +1,96 @@
+package pl.org.radical.alarms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test sending several alarms at once. */
+public class TestBatchSend implements UnitTestChannel.ChanDelegate {
+
+	private final List<String> single = new CopyOnWriteArrayList<String>();
+	private final BatchChannel batchChan = new BatchChannel();
+	private AlarmSender sender;
+
+	@Before
+	public void setup() {
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 60000;
+		chan.delegate = this;
+		final List<AlarmChannel> chans = new ArrayList<AlarmChannel>();
+		chans.add(chan);
+		chans.add(batchChan);
+		sender = new AlarmSender();
+		sender.setAlarmChannels(chans);
+	}
+
+	@Test
+	public void testBatch() {
+		sender.sendAlarms(Arrays.asList("a", "b", "a", null, "c"), "src");
+		// The plain channel gets each alarm once, the batch channel gets them all in one call
+		assert single.equals(Arrays.asList("a", "b", "c")) : single;
+		assert batchChan.batches.size() == 1 : batchChan.batches;
+		assert batchChan.batches.get(0).equals(Arrays.asList("a", "b", "c")) : batchChan.batches;
+		// Only the new alarm goes through now
+		sender.sendAlarms(Arrays.asList("a", "d", "b"), "src");
+		assert single.equals(Arrays.asList("a", "b", "c", "d")) : single;
+		assert batchChan.batches.size() == 1 && batchChan.singles.equals(Arrays.asList("d")) : batchChan.singles;
+		// The same alarms from another source are different alarms
+		sender.sendAlarms(Arrays.asList("a", "b"), "other");
+		assert batchChan.batches.size() == 2 : batchChan.batches;
+	}
+
+	@Test
+	public void testAsyncBatch() {
+		sender.setAsyncQueueSize(16);
+		sender.init();
+		sender.sendAlarms(Arrays.asList("a", "b", "a", "c"), "src");
+		sender.shutdown();
+		assert single.equals(Arrays.asList("a", "b", "c")) : single;
+		int total = batchChan.singles.size();
+		for (final List<String> b : batchChan.batches) {
+			total += b.size();
+		}
+		assert total == 3 : batchChan.batches + " " + batchChan.singles;
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		single.add(msg);
+	}
+
+	/** Records the alarms it gets, separating the batches from the single alarms. */
+	private static class BatchChannel implements BatchAlarmChannel {
+
+		final List<List<String>> batches = new CopyOnWriteArrayList<List<String>>();
+		final List<String> singles = new CopyOnWriteArrayList<String>();
+
+		@Override
+		public void send(final List<Alarm> alarms) {
+			final List<String> msgs = new ArrayList<String>(alarms.size());
+			for (final Alarm alarm : alarms) {
+				msgs.add(alarm.getMessage());
+			}
+			batches.add(msgs);
+		}
+
+		@Override
+		public void send(final String msg, final String source) {
+			singles.add(msg);
+		}
+
+		@Override
+		public int getMinResendInterval() {
+			return 60000;
+		}
+
+		@Override
+		public void shutdown() {
+		}
+
+	}
+
+}
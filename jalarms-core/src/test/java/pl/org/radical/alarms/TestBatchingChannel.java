@@ -0,0 +1,129 @@
+package pl.org.radical.alarms;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Test the batches of the AbstractBatchingAlarmChannel. */
+public class TestBatchingChannel {
+
+	private final RecordingChannel chan = new RecordingChannel();
+
+	@After
+	public void cleanup() {
+		chan.shutdown();
+	}
+
+	@Test
+	public void testNoLinger() throws InterruptedException {
+		chan.send("a", "x");
+		chan.send("b", "x");
+		waitFor(2);
+		assert chan.deliveries.toString().equals("[a, b]") : chan.deliveries;
+	}
+
+	@Test
+	public void testPerSource() throws InterruptedException {
+		chan.setLinger(200);
+		chan.setMaxBatchSize(3);
+		chan.send("a", "x");
+		chan.send("b", "x");
+		chan.send("c", "y");
+		chan.send("d", "x");
+		// The batch of x is full and sent right away
+		waitFor(1);
+		assert chan.deliveries.toString().equals("[[a, b, d]]") : chan.deliveries;
+		chan.send("e", null);
+		waitFor(3);
+		assert chan.deliveries.subList(1, 3).contains("c") && chan.deliveries.subList(1, 3).contains("e") : chan.deliveries;
+	}
+
+	@Test
+	public void testGlobal() throws InterruptedException {
+		chan.setLinger(100);
+		chan.setBatchPerSource(false);
+		chan.send("a", "x");
+		chan.send("b", "y");
+		chan.send("c", null);
+		Thread.sleep(50);
+		assert chan.deliveries.isEmpty();
+		waitFor(1);
+		assert chan.deliveries.toString().equals("[[a, b, c]]") : chan.deliveries;
+	}
+
+	@Test
+	public void testManySources() throws InterruptedException {
+		chan.setLinger(60000);
+		chan.setMaxBatchSize(2);
+		for (int i = 0; i < 100; i++) {
+			chan.send("a", "src" + i);
+			chan.send("b", "src" + i);
+		}
+		waitFor(100);
+		// The batches are removed once sent, not kept for every source seen
+		assert chan.getPendingBatches() == 0 : chan.getPendingBatches();
+		chan.send("c", "src0");
+		assert chan.getPendingBatches() == 1;
+		chan.flush();
+		assert chan.getPendingBatches() == 0;
+		waitFor(101);
+	}
+
+	@Test
+	public void testFlushOnShutdown() throws InterruptedException {
+		chan.setLinger(60000);
+		chan.send("a", "x");
+		chan.send("b", "x");
+		chan.shutdown();
+		waitFor(1);
+		assert chan.deliveries.toString().equals("[[a, b]]") : chan.deliveries;
+	}
+
+	private void waitFor(final int deliveries) throws InterruptedException {
+		for (int i = 0; i < 100 && chan.deliveries.size() < deliveries; i++) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(20);
+		assert chan.deliveries.size() == deliveries : chan.deliveries;
+	}
+
+	/** A channel that records each delivery, with the messages of a batch in brackets. */
+	private static class RecordingChannel extends AbstractBatchingAlarmChannel {
+
+		final List<String> deliveries = new CopyOnWriteArrayList<String>();
+
+		@Override
+		protected Runnable createSendTask(final String msg, final String source) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					deliveries.add(msg);
+				}
+			};
+		}
+
+		@Override
+		protected Runnable createBatchSendTask(final List<Alarm> alarms) {
+			final StringBuilder sb = new StringBuilder();
+			for (final Alarm alarm : alarms) {
+				sb.append(sb.length() == 0 ? "[" : ", ").append(alarm.getMessage());
+			}
+			final String batch = sb.append(']').toString();
+			return new Runnable() {
+				@Override
+				public void run() {
+					deliveries.add(batch);
+				}
+			};
+		}
+
+		@Override
+		protected boolean hasSource(final String alarmSource) {
+			return false;
+		}
+
+	}
+
+}
@@ -2,9 +2,10 @@ package pl.org.radical.alarms;
 
 import java.util.Collections;
 import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 
 import de.huxhorn.lilith.slf4j.Logger;
@@ -21,6 +22,8 @@ public class TestBuffer implements UnitTestChannel.ChanDelegate {
 	private AlarmSender sender;
 	private final UnitTestChannel chan = new UnitTestChannel();
 	private int state;
+	private volatile CountDownLatch delivered = new CountDownLatch(1);
+	private volatile long receivedAt;
 
 	@Before
 	public void setup() {
@@ -40,42 +43,35 @@ public class TestBuffer implements UnitTestChannel.ChanDelegate {
 	}
 
 	@Test
-	@Ignore
-	public void testWithBuffer() {
-		// First, with no buffer, an alarm should be sent immediately
+	public void testWithBuffer() throws InterruptedException {
 		state = 2;
-		log.info("Setting up 65s buffer {}", String.format("%TT", new Date()));
-		sender.setAlarmTimeBuffer(65000);
+		log.info("Setting up 2s buffer {}", String.format("%TT", new Date()));
+		sender.setAlarmTimeBuffer(2000);
+		sender.setFlushGranularity(50);
 		sender.init();
-		log.info("Sending 1 alarm with 65s buffer {}", String.format("%TT", new Date()));
+		log.info("Sending 1 alarm with 2s buffer {}", String.format("%TT", new Date()));
 		chan.prepare();
+		delivered = new CountDownLatch(1);
 		sender.sendAlarmAlways("test");
-		log.info("Waiting to get alarm, should be sent after 30s delay {}", String.format("%TT", new Date()));
-		chan.waitForSend();
-		long t1 = System.currentTimeMillis();
-		assert t1 - chan.lastSent < 1000;
-		assert t1 - chan.stamp >= 30000;
-		log.info("Sending alarm 1/3 with buffer, wait 7 seconds {}", String.format("%TT", new Date()));
+		// Not due before the buffer time is up
+		sender.flushBuffer(chan.stamp + 1999);
+		assert !chan.sent.get();
+		log.info("Waiting to get alarm, should be sent after 2s delay {}", String.format("%TT", new Date()));
+		// Sent by its timer, without any other alarm or a scan of the buffer
+		assert delivered.await(10, TimeUnit.SECONDS);
+		assert receivedAt - chan.stamp >= 2000 : receivedAt - chan.stamp;
+		log.info("Sending 3 alarms with buffer {}", String.format("%TT", new Date()));
 		state = 3;
-		chan.stamp = System.currentTimeMillis();
+		chan.prepare();
+		delivered = new CountDownLatch(1);
 		sender.sendAlarmAlways("test");
-		try {
-			Thread.sleep(7000);
-		} catch (final InterruptedException ex) {
-		}
-		log.info("Sending alarm 2/3 with buffer, wait 7 seconds {}", String.format("%TT", new Date()));
 		sender.sendAlarmAlways("test");
-		try {
-			Thread.sleep(7000);
-		} catch (final InterruptedException ex) {
-		}
-		log.info("Sending alarm 3/3 with buffer, wait for send {}", String.format("%TT", new Date()));
-		chan.sent.set(false);
+		sender.flushBuffer(chan.stamp + 1999);
 		sender.sendAlarmAlways("test");
-		chan.waitForSend();
-		t1 = System.currentTimeMillis();
-		assert t1 - chan.lastSent < 1000;
-		assert t1 - chan.stamp >= 65000;
+		assert !chan.sent.get();
+		// Once due, the three are sent as one
+		sender.flushBuffer(System.currentTimeMillis() + 2050);
+		assert delivered.await(0, TimeUnit.SECONDS);
 	}
 
 	@Override
@@ -85,11 +81,12 @@ public class TestBuffer implements UnitTestChannel.ChanDelegate {
 			assert "test".equals(msg);
 		} else if (state == 2) {
 			assert "test".equals(msg);
-			assert now - chan.stamp < 1000000000l && now - chan.stamp >= 30000;
+			assert now - chan.stamp >= 2000 : now - chan.stamp;
 		} else if (state == 3) {
-			assert "test (3x)".equals(msg);
-			assert now - chan.stamp < 1000000000l && now - chan.stamp >= 45000;
+			assert "test (3x)".equals(msg) : msg;
 		}
+		receivedAt = when;
+		delivered.countDown();
 	}
 
 }
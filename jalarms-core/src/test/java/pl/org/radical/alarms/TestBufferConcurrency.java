@@ -0,0 +1,87 @@
+package pl.org.radical.alarms;
+
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test that the time buffer counts every alarm exactly once, when many threads send alarms while
+ * the buffer is being flushed.
+ */
+public class TestBufferConcurrency implements UnitTestChannel.ChanDelegate {
+
+	private final ConcurrentHashMap<String, AtomicInteger> received = new ConcurrentHashMap<String, AtomicInteger>();
+
+	@Test
+	public void testConcurrentCounts() throws InterruptedException {
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.delegate = this;
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(Collections.singletonList((AlarmChannel) chan));
+		sender.setAlarmTimeBuffer(60000);
+		sender.init();
+		final int threads = 8;
+		final int perThread = 20000;
+		final String[] msgs = { "disk full", "link down", "queue stuck", "cpu hot" };
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < perThread; j++) {
+							sender.sendAlarmAlways(msgs[j % msgs.length], "src");
+						}
+					} catch (final InterruptedException ex) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		final Thread flusher = new Thread() {
+			@Override
+			public void run() {
+				while (done.getCount() > 0) {
+					sender.flushBuffer(Long.MAX_VALUE);
+					Thread.yield();
+				}
+			}
+		};
+		flusher.start();
+		start.countDown();
+		done.await();
+		flusher.join();
+		sender.flushBuffer(Long.MAX_VALUE);
+		int total = 0;
+		for (final String m : msgs) {
+			final AtomicInteger count = received.get(m);
+			assert count != null && count.get() == threads * perThread / msgs.length : m + ": " + count;
+			total += count.get();
+		}
+		assert total == threads * perThread : total;
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		String text = msg;
+		int times = 1;
+		if (msg.endsWith("x)")) {
+			final int pos = msg.lastIndexOf(" (");
+			text = msg.substring(0, pos);
+			times = Integer.parseInt(msg.substring(pos + 2, msg.length() - 2));
+		}
+		AtomicInteger count = received.get(text);
+		if (count == null) {
+			received.putIfAbsent(text, new AtomicInteger());
+			count = received.get(text);
+		}
+		count.addAndGet(times);
+	}
+
+}
@@ -0,0 +1,89 @@
+package pl.org.radical.alarms;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test the overflow policies of the time buffer when it's full. */
+public class TestBufferOverflow implements UnitTestChannel.ChanDelegate {
+
+	private final List<String> received = new CopyOnWriteArrayList<String>();
+	private AlarmSender sender;
+
+	@Before
+	public void setup() {
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.delegate = this;
+		sender = new AlarmSender();
+		sender.setAlarmChannels(Collections.singletonList((AlarmChannel) chan));
+		sender.setAlarmTimeBuffer(300);
+		sender.setFlushGranularity(10);
+		sender.setBufferMaxEntries(2);
+	}
+
+	private void sendFive() {
+		for (int i = 0; i < 5; i++) {
+			sender.sendAlarmAlways("alarm " + i);
+		}
+		// Repeating a buffered alarm doesn't take more room
+		sender.sendAlarmAlways("alarm 0");
+	}
+
+	@Test
+	public void testDigest() throws InterruptedException {
+		sender.init();
+		sendFive();
+		assert sender.getStatus().contains("2 alarms") : sender.getStatus();
+		assert sender.getStatus().contains("3 suppressed") : sender.getStatus();
+		Thread.sleep(600);
+		assert received.size() == 3 : received;
+		assert received.contains("alarm 0 (2x)") : received;
+		assert received.contains("alarm 1") : received;
+		assert received.contains("3 other alarms suppressed") : received;
+		assert sender.getStatus().contains("0 alarms, 0 bytes") : sender.getStatus();
+	}
+
+	@Test
+	public void testDropNewest() throws InterruptedException {
+		sender.setBufferOverflow(AlarmSender.BufferOverflow.DROP_NEWEST);
+		sender.init();
+		sendFive();
+		assert sender.getStatus().contains("3 dropped") : sender.getStatus();
+		Thread.sleep(600);
+		assert received.size() == 2 : received;
+	}
+
+	@Test
+	public void testFlushEarly() {
+		sender.setBufferOverflow(AlarmSender.BufferOverflow.FLUSH_EARLY);
+		sender.init();
+		sender.sendAlarmAlways("alarm 0");
+		sender.sendAlarmAlways("alarm 1");
+		assert received.isEmpty() : received;
+		sender.sendAlarmAlways("alarm 2");
+		assert received.size() == 2 : received;
+		assert sender.getStatus().contains("1 alarms") : sender.getStatus();
+		assert sender.getStatus().contains("1 flushed early") : sender.getStatus();
+	}
+
+	@Test
+	public void testByteBudget() {
+		sender.setBufferMaxEntries(100);
+		sender.setBufferMaxBytes(400);
+		sender.setBufferOverflow(AlarmSender.BufferOverflow.DROP_NEWEST);
+		sender.init();
+		sender.sendAlarmAlways("short");
+		sender.sendAlarmAlways(String.format("%0200d", 0));
+		assert sender.getStatus().contains("1 alarms") : sender.getStatus();
+		assert sender.getStatus().contains("1 dropped") : sender.getStatus();
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		received.add(msg);
+	}
+
+}
@@ -0,0 +1,63 @@
+package pl.org.radical.alarms;
+
+import pl.org.radical.alarms.cache.DefaultAlarmCache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test that the default cache forgets expired alarms and respects its maximum size. */
+public class TestCacheExpiry implements UnitTestChannel.ChanDelegate {
+
+	private final UnitTestChannel chan = new UnitTestChannel();
+	private DefaultAlarmCache cache;
+
+	@Before
+	public void setup() {
+		cache = new DefaultAlarmCache();
+		chan.resend = 200;
+		chan.delegate = this;
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		for (int i = 0; i < 10; i++) {
+			cache.store(0, chan, AlarmFingerprint.of(null, "msg" + i));
+		}
+		assert cache.size() == 10;
+		// The wheel has a resolution of 1 second, wait for it to tick past the deadlines
+		Thread.sleep(2100);
+		cache.store(0, chan, AlarmFingerprint.of(null, "last"));
+		assert cache.size() == 1 : cache;
+		assert cache.toString().contains("10 expired") : cache;
+	}
+
+	@Test
+	public void testMaxEntries() {
+		cache.setMaxEntries(5);
+		for (int i = 0; i < 10; i++) {
+			cache.store(0, chan, AlarmFingerprint.of(null, "msg" + i));
+		}
+		assert cache.size() == 5 : cache;
+		assert cache.toString().contains("5 evicted") : cache;
+		// The newest alarm must still be suppressed
+		assert !cache.shouldResend(0, chan, AlarmFingerprint.of(null, "msg9"));
+	}
+
+	@Test
+	public void testDiscardNew() {
+		cache.setMaxEntries(5);
+		cache.setEviction(DefaultAlarmCache.Eviction.DISCARD_NEW);
+		for (int i = 0; i < 10; i++) {
+			cache.store(0, chan, AlarmFingerprint.of(null, "msg" + i));
+		}
+		assert cache.size() == 5 : cache;
+		assert !cache.shouldResend(0, chan, AlarmFingerprint.of(null, "msg0"));
+		assert cache.shouldResend(0, chan, AlarmFingerprint.of(null, "msg9"));
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		// nothing is needed here
+	}
+
+}
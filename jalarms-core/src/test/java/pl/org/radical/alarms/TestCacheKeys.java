@@ -0,0 +1,67 @@
+package pl.org.radical.alarms;
+
+import pl.org.radical.alarms.cache.DefaultAlarmCache;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/** Test that the default cache tells channels apart by identity, not by their index in a sender. */
+public class TestCacheKeys implements UnitTestChannel.ChanDelegate {
+
+	private final DefaultAlarmCache cache = new DefaultAlarmCache();
+	private final UnitTestChannel chan1 = new UnitTestChannel();
+	private final UnitTestChannel chan2 = new UnitTestChannel();
+	private final AtomicInteger received = new AtomicInteger();
+
+	public TestCacheKeys() {
+		chan1.resend = 60000;
+		chan2.resend = 60000;
+		chan1.delegate = this;
+		chan2.delegate = this;
+	}
+
+	@Test
+	public void testSharedCache() {
+		final AlarmSender sender1 = new AlarmSender();
+		sender1.setAlarmCache(cache);
+		sender1.setAlarmChannels(Collections.singletonList((AlarmChannel) chan1));
+		final AlarmSender sender2 = new AlarmSender();
+		sender2.setAlarmCache(cache);
+		sender2.setAlarmChannels(Collections.singletonList((AlarmChannel) chan2));
+		sender1.sendAlarm("alarm", "src");
+		sender2.sendAlarm("alarm", "src");
+		sender1.shutdown();
+		sender2.shutdown();
+		// Both channels are at index 0 in their own sender
+		assert received.get() == 2 : received.get();
+		assert cache.size() == 2 : cache;
+	}
+
+	@Test
+	public void testReorder() {
+		final long fp = AlarmFingerprint.of("src", "alarm");
+		assert cache.tryAcquire(0, chan1, fp);
+		// The channels are set again in a different order
+		assert cache.tryAcquire(0, chan2, fp);
+		assert !cache.tryAcquire(1, chan1, fp);
+		assert !cache.tryAcquire(0, chan2, fp);
+	}
+
+	@Test
+	public void testLegacyCalls() {
+		assert cache.tryAcquire(1, chan2, AlarmFingerprint.of("src", "alarm"));
+		// The string based methods see the same entry
+		assert !cache.shouldResend(chan2, "src", "alarm");
+		assert cache.shouldResend(chan1, "src", "alarm");
+		cache.store(chan1, "src", "other");
+		assert !cache.tryAcquire(0, chan1, AlarmFingerprint.of("src", "other"));
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		received.incrementAndGet();
+	}
+
+}
@@ -0,0 +1,75 @@
+package pl.org.radical.alarms;
+
+import pl.org.radical.alarms.cache.DefaultAlarmCache;
+import pl.org.radical.alarms.cache.FingerprintAlarmCache;
+import pl.org.radical.alarms.cache.OffHeapAlarmCache;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test that the caches keep their entries across a restart when they have a snapshot file. */
+public class TestCacheSnapshot {
+
+	private File file;
+	private final UnitTestChannel longChan = new UnitTestChannel();
+	private final UnitTestChannel shortChan = new UnitTestChannel();
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("jalarms", ".snapshot");
+		file.delete();
+		longChan.resend = 60000;
+		shortChan.resend = 100;
+	}
+
+	@After
+	public void cleanup() {
+		file.delete();
+	}
+
+	private final long fp = AlarmFingerprint.of("src", "alarm");
+
+	private void sendAndShutdown(final FingerprintAlarmCache before) throws InterruptedException {
+		assert before.tryAcquire(0, longChan, fp);
+		assert before.tryAcquire(1, shortChan, fp);
+		before.shutdown();
+		assert file.exists();
+		Thread.sleep(200);
+	}
+
+	private void checkLoaded(final FingerprintAlarmCache after) {
+		// The entry for the long channel is still valid, the one for the short channel has expired
+		assert !after.tryAcquire(0, longChan, fp);
+		assert after.tryAcquire(1, shortChan, fp);
+		assert after.tryAcquire(0, longChan, AlarmFingerprint.of("src", "another alarm"));
+	}
+
+	@Test
+	public void testDefaultCache() throws InterruptedException {
+		final DefaultAlarmCache before = new DefaultAlarmCache();
+		before.setSnapshotFile(file.getPath());
+		sendAndShutdown(before);
+		final DefaultAlarmCache after = new DefaultAlarmCache();
+		after.setSegments(4);
+		after.setSnapshotFile(file.getPath());
+		after.init();
+		assert after.size() == 1 : after;
+		checkLoaded(after);
+	}
+
+	@Test
+	public void testOffHeapCache() throws InterruptedException {
+		final OffHeapAlarmCache before = new OffHeapAlarmCache();
+		before.setSnapshotFile(file.getPath());
+		sendAndShutdown(before);
+		final OffHeapAlarmCache after = new OffHeapAlarmCache();
+		after.setSnapshotFile(file.getPath());
+		after.init();
+		checkLoaded(after);
+	}
+
+}
@@ -0,0 +1,149 @@
+package pl.org.radical.alarms;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Test the circuit breaker of the AbstractAlarmChannel. */
+public class TestCircuitBreaker {
+
+	private final FlakyChannel chan = new FlakyChannel();
+
+	@After
+	public void cleanup() {
+		chan.shutdown();
+	}
+
+	@Test
+	public void testOpenAndClose() throws InterruptedException {
+		chan.setFailureThreshold(3);
+		chan.setCoolDown(200);
+		chan.setOutboxSize(2);
+		chan.down = true;
+		for (int i = 0; i < 3; i++) {
+			chan.send("fail" + i, null);
+		}
+		waitFor(3);
+		assert chan.getBreakerState() == AbstractAlarmChannel.BreakerState.OPEN;
+		assert chan.getFailureCount() == 3;
+		// These are not even attempted
+		for (int i = 0; i < 3; i++) {
+			chan.send("skip" + i, null);
+		}
+		Thread.sleep(50);
+		assert chan.attempts.size() == 3 : chan.attempts;
+		assert chan.getSkippedCount() == 3;
+		// After the cool-down, a failed probe opens the breaker again
+		Thread.sleep(200);
+		chan.send("probe1", null);
+		waitFor(4);
+		assert chan.getBreakerState() == AbstractAlarmChannel.BreakerState.OPEN;
+		// A good probe closes it and sends what was kept in the outbox
+		Thread.sleep(200);
+		chan.down = false;
+		chan.send("probe2", null);
+		waitFor(7);
+		assert chan.getBreakerState() == AbstractAlarmChannel.BreakerState.CLOSED;
+		assert chan.attempts.subList(4, 7).toString().equals("[probe2, skip0, skip1]") : chan.attempts;
+		chan.send("ok", null);
+		waitFor(8);
+	}
+
+	@Test
+	public void testDisabled() throws InterruptedException {
+		chan.setFailureThreshold(0);
+		chan.down = true;
+		for (int i = 0; i < 10; i++) {
+			chan.send("fail" + i, null);
+		}
+		waitFor(10);
+		assert chan.getBreakerState() == AbstractAlarmChannel.BreakerState.CLOSED;
+	}
+
+	@Test
+	public void testProbeShed() throws InterruptedException {
+		// The tasks only run when the test runs them
+		final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+		chan.setDeliveryExecutor(new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				pending.add(command);
+			}
+		});
+		chan.setFailureThreshold(1);
+		chan.setCoolDown(100);
+		chan.setQueueCapacity(1);
+		chan.setQueueOverflow(AbstractAlarmChannel.QueueOverflow.DROP_NEWEST);
+		chan.setRetryBackoff(10);
+		chan.down = true;
+		chan.retryable = true;
+		chan.send("fail", null);
+		runAll(pending);
+		assert chan.getBreakerState() == AbstractAlarmChannel.BreakerState.OPEN;
+		// The retry fills the queue, and the probe has no room
+		Thread.sleep(150);
+		assert chan.getStats().getQueueDepth() == 1;
+		chan.send("probe1", null);
+		assert chan.getStats().getShed() == 1;
+		assert chan.getBreakerState() == AbstractAlarmChannel.BreakerState.OPEN;
+		runAll(pending);
+		// The next probe, after another cool-down, closes the breaker
+		Thread.sleep(150);
+		chan.down = false;
+		chan.send("probe2", null);
+		runAll(pending);
+		assert chan.getBreakerState() == AbstractAlarmChannel.BreakerState.CLOSED;
+		assert chan.attempts.toString().equals("[fail, probe2]") : chan.attempts;
+	}
+
+	private void runAll(final Queue<Runnable> pending) {
+		Runnable r;
+		while ((r = pending.poll()) != null) {
+			r.run();
+		}
+	}
+
+	private void waitFor(final int attempts) throws InterruptedException {
+		for (int i = 0; i < 100 && chan.attempts.size() < attempts; i++) {
+			Thread.sleep(10);
+		}
+		// Let the breaker see the outcome of the last task
+		Thread.sleep(20);
+		assert chan.attempts.size() == attempts : chan.attempts;
+	}
+
+	/** A channel whose tasks fail while it's down. */
+	private static class FlakyChannel extends AbstractAlarmChannel {
+
+		final List<String> attempts = new CopyOnWriteArrayList<String>();
+		volatile boolean down;
+		volatile boolean retryable;
+
+		@Override
+		protected Runnable createSendTask(final String msg, final String source) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					attempts.add(msg);
+					if (down && retryable) {
+						reportRetryableFailure(null);
+					} else if (down) {
+						reportFailure(null);
+					}
+				}
+			};
+		}
+
+		@Override
+		protected boolean hasSource(final String alarmSource) {
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package pl.org.radical.alarms;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/** Test the channels that run their tasks in a shared executor, and the concurrency of a channel. */
+public class TestDeliveryExecutor {
+
+	@Test
+	public void testSharedPool() throws InterruptedException {
+		final ExecutorService pool = ChannelExecutors.newSharedPool(1);
+		final ThreadChannel chan1 = new ThreadChannel();
+		final ThreadChannel chan2 = new ThreadChannel();
+		chan1.setDeliveryExecutor(pool);
+		chan2.setDeliveryExecutor(pool);
+		for (int i = 0; i < 200; i++) {
+			chan1.send("one" + i, null);
+			chan2.send("two" + i, null);
+		}
+		chan1.shutdown();
+		chan2.shutdown();
+		// The channels don't shut down a shared executor
+		assert !pool.isShutdown();
+		pool.shutdown();
+		assert pool.awaitTermination(5, TimeUnit.SECONDS);
+		assert chan1.threads.size() == 200 && chan2.threads.size() == 200;
+		for (final String name : chan1.threads) {
+			assert name.equals("jalarms-delivery-1") : name;
+		}
+		assert chan2.threads.get(199).equals("jalarms-delivery-1") : chan2.threads;
+	}
+
+	@Test
+	public void testConcurrency() throws InterruptedException {
+		final CountDownLatch both = new CountDownLatch(2);
+		final ThreadChannel chan = new ThreadChannel() {
+			@Override
+			protected Runnable createSendTask(final String msg, final String source) {
+				return new Runnable() {
+					@Override
+					public void run() {
+						both.countDown();
+						try {
+							// Only returns if the other alarm is being sent at the same time
+							both.await(5, TimeUnit.SECONDS);
+						} catch (final InterruptedException ex) {
+							Thread.currentThread().interrupt();
+						}
+						threads.add(Thread.currentThread().getName());
+					}
+				};
+			}
+		};
+		chan.setConcurrency(2);
+		chan.send("one", null);
+		chan.send("two", null);
+		assert both.await(2, TimeUnit.SECONDS);
+		chan.shutdown();
+	}
+
+	@Test
+	public void testBusyExecutor() throws InterruptedException {
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		final CountDownLatch gate = new CountDownLatch(1);
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					gate.await(5, TimeUnit.SECONDS);
+				} catch (final InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		final ThreadChannel chan = new ThreadChannel();
+		chan.setDeliveryExecutor(pool);
+		chan.send("one", null);
+		chan.send("two", null);
+		// The executor rejects the tasks, but they're not run in this thread
+		assert chan.threads.isEmpty() : chan.threads;
+		gate.countDown();
+		chan.shutdown();
+		assert chan.awaitDrained(5, TimeUnit.SECONDS);
+		assert chan.threads.size() == 2 : chan.threads;
+		assert !chan.threads.contains(Thread.currentThread().getName()) : chan.threads;
+		pool.shutdown();
+	}
+
+	@Test
+	public void testVirtualThreads() throws InterruptedException {
+		if (!ChannelExecutors.isVirtualThreadsAvailable()) {
+			try {
+				ChannelExecutors.newVirtualThreadExecutor();
+				assert false;
+			} catch (final UnsupportedOperationException ex) {
+				return;
+			}
+		}
+		final ExecutorService exec = ChannelExecutors.newVirtualThreadExecutor();
+		final ThreadChannel chan = new ThreadChannel();
+		chan.setDeliveryExecutor(exec);
+		chan.setConcurrency(4);
+		for (int i = 0; i < 20; i++) {
+			chan.send("alarm" + i, null);
+		}
+		exec.shutdown();
+		assert exec.awaitTermination(5, TimeUnit.SECONDS);
+		assert chan.threads.size() == 20 : chan.threads;
+	}
+
+	/** A channel that records the name of the thread that sends each alarm. */
+	private static class ThreadChannel extends AbstractAlarmChannel {
+
+		final List<String> threads = new CopyOnWriteArrayList<String>();
+
+		@Override
+		protected Runnable createSendTask(final String msg, final String source) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					threads.add(Thread.currentThread().getName());
+				}
+			};
+		}
+
+		@Override
+		protected boolean hasSource(final String alarmSource) {
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,198 @@
+package pl.org.radical.alarms;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/** Test that shutting down the AlarmSender sends the alarms it has accepted, within the shutdown timeout. */
+public class TestGracefulShutdown {
+
+	@Test
+	public void testFlushBuffer() {
+		final SlowChannel chan = new SlowChannel(0);
+		final AlarmSender sender = createSender(chan);
+		sender.setAlarmTimeBuffer(60000);
+		sender.init();
+		sender.sendAlarmAlways("buffered");
+		sender.sendAlarmAlways("buffered");
+		assert chan.sent.isEmpty();
+		sender.shutdown();
+		assert chan.sent.toString().equals("[buffered (2x)]") : chan.sent;
+		assert sender.getLostOnShutdown() == 0;
+	}
+
+	@Test
+	public void testDrain() {
+		final SlowChannel chan = new SlowChannel(20);
+		final AlarmSender sender = createSender(chan);
+		sender.setAsyncQueueSize(16);
+		sender.init();
+		for (int i = 0; i < 10; i++) {
+			sender.sendAlarm("alarm " + i);
+		}
+		sender.shutdown();
+		// All sent by the time shutdown returns
+		assert chan.sent.size() == 10 : chan.sent;
+		assert sender.getLostOnShutdown() == 0;
+		// No more alarms once it's shut down
+		sender.sendAlarm("late");
+		assert !sender.trySendAlarm("later");
+		assert chan.sent.size() == 10 : chan.sent;
+	}
+
+	@Test
+	public void testDeadline() throws InterruptedException {
+		final GatedChannel chan = new GatedChannel();
+		final AlarmSender sender = createSender(chan);
+		sender.setShutdownTimeout(200);
+		try {
+			sender.sendAlarm("stuck");
+			assert chan.started.await(5, TimeUnit.SECONDS);
+			sender.sendAlarm("one");
+			sender.sendAlarm("two");
+			final long start = System.nanoTime();
+			sender.shutdown();
+			final long millis = (System.nanoTime() - start) / 1000000L;
+			assert millis >= 190 && millis < 2000 : millis;
+			assert sender.getLostOnShutdown() == 2 : sender.getLostOnShutdown();
+			assert chan.getStats().getFailed() == 2;
+			assert !chan.sent.contains("one") && !chan.sent.contains("two") : chan.sent;
+		} finally {
+			chan.gate.countDown();
+		}
+	}
+
+	@Test
+	public void testStuckDispatcher() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final AlarmSender sender = createSender(new AlarmChannel() {
+			@Override
+			public void send(final String msg, final String source) {
+				started.countDown();
+				try {
+					gate.await(5, TimeUnit.SECONDS);
+				} catch (final InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public int getMinResendInterval() {
+				return 0;
+			}
+
+			@Override
+			public void shutdown() {
+			}
+		});
+		sender.setAsyncQueueSize(16);
+		sender.setShutdownTimeout(200);
+		sender.init();
+		try {
+			sender.sendAlarm("stuck");
+			assert started.await(5, TimeUnit.SECONDS);
+			sender.sendAlarm("one");
+			sender.sendAlarm("two");
+			final long start = System.nanoTime();
+			sender.shutdown();
+			final long millis = (System.nanoTime() - start) / 1000000L;
+			assert millis >= 190 && millis < 2000 : millis;
+			assert sender.getLostOnShutdown() == 2 : sender.getLostOnShutdown();
+		} finally {
+			gate.countDown();
+		}
+	}
+
+	@Test
+	public void testFailedDuringDrain() {
+		final SlowChannel chan = new SlowChannel(50);
+		chan.failing.add("flaky");
+		final AlarmSender sender = createSender(chan);
+		sender.sendAlarm("slow");
+		sender.sendAlarm("flaky");
+		sender.shutdown();
+		// The channel is shut down by the time flaky fails, so it's not retried
+		assert chan.sent.toString().equals("[slow]") : chan.sent;
+		assert sender.getLostOnShutdown() == 1 : sender.getLostOnShutdown();
+		assert chan.getStats().getRetries() == 0 && chan.getStats().getGaveUp() == 1;
+	}
+
+	@Test
+	public void testSummaryOfDropped() throws InterruptedException {
+		final GatedChannel chan = new GatedChannel();
+		chan.setQueueCapacity(1);
+		final AlarmSender sender = createSender(chan);
+		sender.setShutdownTimeout(2000);
+		sender.sendAlarm("stuck");
+		assert chan.started.await(5, TimeUnit.SECONDS);
+		sender.sendAlarm("queued");
+		sender.sendAlarm("dropped");
+		assert chan.getStats().getShed() == 1;
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (final InterruptedException ex) {
+					// Open the gate anyway
+				}
+				chan.gate.countDown();
+			}
+		}.start();
+		sender.shutdown();
+		// The summary doesn't fit in the queue either, so the dropped alarm is counted as lost
+		assert chan.sent.toString().equals("[stuck, queued]") : chan.sent;
+		assert sender.getLostOnShutdown() == 1 : sender.getLostOnShutdown();
+	}
+
+	private AlarmSender createSender(final AlarmChannel chan) {
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(Collections.singletonList(chan));
+		return sender;
+	}
+
+	/** A channel that takes a while to send each alarm. */
+	private static class SlowChannel extends AbstractAlarmChannel {
+
+		final List<String> sent = new CopyOnWriteArrayList<String>();
+		final Set<String> failing = new CopyOnWriteArraySet<String>();
+		private final int delay;
+
+		SlowChannel(final int delay) {
+			this.delay = delay;
+		}
+
+		@Override
+		protected Runnable createSendTask(final String msg, final String source) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(delay);
+					} catch (final InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+					if (failing.contains(msg)) {
+						reportRetryableFailure(null);
+					} else {
+						sent.add(msg);
+					}
+				}
+			};
+		}
+
+		@Override
+		protected boolean hasSource(final String alarmSource) {
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,124 @@
+package pl.org.radical.alarms;
+
+import pl.org.radical.alarms.metrics.AlarmMetrics;
+import pl.org.radical.alarms.metrics.AlarmStats;
+import pl.org.radical.alarms.metrics.LatencyHistogram;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/** Test the metrics of the AlarmSender and their MBeans. */
+public class TestMetrics implements UnitTestChannel.ChanDelegate {
+
+	@Test
+	public void testCounters() {
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 60000;
+		chan.delegate = this;
+		final List<AlarmChannel> chans = new ArrayList<AlarmChannel>();
+		chans.add(chan);
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(chans);
+		sender.sendAlarm("a", "src");
+		sender.sendAlarm("a", "src");
+		sender.sendAlarm("b", "src");
+		sender.sendAlarm("c");
+		final AlarmMetrics m = sender.getMetrics();
+		assert m.getTotal().getReceived() == 4;
+		assert m.getTotal().getSent() == 3;
+		assert m.getTotal().getDeduplicated() == 1;
+		final AlarmStats src = m.getSource("src");
+		assert src.getReceived() == 3 && src.getSent() == 2 && src.getDeduplicated() == 1 : src;
+		assert m.getSource(null).getSent() == 1;
+		assert m.getChannel(0).getReceived() == 3 && m.getChannel(0).getDeduplicated() == 1;
+		assert m.getCache().getHits() == 1 && m.getCache().getMisses() == 3;
+		assert m.getCache().getSize() == 3 : m.getCache();
+		assert m.getTotal().getLatency().getCount() == 3;
+	}
+
+	@Test
+	public void testMBeans() throws Exception {
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(new ArrayList<AlarmChannel>());
+		sender.setJmxName("test");
+		sender.init();
+		sender.sendAlarm("a", "src");
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName src = new ObjectName("pl.org.radical.alarms:type=Source,sender=\"test\",name=\"src\"");
+		try {
+			// The new source is registered when the sources are listed, not when its alarm is recorded
+			assert !server.isRegistered(src);
+			sender.getMetrics().getSources();
+			assert Long.valueOf(1).equals(server.getAttribute(new ObjectName("pl.org.radical.alarms:type=AlarmSender,name=\"test\""),
+			        "Received"));
+			assert Long.valueOf(1).equals(server.getAttribute(src, "Received"));
+		} finally {
+			sender.shutdown();
+		}
+		assert server.queryNames(new ObjectName("pl.org.radical.alarms:*"), null).isEmpty();
+	}
+
+	@Test
+	public void testMaxSources() {
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(new ArrayList<AlarmChannel>());
+		final AlarmMetrics m = sender.getMetrics();
+		m.setMaxSources(3);
+		for (int i = 0; i < 10; i++) {
+			sender.sendAlarm("a", "src" + i);
+		}
+		sender.sendAlarm("b", "src1");
+		assert m.getSources().size() == 4 : m.getSources().keySet();
+		assert m.getSource("src1").getReceived() == 2;
+		assert m.getSource("src9") == m.getSources().get("(other)");
+		assert m.getSource("src9").getReceived() == 7;
+	}
+
+	@Test
+	public void testHistogram() {
+		final LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			h.record(i * 1000L);
+		}
+		assert h.getCount() == 1000 && h.getMax() == 1000000;
+		final long median = h.getPercentile(50);
+		assert median >= 500000 && median <= 500000 * 1.125 : median;
+		final long p99 = h.getPercentile(99);
+		assert p99 >= 990000 && p99 <= 1000000 : p99;
+		assert h.getPercentile(100) == 1000000;
+		assert new LatencyHistogram().getPercentile(99) == 0;
+	}
+
+	@Test
+	public void testNoAllocation() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		final com.sun.management.ThreadMXBean tb = (com.sun.management.ThreadMXBean) threads;
+		final AlarmStats stats = new AlarmStats();
+		final long id = Thread.currentThread().getId();
+		for (int i = 0; i < 10000; i++) {
+			stats.recordSent(i);
+		}
+		final long before = tb.getThreadAllocatedBytes(id);
+		for (int i = 0; i < 100000; i++) {
+			stats.recordReceived();
+			stats.recordSent(i * 37L);
+		}
+		final long allocated = tb.getThreadAllocatedBytes(id) - before;
+		assert allocated < 1024 : allocated;
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+	}
+
+}
@@ -0,0 +1,59 @@
+package pl.org.radical.alarms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+/** Test the normalization of alarm messages, and that alarms that only differ in numbers and ids are deduplicated. */
+public class TestNormalizer implements UnitTestChannel.ChanDelegate {
+
+	private final List<String> received = new CopyOnWriteArrayList<String>();
+
+	@Test
+	public void testNormalize() {
+		final NormalizingFingerprinter f = new NormalizingFingerprinter();
+		assert "Timeout after <num>ms on order <num>".equals(f.normalize("Timeout after 3012ms on order 88123"));
+		assert f.fingerprint("db", "Timeout after 3012ms on order 88123") == f.fingerprint("db", "Timeout after 2999ms on order 88124");
+		assert f.fingerprint("db", "Timeout after 3012ms") != f.fingerprint("web", "Timeout after 3012ms");
+		assert "request <uuid> failed".equals(f.normalize("request 123e4567-e89b-12d3-a456-426614174000 failed"));
+		assert "cannot reach <ip>, <ip>.".equals(f.normalize("cannot reach 10.0.0.12:8080, 192.168.1.1."));
+		assert "bad pointer <hex> in <hex>".equals(f.normalize("bad pointer 0x7ffe12ab in deadbeef01"));
+		assert "user '*' not found in \"*\"".equals(f.normalize("user 'jsmith' not found in \"users db\""));
+		assert "load is <num>, can't start".equals(f.normalize("load is 3.75, can't start"));
+		// Digits and hex inside words are kept, and so are quotes that aren't closed
+		assert "log4j v2 failed: deadbeef 'oops".equals(f.normalize("log4j v2 failed: deadbeef 'oops"));
+		assert "1.2.3".equals(new NormalizingFingerprinter() {
+			{
+				setNumbers(false);
+			}
+		}.normalize("1.2.3"));
+		assert "".equals(f.normalize(""));
+	}
+
+	@Test
+	public void testDeduplicate() {
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 60000;
+		chan.delegate = this;
+		final List<AlarmChannel> chans = new ArrayList<AlarmChannel>();
+		chans.add(chan);
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(chans);
+		sender.setFingerprinter(new NormalizingFingerprinter());
+		sender.sendAlarm("Timeout after 3012ms on order 88123", "orders");
+		sender.sendAlarm("Timeout after 2999ms on order 88124", "orders");
+		sender.sendAlarm("Timeout after 2999ms on order 88124", "billing");
+		// The channel gets the original message
+		assert received.size() == 2 : received;
+		assert received.get(0).equals("Timeout after 3012ms on order 88123") : received;
+		assert received.get(1).equals("Timeout after 2999ms on order 88124") : received;
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		received.add(msg);
+	}
+
+}
@@ -0,0 +1,81 @@
+package pl.org.radical.alarms;
+
+import pl.org.radical.alarms.cache.AlarmCache;
+import pl.org.radical.alarms.cache.OffHeapAlarmCache;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/** Runs the default cache test against the off-heap cache, and checks that it works when it's full. */
+public class TestOffHeapCache extends TestDefaultCache {
+
+	@Override
+	protected AlarmCache createCache() {
+		final OffHeapAlarmCache rv = new OffHeapAlarmCache();
+		rv.setDefaultInterval(c1t * 3);
+		return rv;
+	}
+
+	@Test
+	public void testFullTable() {
+		final OffHeapAlarmCache cache = new OffHeapAlarmCache();
+		// 64 slots
+		cache.setMaxMemory(1024);
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 60000;
+		for (int i = 0; i < 1000; i++) {
+			assert cache.tryAcquire(0, chan, AlarmFingerprint.of(null, "msg" + i));
+			// The alarm that was just recorded is always there
+			assert !cache.tryAcquire(0, chan, AlarmFingerprint.of(null, "msg" + i));
+		}
+		assert cache.toString().contains("64 slots") : cache;
+	}
+
+	@Test
+	public void testOneWinner() throws InterruptedException {
+		final OffHeapAlarmCache cache = new OffHeapAlarmCache();
+		// 32 slots, so that the keys keep taking the slots of the others
+		cache.setMaxMemory(512);
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 200;
+		final int threads = 8;
+		final int rounds = 2000;
+		final AtomicInteger[] winners = new AtomicInteger[rounds];
+		for (int i = 0; i < rounds; i++) {
+			winners[i] = new AtomicInteger();
+		}
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		final Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < rounds; i++) {
+							barrier.await();
+							if (cache.tryAcquire(0, chan, AlarmFingerprint.of(null, "msg" + i))) {
+								winners[i].incrementAndGet();
+							}
+						}
+					} catch (final Exception ex) {
+						throw new IllegalStateException(ex);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (final Thread w : workers) {
+			w.join();
+		}
+		int wrong = 0;
+		for (int i = 0; i < rounds; i++) {
+			if (winners[i].get() != 1) {
+				wrong++;
+			}
+		}
+		assert wrong == 0 : wrong + " alarms not sent exactly once";
+	}
+
+}
@@ -0,0 +1,73 @@
+package pl.org.radical.alarms;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Test the priority lanes of the AbstractAlarmChannel queue. */
+public class TestPriorityLanes {
+
+	private final GatedChannel chan = new GatedChannel();
+
+	@After
+	public void cleanup() {
+		chan.gate.countDown();
+		chan.shutdown();
+	}
+
+	@Test
+	public void testStrict() throws InterruptedException {
+		chan.send(new Alarm("first", null, Alarm.Severity.INFO, null));
+		chan.started.await(1, TimeUnit.SECONDS);
+		chan.send(new Alarm("info", null, Alarm.Severity.INFO, null));
+		chan.send(new Alarm("warning", null, Alarm.Severity.WARNING, null));
+		chan.send("error", null);
+		chan.send(new Alarm("critical", null, Alarm.Severity.CRITICAL, null));
+		chan.gate.countDown();
+		waitFor(5);
+		assert chan.sent.toString().equals("[first, critical, error, warning, info]") : chan.sent;
+	}
+
+	@Test
+	public void testWeighted() throws InterruptedException {
+		chan.setPriorityOrder(AbstractAlarmChannel.PriorityOrder.WEIGHTED);
+		chan.setPriorityWeights(new int[] { 1, 1, 1, 3 });
+		chan.send(new Alarm("first", null, Alarm.Severity.INFO, null));
+		chan.started.await(1, TimeUnit.SECONDS);
+		for (int i = 0; i < 4; i++) {
+			chan.send(new Alarm("info" + i, null, Alarm.Severity.INFO, null));
+			chan.send(new Alarm("critical" + i, null, Alarm.Severity.CRITICAL, null));
+		}
+		chan.gate.countDown();
+		waitFor(9);
+		// The info alarms get one turn in four while there are critical alarms
+		assert chan.sent.subList(1, 9).toString().equals("[critical0, critical1, info0, critical2, critical3, info1, info2, info3]") : chan.sent;
+	}
+
+	@Test
+	public void testShedLowFirst() throws InterruptedException {
+		chan.setQueueCapacity(2);
+		chan.setQueueOverflow(AbstractAlarmChannel.QueueOverflow.DROP_NEWEST);
+		chan.send(new Alarm("first", null, Alarm.Severity.INFO, null));
+		chan.started.await(1, TimeUnit.SECONDS);
+		chan.send(new Alarm("info0", null, Alarm.Severity.INFO, null));
+		chan.send(new Alarm("info1", null, Alarm.Severity.INFO, null));
+		// Full: the critical alarm displaces the oldest info alarm, the last info alarm has nothing to displace
+		chan.send(new Alarm("critical", null, Alarm.Severity.CRITICAL, null));
+		chan.send(new Alarm("info2", null, Alarm.Severity.INFO, null));
+		assert chan.getStats().getQueueDepth() == 2;
+		chan.gate.countDown();
+		waitFor(3);
+		assert chan.sent.toString().equals("[first, critical, info1]") : chan.sent;
+		assert chan.getStats().getShed() == 2 && chan.getStats().getFailed() == 2;
+	}
+
+	private void waitFor(final int sent) throws InterruptedException {
+		for (int i = 0; i < 100 && chan.sent.size() < sent; i++) {
+			Thread.sleep(10);
+		}
+		assert chan.sent.size() == sent : chan.sent;
+	}
+
+}
@@ -0,0 +1,71 @@
+package pl.org.radical.alarms;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Test the overflow policies of the AbstractAlarmChannel queue. */
+public class TestQueueOverflow {
+
+	private final GatedChannel chan = new GatedChannel();
+
+	@After
+	public void cleanup() {
+		chan.gate.countDown();
+		chan.shutdown();
+	}
+
+	@Test
+	public void testDropOldest() throws InterruptedException {
+		fill(AbstractAlarmChannel.QueueOverflow.DROP_OLDEST);
+		chan.send("c", null);
+		chan.gate.countDown();
+		waitFor(3);
+		assert chan.sent.toString().equals("[first, b, c]") : chan.sent;
+		assert chan.getStats().getShed() == 1;
+	}
+
+	@Test
+	public void testCoalesce() throws InterruptedException {
+		fill(AbstractAlarmChannel.QueueOverflow.COALESCE);
+		// The same alarm is already queued
+		chan.send("a", null);
+		chan.send("c", null);
+		chan.gate.countDown();
+		waitFor(3);
+		assert chan.sent.toString().equals("[first, a, b]") : chan.sent;
+		assert chan.getStats().getDeduplicated() == 1 && chan.getStats().getShed() == 1;
+	}
+
+	@Test
+	public void testSummary() throws InterruptedException {
+		fill(AbstractAlarmChannel.QueueOverflow.SUMMARY);
+		chan.send(new Alarm("c", null, Alarm.Severity.WARNING, null));
+		chan.send(new Alarm("d", null, Alarm.Severity.INFO, null));
+		assert chan.getStats().getShed() == 2;
+		chan.gate.countDown();
+		waitFor(4);
+		assert chan.sent.subList(0, 3).toString().equals("[first, a, b]") : chan.sent;
+		assert chan.sent.get(3).equals("2 alarms were dropped because the alarm channel could not keep up") : chan.sent;
+	}
+
+	/** Blocks the channel and fills its queue with alarms a and b. */
+	private void fill(final AbstractAlarmChannel.QueueOverflow overflow) throws InterruptedException {
+		chan.setQueueCapacity(2);
+		chan.setQueueOverflow(overflow);
+		chan.send("first", null);
+		chan.started.await(1, TimeUnit.SECONDS);
+		chan.send("a", null);
+		chan.send("b", null);
+	}
+
+	private void waitFor(final int sent) throws InterruptedException {
+		for (int i = 0; i < 100 && chan.sent.size() < sent; i++) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(20);
+		assert chan.sent.size() == sent : chan.sent;
+	}
+
+}
@@ -0,0 +1,94 @@
+package pl.org.radical.alarms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test the per-source rate limit of the AlarmSender. */
+public class TestRateLimit implements UnitTestChannel.ChanDelegate {
+
+	private final List<String> received = new CopyOnWriteArrayList<String>();
+	private final UnitTestChannel chan = new UnitTestChannel();
+	private AlarmSender sender;
+
+	@Before
+	public void setup() {
+		chan.resend = 60000;
+		chan.delegate = this;
+		final List<AlarmChannel> chans = new ArrayList<AlarmChannel>();
+		chans.add(chan);
+		sender = new AlarmSender();
+		sender.setAlarmChannels(chans);
+		// One alarm every 100 millis, 3 at once
+		sender.setRateLimit(600);
+		sender.setRateBurst(3);
+	}
+
+	@Test
+	public void testBurstAndSummary() throws InterruptedException {
+		for (int i = 0; i < 10; i++) {
+			sender.sendAlarm("msg" + i, "src");
+		}
+		sender.sendAlarm("other", "src2");
+		assert received.size() == 4 : received;
+		assert received.contains("other") : received;
+		// Repeated alarms are stopped by the cache, so they don't count
+		sender.sendAlarm("msg0", "src");
+		assert sender.getStatus().contains("7 rate limited") : sender.getStatus();
+		Thread.sleep(300);
+		assert received.size() == 5 : received;
+		assert received.get(4).equals("source src: 7 alarms suppressed") : received;
+		// The bucket has refilled since
+		sender.sendAlarm("msg10", "src");
+		assert received.size() == 6 : received;
+	}
+
+	@Test
+	public void testSourceLimits() {
+		sender.setSourceRateLimits(Collections.singletonMap("free", 0));
+		for (int i = 0; i < 10; i++) {
+			sender.sendAlarm("msg" + i, "free");
+		}
+		assert received.size() == 10 : received;
+		for (int i = 0; i < 10; i++) {
+			sender.sendAlarmAlways("always", null);
+		}
+		assert received.size() == 13 : received;
+	}
+
+	@Test
+	public void testAllChannelsAfterLimit() throws InterruptedException {
+		final UnitTestChannel chan2 = new UnitTestChannel();
+		chan2.resend = 60000;
+		chan2.delegate = this;
+		final List<AlarmChannel> chans = new ArrayList<AlarmChannel>();
+		chans.add(chan);
+		chans.add(chan2);
+		sender.setAlarmChannels(chans);
+		for (int i = 0; i < 3; i++) {
+			sender.sendAlarm("msg" + i, "src");
+		}
+		sender.sendAlarm("limited", "src");
+		sender.sendAlarms(Arrays.asList("batch0", "batch1"), "src");
+		assert received.size() == 6 : received;
+		// The bucket refills, and the alarms refused before are sent through every channel
+		Thread.sleep(700);
+		received.clear();
+		sender.sendAlarm("limited", "src");
+		sender.sendAlarms(Arrays.asList("batch0", "batch1"), "src");
+		assert received.size() == 6 : received;
+		assert Collections.frequency(received, "limited") == 2 : received;
+		assert Collections.frequency(received, "batch1") == 2 : received;
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		received.add(msg);
+	}
+
+}
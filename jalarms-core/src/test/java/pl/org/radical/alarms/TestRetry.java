@@ -0,0 +1,126 @@
+package pl.org.radical.alarms;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Test the retries of the tasks of the AbstractAlarmChannel. */
+public class TestRetry {
+
+	private final RetryChannel chan = new RetryChannel();
+
+	@After
+	public void cleanup() {
+		chan.shutdown();
+	}
+
+	@Test
+	public void testRetry() throws InterruptedException {
+		chan.setRetryBackoff(100);
+		chan.setFailureThreshold(0);
+		chan.failures.put("flaky", new AtomicInteger(2));
+		chan.send("flaky", null);
+		chan.send("healthy", null);
+		Thread.sleep(50);
+		// The healthy alarm doesn't wait for the retries
+		assert chan.sent.toString().equals("[healthy]") : chan.sent;
+		waitFor(2);
+		assert chan.sent.toString().equals("[healthy, flaky]") : chan.sent;
+		assert chan.getStats().getRetries() == 2 && chan.getStats().getGaveUp() == 0;
+		assert chan.getStats().getSent() == 2 && chan.getStats().getFailed() == 0;
+	}
+
+	@Test
+	public void testGiveUp() throws InterruptedException {
+		chan.setRetryBackoff(10);
+		chan.setMaxAttempts(3);
+		chan.setFailureThreshold(0);
+		chan.failures.put("down", new AtomicInteger(10));
+		chan.send("down", null);
+		Thread.sleep(300);
+		assert chan.failures.get("down").get() == 7 : chan.failures;
+		assert chan.getStats().getRetries() == 2 && chan.getStats().getGaveUp() == 1;
+		assert chan.getStats().getFailed() == 1;
+	}
+
+	@Test
+	public void testMaxAge() throws InterruptedException {
+		chan.setRetryBackoff(1000);
+		chan.setMaxRetryAge(200);
+		chan.failures.put("old", new AtomicInteger(10));
+		chan.send("old", null);
+		Thread.sleep(100);
+		// The next attempt would be too late
+		assert chan.failures.get("old").get() == 9 : chan.failures;
+		assert chan.getStats().getRetries() == 0 && chan.getStats().getGaveUp() == 1;
+	}
+
+	@Test
+	public void testBatch() throws InterruptedException {
+		chan.setRetryBackoff(100);
+		chan.failures.put("b", new AtomicInteger(1));
+		chan.send(Arrays.asList(new Alarm("a"), new Alarm("b"), new Alarm("c")));
+		waitFor(3);
+		// Only the alarm that failed is sent again
+		assert chan.sent.toString().equals("[a, c, b]") : chan.sent;
+		assert chan.getStats().getRetries() == 1;
+	}
+
+	@Test
+	public void testBatchFailureKeepsRetry() throws InterruptedException {
+		chan.setRetryBackoff(100);
+		chan.failures.put("b", new AtomicInteger(1));
+		chan.broken.add("c");
+		chan.send(Arrays.asList(new Alarm("a"), new Alarm("b"), new Alarm("c")));
+		waitFor(2);
+		// The failure of c, which can't be retried, doesn't stop the retry of b
+		assert chan.sent.toString().equals("[a, b]") : chan.sent;
+		assert chan.getStats().getRetries() == 1;
+	}
+
+	private void waitFor(final int sent) throws InterruptedException {
+		for (int i = 0; i < 100 && chan.sent.size() < sent; i++) {
+			Thread.sleep(10);
+		}
+		assert chan.sent.size() == sent : chan.sent;
+	}
+
+	/** A channel whose tasks fail, as retryable, the number of times set for their message. */
+	private static class RetryChannel extends AbstractAlarmChannel {
+
+		final List<String> sent = new CopyOnWriteArrayList<String>();
+		final ConcurrentHashMap<String, AtomicInteger> failures = new ConcurrentHashMap<String, AtomicInteger>();
+		final Set<String> broken = new CopyOnWriteArraySet<String>();
+
+		@Override
+		protected Runnable createSendTask(final String msg, final String source) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					final AtomicInteger left = failures.get(msg);
+					if (left != null && left.getAndDecrement() > 0) {
+						reportRetryableFailure(null);
+					} else if (broken.contains(msg)) {
+						reportFailure(null);
+					} else {
+						sent.add(msg);
+					}
+				}
+			};
+		}
+
+		@Override
+		protected boolean hasSource(final String alarmSource) {
+			return false;
+		}
+
+	}
+
+}
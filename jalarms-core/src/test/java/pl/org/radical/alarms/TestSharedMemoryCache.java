@@ -0,0 +1,117 @@
+package pl.org.radical.alarms;
+
+import pl.org.radical.alarms.cache.SharedMemoryAlarmCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that several processes sharing the same cache file send an alarm only once. Each process is a
+ * separate JVM running {@link #main(String[])}, which sends the same alarm at the same time and exits
+ * with 0 if its channel got the alarm, 1 if it didn't.
+ */
+public class TestSharedMemoryCache implements UnitTestChannel.ChanDelegate {
+
+	private File file;
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("jalarms", ".shm");
+		file.delete();
+	}
+
+	@After
+	public void cleanup() {
+		file.delete();
+	}
+
+	@Test
+	public void testManyProcesses() throws IOException, InterruptedException {
+		final int procs = 4;
+		// Give the JVMs time to start, so that they all send at about the same time
+		final long start = System.currentTimeMillis() + 3000;
+		final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		final List<Process> children = new ArrayList<Process>(procs);
+		for (int i = 0; i < procs; i++) {
+			final ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), getClass().getName(),
+			        file.getPath(), Long.toString(start));
+			pb.redirectErrorStream(true);
+			children.add(pb.start());
+		}
+		int sent = 0;
+		for (final Process p : children) {
+			drain(p.getInputStream());
+			final int status = p.waitFor();
+			assert status == 0 || status == 1 : "Child process failed with status " + status;
+			if (status == 0) {
+				sent++;
+			}
+		}
+		assert sent == 1 : sent;
+		assert file.length() > 0;
+	}
+
+	@Test
+	public void testSizeFromFile() {
+		final SharedMemoryAlarmCache first = new SharedMemoryAlarmCache();
+		first.setPath(file.getPath());
+		first.setMaxMemory(1024);
+		final SharedMemoryAlarmCache second = new SharedMemoryAlarmCache();
+		second.setPath(file.getPath());
+		second.setMaxMemory(4096);
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 60000;
+		final long fp = AlarmFingerprint.of("src", "alarm");
+		assert first.tryAcquire(0, chan, fp);
+		// The second cache uses the table created by the first one
+		assert !second.tryAcquire(0, chan, fp);
+		assert second.toString().contains("64 slots") : second;
+		assert first.tryAcquire(1, chan, fp);
+		first.shutdown();
+		second.shutdown();
+	}
+
+	private static void drain(final InputStream in) throws IOException {
+		final byte[] buf = new byte[4096];
+		try {
+			while (in.read(buf) >= 0) {
+				// The output is only read so that the child doesn't block on a full pipe
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+	}
+
+	/** Runs in each child process: sends an alarm at the specified time, through a cache in the specified file. */
+	public static void main(final String[] args) throws Exception {
+		final SharedMemoryAlarmCache cache = new SharedMemoryAlarmCache();
+		cache.setPath(args[0]);
+		cache.setMaxMemory(65536);
+		cache.init();
+		final UnitTestChannel chan = new UnitTestChannel();
+		chan.resend = 60000;
+		chan.delegate = new TestSharedMemoryCache();
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(Collections.singletonList((AlarmChannel) chan));
+		sender.setAlarmCache(cache);
+		final long wait = Long.parseLong(args[1]) - System.currentTimeMillis();
+		if (wait > 0) {
+			Thread.sleep(wait);
+		}
+		sender.sendAlarm("the same alarm in every process", "src");
+		System.exit(chan.sent.get() ? 0 : 1);
+	}
+
+}
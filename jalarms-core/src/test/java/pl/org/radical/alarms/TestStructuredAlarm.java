@@ -0,0 +1,103 @@
+package pl.org.radical.alarms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+/** Test that the alarm data reaches the channels that can take it, and that the string API still works. */
+public class TestStructuredAlarm implements UnitTestChannel.ChanDelegate {
+
+	private final List<String> plain = new CopyOnWriteArrayList<String>();
+
+	@Test
+	public void testStructured() throws InterruptedException {
+		final StructuredChannel chan1 = new StructuredChannel();
+		final StructuredChannel chan2 = new StructuredChannel();
+		final UnitTestChannel chan3 = new UnitTestChannel();
+		chan3.resend = 60000;
+		chan3.delegate = this;
+		final List<AlarmChannel> chans = new ArrayList<AlarmChannel>();
+		chans.add(chan1);
+		chans.add(chan2);
+		chans.add(chan3);
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(chans);
+		final Map<String, String> tags = new HashMap<String, String>();
+		tags.put("host", "db1");
+		final Alarm alarm = new Alarm("disk full", "storage", Alarm.Severity.CRITICAL, tags);
+		tags.put("host", "changed");
+		sender.sendAlarm(alarm);
+		// The alarm is the same as one sent with the string API, so it's suppressed
+		sender.sendAlarm("disk full", "storage");
+		assert chan1.received.size() == 1 && chan2.received.size() == 1 : chan1.received;
+		final Alarm got = chan1.received.get(0);
+		assert got == chan2.received.get(0);
+		assert got.getSeverity() == Alarm.Severity.CRITICAL;
+		assert "db1".equals(got.getTags().get("host")) : got.getTags();
+		assert got.getFingerprint() == AlarmFingerprint.of("storage", "disk full");
+		assert plain.equals(Collections.singletonList("disk full")) : plain;
+	}
+
+	@Test
+	public void testBufferedCopy() throws InterruptedException {
+		final StructuredChannel chan = new StructuredChannel();
+		final AlarmSender sender = new AlarmSender();
+		sender.setAlarmChannels(Collections.singletonList((AlarmChannel) chan));
+		sender.setAlarmTimeBuffer(100);
+		sender.setFlushGranularity(10);
+		sender.init();
+		final Alarm alarm = new Alarm("link down", "net", Alarm.Severity.WARNING, null);
+		sender.sendAlarmAlways(alarm);
+		sender.sendAlarmAlways(alarm);
+		sender.sendAlarmAlways("link down", "net");
+		Thread.sleep(500);
+		assert chan.received.size() == 1 : chan.received;
+		final Alarm got = chan.received.get(0);
+		// The count is added to the first alarm, which keeps its data
+		assert "link down (3x)".equals(got.getMessage()) : got;
+		assert got.getSeverity() == Alarm.Severity.WARNING;
+		assert got.getTimestamp() == alarm.getTimestamp();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullMessage() {
+		new Alarm(null, "src");
+	}
+
+	@Override
+	public void alarmReceived(final String msg, final long when) {
+		plain.add(msg);
+	}
+
+	/** Records the alarms it gets. */
+	private static class StructuredChannel implements StructuredAlarmChannel {
+
+		final List<Alarm> received = new CopyOnWriteArrayList<Alarm>();
+
+		@Override
+		public void send(final Alarm alarm) {
+			received.add(alarm);
+		}
+
+		@Override
+		public void send(final String msg, final String source) {
+			throw new IllegalStateException("The sender should use the structured method");
+		}
+
+		@Override
+		public int getMinResendInterval() {
+			return 60000;
+		}
+
+		@Override
+		public void shutdown() {
+		}
+
+	}
+
+}
@@ -3,7 +3,8 @@ package pl.org.radical.alarms;
 import java.util.Date;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import de.huxhorn.lilith.slf4j.Logger;import de.huxhorn.lilith.slf4j.LoggerFactory;
+import de.huxhorn.lilith.slf4j.Logger;
+import de.huxhorn.lilith.slf4j.LoggerFactory;
 
 /**
  * This class is used in unit tests to receive a notification when an alarm is actually sent.
@@ -36,6 +37,10 @@ public class UnitTestChannel implements AlarmChannel {
 	void prepare() {
 		stamp = System.currentTimeMillis();
 		sent.set(false);
+		// The alarms are sent in well under a millisecond now; make sure the next one is stamped later
+		while (System.currentTimeMillis() == stamp) {
+			Thread.yield();
+		}
 	}
 
 	void waitForSend() {
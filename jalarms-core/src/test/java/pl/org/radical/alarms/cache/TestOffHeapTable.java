@@ -0,0 +1,54 @@
+package pl.org.radical.alarms.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/** Test the slots of the OffHeapTable while another thread or process is writing them. */
+public class TestOffHeapTable {
+
+	private static final int SLOTS = 64;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(SLOTS * OffHeapTable.SLOT_SIZE).order(ByteOrder.nativeOrder());
+	private final OffHeapTable table = new OffHeapTable(buf, 0, SLOTS);
+
+	@Test
+	public void testLockedSlot() {
+		final long now = System.currentTimeMillis();
+		final long key = 5;
+		// Another thread has just locked the key's home slot to write this key in it, but the old key is still there
+		buf.putLong(5 * OffHeapTable.SLOT_SIZE, 1234);
+		buf.putLong(5 * OffHeapTable.SLOT_SIZE + 8, -1 - now);
+		table.acquire(key, now, now + 1000, false);
+		// The other thread finishes
+		buf.putLong(5 * OffHeapTable.SLOT_SIZE, key);
+		buf.putLong(5 * OffHeapTable.SLOT_SIZE + 8, now + 1000);
+		assert count(key) == 1 : count(key);
+		assert !table.acquire(key, now, now + 1000, false);
+	}
+
+	@Test
+	public void testAbandonedSlot() {
+		final long now = System.currentTimeMillis();
+		final long key = 5;
+		// The process that was writing the slot died
+		buf.putLong(5 * OffHeapTable.SLOT_SIZE, 1234);
+		buf.putLong(5 * OffHeapTable.SLOT_SIZE + 8, -1 - (now - OffHeapTable.LOCK_TIMEOUT - 1));
+		assert !table.isLive(1234, now);
+		assert table.acquire(key, now, now + 1000, false);
+		assert table.isLive(key, now);
+		assert buf.getLong(5 * OffHeapTable.SLOT_SIZE) == key;
+	}
+
+	/** Returns the number of slots that have the key. */
+	private int count(final long key) {
+		int n = 0;
+		for (int i = 0; i < SLOTS; i++) {
+			if (buf.getLong(i * OffHeapTable.SLOT_SIZE) == key) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+}